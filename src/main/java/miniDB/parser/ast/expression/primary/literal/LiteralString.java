@@ -92,7 +92,7 @@ public class LiteralString extends Literal {
                         sb.append((char) 26);
                         break;
                     default:
-                        sb.append(c);
+                        sb.append((char) c);
                 }
             } else if (c == '\'') {
                 ++i;
@@ -0,0 +1,21 @@
+package com.lss233.minidb.engine
+
+/**
+ * 连接类型
+ */
+enum class JoinType {
+    /**
+     * 内连接，只保留匹配的行
+     */
+    INNER,
+
+    /**
+     * 左外连接，左表中未匹配的行以 NULL 补齐右表
+     */
+    LEFT,
+
+    /**
+     * 右外连接，右表中未匹配的行以 NULL 补齐左表
+     */
+    RIGHT
+}
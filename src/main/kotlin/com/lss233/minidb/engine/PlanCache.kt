@@ -0,0 +1,282 @@
+package com.lss233.minidb.engine
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import miniDB.parser.ast.expression.primary.literal.LiteralString
+import miniDB.parser.ast.stmt.SQLStatement
+import miniDB.parser.ast.stmt.dml.DMLQueryStatement
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 查询计划缓存
+ * 客户端反复发出的查询往往只有条件中的常量不同。查询语句先把 WHERE、ON、HAVING 中的字符串和数字常量
+ * 换成参数占位符 `?`，以换过之后的文本为键缓存解析好的语句，形状相同的查询不再经过 [SQLParser] 的改写和语法解析，
+ * 执行时再把这次的常量作为参数绑定到 [com.lss233.minidb.engine.visitor.SelectStatementVisitor.parameters]。
+ *
+ * 算子在生成时就绑定了表的快照，而且带有执行状态，不能在多次执行之间共用，所以缓存的只是参数化之后解析好的语句，
+ * 省下的是改写和语法解析；条件的编译、连接顺序的选择和算子树的生成仍在每次执行时按参数重新进行。
+ * 解析好的语句不依赖表结构，建表和删表时不需要丢弃条目。
+ * 缓存的条目数不超过 [ExecutionConfig.PLAN_CACHE_SIZE]，满了以后淘汰最久没有用到的条目
+ */
+object PlanCache {
+    private val entries = object : LinkedHashMap<String, Plan>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Plan>?): Boolean =
+            size > ExecutionConfig.PLAN_CACHE_SIZE
+    }
+    private val hitCounter = AtomicLong()
+    private val missCounter = AtomicLong()
+
+    /**
+     * 命中缓存的次数
+     */
+    val hits: Long
+        get() = hitCounter.get()
+
+    /**
+     * 没有命中、需要解析语句的次数
+     */
+    val misses: Long
+        get() = missCounter.get()
+
+    /**
+     * 当前缓存的条目数
+     */
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    /**
+     * 可以执行的语句
+     * @param parameters 语句中第 n 个参数占位符的值在第 n - 1 个位置
+     * @param text 常量换成参数占位符之后的语句文本，没有参数化时为原语句
+     */
+    class Prepared(val statement: SQLStatement, val parameters: List<Any?>, val text: String)
+
+    /**
+     * @param statement 参数化之后的语句，解析失败或不是查询语句时为 null，即不缓存原语句
+     */
+    private class Plan(val statement: DMLQueryStatement?)
+
+    /**
+     * 解析一条语句，查询语句优先从缓存中取
+     */
+    fun prepare(sql: String): Prepared {
+        val normalized = normalize(sql) ?: return Prepared(SQLParser.parse(sql), emptyList(), sql)
+        synchronized(entries) { entries[normalized.text] }?.let { entry ->
+            if (entry.statement == null) {
+                missCounter.incrementAndGet()
+                return Prepared(SQLParser.parse(sql), emptyList(), sql)
+            }
+            hitCounter.incrementAndGet()
+            return Prepared(entry.statement, normalized.parameters, normalized.text)
+        }
+        missCounter.incrementAndGet()
+        if (normalized.parameters.isEmpty()) {
+            val statement = SQLParser.parse(sql)
+            synchronized(entries) { entries[normalized.text] = Plan(statement as? DMLQueryStatement) }
+            return Prepared(statement, emptyList(), sql)
+        }
+        // 参数化之后解析不了的语句，以后都直接解析原语句
+        val statement = try {
+            SQLParser.parse(normalized.text) as? DMLQueryStatement
+        } catch (e: Exception) {
+            null
+        }
+        synchronized(entries) { entries[normalized.text] = Plan(statement) }
+        return if (statement == null) {
+            Prepared(SQLParser.parse(sql), emptyList(), sql)
+        } else {
+            Prepared(statement, normalized.parameters, normalized.text)
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    fun clear() {
+        synchronized(entries) { entries.clear() }
+    }
+
+    /**
+     * @param text 常量换成参数占位符后的语句
+     * @param parameters 被换掉的常量，按出现的顺序排列
+     */
+    internal class Normalized(val text: String, val parameters: List<Any?>)
+
+    /**
+     * 把查询语句中的常量换成参数占位符
+     * 只替换 WHERE、ON、HAVING 子句中的常量，函数调用的括号里和 ANY、ALL 之后的常量保持原样，
+     * 带前缀的字符串（如 N'..'、x'..'）、双引号字符串以及科学计数法的数字也保持原样。
+     * 不是查询语句、语句中原本就有参数占位符或者无法识别时返回 null
+     */
+    internal fun normalize(sql: String): Normalized? {
+        val text = StringBuilder(sql.length)
+        val parameters = ArrayList<Any?>()
+        // 每层括号里能否替换常量，以及进入括号之前所在的子句
+        val parens = ArrayDeque<Pair<Boolean, String>>()
+        var clause = ""
+        // 紧挨在当前位置之前的单词（空白和注释除外），大写
+        var word = ""
+        var first = true
+        var i = 0
+        while (i < sql.length) {
+            val c = sql[i]
+            if (c.isWhitespace()) {
+                text.append(c)
+                i++
+                continue
+            }
+            if (c == '#' || sql.startsWith("--", i)) {
+                val end = sql.indexOf('\n', i).let { if (it < 0) sql.length else it }
+                text.append(sql, i, end)
+                i = end
+                continue
+            }
+            if (sql.startsWith("/*", i)) {
+                val end = sql.indexOf("*/", i + 2)
+                if (end < 0) {
+                    return null
+                }
+                text.append(sql, i, end + 2)
+                i = end + 2
+                continue
+            }
+            if (first) {
+                first = false
+                if (c != '(' && !sql.regionMatches(i, "SELECT", 0, 6, ignoreCase = true)) {
+                    return null
+                }
+            }
+            val allowed = clause in PARAMETER_CLAUSES && parens.lastOrNull()?.first != false
+            val previous = word
+            word = ""
+            when {
+                c == '\'' -> {
+                    val end = stringEnd(sql, i, c)
+                    if (end < 0) {
+                        return null
+                    }
+                    if (allowed && (i == 0 || !isWordPart(sql[i - 1]))) {
+                        // 与词法分析器一样，连续两个单引号当作转义的单引号
+                        val content = sql.substring(i + 1, end).replace("''", "\\'")
+                        parameters.add(LiteralString.getUnescapedString(content.toByteArray()))
+                        text.append('?')
+                    } else {
+                        text.append(sql, i, end + 1)
+                    }
+                    i = end + 1
+                }
+                c == '"' || c == '`' -> {
+                    val end = stringEnd(sql, i, c)
+                    if (end < 0) {
+                        return null
+                    }
+                    text.append(sql, i, end + 1)
+                    i = end + 1
+                }
+                c == '?' -> return null
+                c.isDigit() && (i == 0 || (!isWordPart(sql[i - 1]) && sql[i - 1] != '.')) -> {
+                    var end = i
+                    while (end < sql.length && sql[end].isDigit()) end++
+                    var decimal = false
+                    if (end < sql.length && sql[end] == '.') {
+                        decimal = true
+                        end++
+                        while (end < sql.length && sql[end].isDigit()) end++
+                    }
+                    if (end < sql.length && (isWordPart(sql[end]) || sql[end] == '.')) {
+                        // 十六进制、科学计数法或以数字开头的标识符
+                        while (end < sql.length && (isWordPart(sql[end]) || sql[end] == '.')) end++
+                        text.append(sql, i, end)
+                    } else if (allowed) {
+                        parameters.add(numberOf(sql.substring(i, end), decimal))
+                        text.append('?')
+                    } else {
+                        text.append(sql, i, end)
+                    }
+                    i = end
+                }
+                isWordPart(c) -> {
+                    var end = i
+                    while (end < sql.length && (isWordPart(sql[end]) || sql[end] == '.')) end++
+                    val token = sql.substring(i, end)
+                    word = token.uppercase()
+                    if (word in CLAUSES) {
+                        clause = word
+                    }
+                    text.append(token)
+                    i = end
+                }
+                c == '(' -> {
+                    // 函数调用的参数保持原样，如 CAST('1' AS CHAR)、ANY ('{1,2}')
+                    val function = previous.isNotEmpty() && previous !in NON_FUNCTION_KEYWORDS
+                    parens.addLast(Pair(allowed && !function, clause))
+                    text.append(c)
+                    i++
+                }
+                c == ')' -> {
+                    parens.removeLastOrNull()?.let { clause = it.second }
+                    text.append(c)
+                    i++
+                }
+                else -> {
+                    text.append(c)
+                    i++
+                }
+            }
+        }
+        return Normalized(text.toString(), parameters)
+    }
+
+    /**
+     * 从位置 [start] 的引号开始，找到与之配对的结束引号的位置，找不到时返回 -1
+     * 引号连写两次表示引号本身；单引号字符串中反斜杠转义下一个字符
+     */
+    private fun stringEnd(sql: String, start: Int, quote: Char): Int {
+        var i = start + 1
+        while (i < sql.length) {
+            val c = sql[i]
+            when {
+                c == '\\' && quote == '\'' -> i += 2
+                c == quote && i + 1 < sql.length && sql[i + 1] == quote -> i += 2
+                c == quote -> return i
+                else -> i++
+            }
+        }
+        return -1
+    }
+
+    private fun isWordPart(c: Char): Boolean = c.isLetterOrDigit() || c == '_' || c == '$' || c == '@'
+
+    /**
+     * 按词法分析器的规则转换数字常量：整数按位数选择 Int、Long 或 BigInteger，小数为 BigDecimal
+     */
+    private fun numberOf(text: String, decimal: Boolean): Number =
+        when {
+            decimal -> BigDecimal(text)
+            text.length < 10 || text.length == 10 && (text[0] < '2' || text[0] == '2' && text[1] == '0') -> text.toInt()
+            text.length < 19 || text.length == 19 && text[0] < '9' -> text.toLong()
+            else -> BigInteger(text)
+        }
+
+    /**
+     * 常量可以替换成参数的子句
+     */
+    private val PARAMETER_CLAUSES = setOf("WHERE", "ON", "HAVING")
+
+    /**
+     * 会切换子句的关键字
+     */
+    private val CLAUSES = setOf(
+        "SELECT", "FROM", "JOIN", "WHERE", "ON", "USING", "GROUP", "HAVING", "ORDER", "LIMIT", "OFFSET",
+        "UNION", "INTO", "FOR", "LOCK", "WINDOW"
+    )
+
+    /**
+     * 后面跟着括号时不是函数调用的关键字
+     */
+    private val NON_FUNCTION_KEYWORDS = setOf(
+        "SELECT", "FROM", "JOIN", "WHERE", "ON", "HAVING", "AND", "OR", "XOR", "NOT", "IN", "EXISTS", "IS",
+        "LIKE", "BETWEEN", "CASE", "WHEN", "THEN", "ELSE", "UNION", "DISTINCT", "AS", "BY", "USING"
+    )
+}
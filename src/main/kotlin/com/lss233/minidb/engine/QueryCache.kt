@@ -0,0 +1,262 @@
+package com.lss233.minidb.engine
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.memory.Table
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.ScanOperator
+import com.lss233.minidb.engine.operator.SpillFile
+import com.lss233.minidb.engine.schema.Column
+import com.lss233.minidb.engine.visitor.SelectStatementVisitor
+import miniDB.parser.ast.expression.primary.SysVarPrimary
+import miniDB.parser.ast.expression.primary.UsrDefVarPrimary
+import miniDB.parser.ast.expression.primary.function.FunctionExpression
+import miniDB.parser.ast.stmt.SQLStatement
+import miniDB.parser.ast.stmt.dml.DMLSelectStatement
+import miniDB.parser.ast.stmt.dml.DMLSelectStatement.QueryCacheStrategy
+import miniDB.parser.ast.stmt.dml.DMLSelectUnionStatement
+import miniDB.parser.visitor.Visitor
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 查询结果缓存
+ * 以参数化之后的语句文本、参数和当前数据库为键，缓存查询的全部结果，再次执行相同的查询时直接从内存中输出。
+ *
+ * 是否缓存由会话变量 [ExecutionConfig.QUERY_CACHE_TYPE_VARIABLE] 和语句中的 SQL_CACHE、SQL_NO_CACHE 决定，与 MySQL 相同：
+ * OFF 时不缓存；DEMAND（默认）时只缓存带 SQL_CACHE 的语句；ON 时缓存除 SQL_NO_CACHE 以外的所有语句。
+ *
+ * 每个结果记下生成时读取的各表的 [Table.version]，表被插入或修改过行之后，取结果时发现版本不同即丢弃；
+ * 建表和删表时丢弃读取过这张表的结果。读取了视图、调用了 NOW() 等结果不确定的函数或用到变量的查询不缓存。
+ * 结果占用的内存按 [SpillFile.estimateSize] 估算，总量不超过 [ExecutionConfig.QUERY_CACHE_SIZE]，
+ * 超出时淘汰最久没有用到的结果
+ */
+object QueryCache {
+    private val entries = LinkedHashMap<Key, Result>(16, 0.75f, true)
+    private var bytes = 0L
+    private val hitCounter = AtomicLong()
+    private val insertCounter = AtomicLong()
+
+    /**
+     * 从缓存中输出结果的次数
+     */
+    val hits: Long
+        get() = hitCounter.get()
+
+    /**
+     * 放入缓存的结果数
+     */
+    val inserts: Long
+        get() = insertCounter.get()
+
+    /**
+     * 当前缓存的结果数
+     */
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    /**
+     * 当前缓存的结果占用的内存（估算的字节数）
+     */
+    val usedBytes: Long
+        get() = synchronized(entries) { bytes }
+
+    /**
+     * @param text 参数化之后的语句文本
+     * @param parameters 语句的参数
+     * @param database 会话当前的数据库
+     */
+    private data class Key(val text: String, val parameters: List<Any?>, val database: String?)
+
+    /**
+     * 缓存的结果
+     * @param reads 生成结果时读取的表和当时的版本
+     */
+    private class Result(
+        val columns: MutableList<Column>,
+        val rows: MutableList<Array<Any>>,
+        val reads: List<Pair<Table, Long>>,
+        val bytes: Long
+    )
+
+    /**
+     * 取得缓存的查询结果，没有缓存或已经过期时返回 null
+     */
+    fun get(prepared: PlanCache.Prepared): Operator? {
+        val key = keyOf(prepared) ?: return null
+        val result = synchronized(entries) {
+            val result = entries[key] ?: return null
+            if (result.reads.any { (table, version) -> table.version != version }) {
+                remove(key)
+                return null
+            }
+            result
+        }
+        hitCounter.incrementAndGet()
+        return ScanOperator(Relation(result.columns, result.rows))
+    }
+
+    /**
+     * 需要缓存结果时，返回一个在输出时记录结果的算子，完整输出一遍之后放入缓存；不需要缓存时原样返回查询计划
+     */
+    fun record(prepared: PlanCache.Prepared, visitor: SelectStatementVisitor): Operator? {
+        val plan = visitor.plan ?: return null
+        val key = keyOf(prepared) ?: return plan
+        val reads = visitor.reads.map { (view, version) -> Pair(view as? Table ?: return plan, version) }
+        if (!isDeterministic(prepared.statement)) {
+            return plan
+        }
+        return Recording(plan, key, reads)
+    }
+
+    /**
+     * 丢弃读取过表 [table] 的结果，建表和删表时调用
+     */
+    fun invalidate(table: String) {
+        synchronized(entries) {
+            entries.filterValues { result -> result.reads.any { it.first.name.equals(table, ignoreCase = true) } }
+                .keys.forEach { remove(it) }
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    fun clear() {
+        synchronized(entries) {
+            entries.clear()
+            bytes = 0
+        }
+    }
+
+    /**
+     * 按会话设置和语句中的选项判断是否使用缓存，使用时返回缓存的键，否则返回 null
+     */
+    private fun keyOf(prepared: PlanCache.Prepared): Key? {
+        val strategies = when (val statement = prepared.statement) {
+            is DMLSelectStatement -> listOf(statement.option.queryCache)
+            is DMLSelectUnionStatement -> statement.selectStmtList.map { it.option.queryCache }
+            else -> return null
+        }
+        if (QueryCacheStrategy.SQL_NO_CACHE in strategies) {
+            return null
+        }
+        val session = Engine.session.get()
+        val type = session?.properties?.get(ExecutionConfig.QUERY_CACHE_TYPE_VARIABLE)?.uppercase() ?: "DEMAND"
+        val enabled = when (type) {
+            "ON", "1" -> true
+            "DEMAND", "2" -> QueryCacheStrategy.SQL_CACHE in strategies
+            else -> false
+        }
+        if (!enabled) {
+            return null
+        }
+        return Key(prepared.text, prepared.parameters, session?.database ?: session?.properties?.get("database"))
+    }
+
+    private fun put(key: Key, result: Result) {
+        synchronized(entries) {
+            // 生成结果的过程中表已经被修改过，结果已经过期
+            if (result.reads.any { (table, version) -> table.version != version }) {
+                return
+            }
+            remove(key)
+            entries[key] = result
+            bytes += result.bytes
+            val iterator = entries.values.iterator()
+            while (bytes > ExecutionConfig.QUERY_CACHE_SIZE && iterator.hasNext()) {
+                bytes -= iterator.next().bytes
+                iterator.remove()
+            }
+        }
+        insertCounter.incrementAndGet()
+    }
+
+    private fun remove(key: Key) {
+        entries.remove(key)?.let { bytes -= it.bytes }
+    }
+
+    /**
+     * 语句中没有结果不确定的函数，也没有用到变量
+     */
+    private fun isDeterministic(statement: SQLStatement): Boolean {
+        var deterministic = true
+        statement.accept(object : Visitor() {
+            override fun visit(node: FunctionExpression) {
+                if (node.functionName.uppercase() in NONDETERMINISTIC_FUNCTIONS) {
+                    deterministic = false
+                }
+                super.visit(node)
+            }
+
+            override fun visit(node: SysVarPrimary) {
+                deterministic = false
+            }
+
+            override fun visit(node: UsrDefVarPrimary) {
+                deterministic = false
+            }
+        })
+        return deterministic
+    }
+
+    /**
+     * 结果不确定或与会话有关的函数
+     */
+    private val NONDETERMINISTIC_FUNCTIONS = setOf(
+        "NOW", "SYSDATE", "CURDATE", "CURTIME", "CURRENT_DATE", "CURRENT_TIME", "CURRENT_TIMESTAMP",
+        "LOCALTIME", "LOCALTIMESTAMP", "UNIX_TIMESTAMP", "UTC_DATE", "UTC_TIME", "UTC_TIMESTAMP",
+        "RAND", "UUID", "UUID_SHORT", "CONNECTION_ID", "LAST_INSERT_ID", "FOUND_ROWS", "ROW_COUNT",
+        "DATABASE", "SCHEMA", "USER", "CURRENT_USER", "SESSION_USER", "SYSTEM_USER", "SLEEP", "GET_LOCK",
+        "RELEASE_LOCK", "IS_FREE_LOCK", "IS_USED_LOCK", "MASTER_POS_WAIT", "BENCHMARK"
+    )
+
+    /**
+     * 原样输出查询计划的结果，同时记下输出的行
+     * 完整输出一遍之后把结果放入缓存，中途关闭或结果超过 [ExecutionConfig.QUERY_CACHE_RESULT_LIMIT] 时不缓存
+     */
+    private class Recording(
+        private val child: Operator,
+        private val key: Key,
+        private val reads: List<Pair<Table, Long>>
+    ) : Operator() {
+        override val columns: MutableList<Column> = child.columns
+        private var rows: ArrayList<Array<Any>>? = null
+        private var bytes = 0L
+
+        init {
+            alias = child.alias
+        }
+
+        override fun open() {
+            rows = ArrayList()
+            bytes = 0
+            child.open()
+        }
+
+        override fun next(): Array<Any>? {
+            val row = child.next()
+            val recorded = rows ?: return row
+            if (row == null) {
+                rows = null
+                put(key, Result(columns, recorded, reads, bytes))
+                return null
+            }
+            bytes += SpillFile.estimateSize(row)
+            if (bytes > ExecutionConfig.QUERY_CACHE_RESULT_LIMIT) {
+                rows = null
+            } else {
+                recorded.add(row)
+            }
+            return row
+        }
+
+        override fun close() {
+            rows = null
+            child.close()
+        }
+
+        override fun estimatedRows(): Long = child.estimatedRows()
+
+        override fun orderedBy(slot: Int): Boolean = child.orderedBy(slot)
+    }
+}
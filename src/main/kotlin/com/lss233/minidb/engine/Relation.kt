@@ -1,5 +1,7 @@
 package com.lss233.minidb.engine
 
+import com.lss233.minidb.engine.operator.HashJoinOperator
+import com.lss233.minidb.engine.operator.ScanOperator
 import com.lss233.minidb.engine.schema.Column
 import com.lss233.minidb.utils.ConsoleTableBuilder
 import miniDB.parser.ast.expression.primary.Identifier
@@ -20,14 +22,19 @@ open class Relation(val columns: MutableList<Column>, val rows: MutableList<Arra
             }
             field = value
         }
-    val tuples: MutableList<NTuple> = rows.map { cols -> run {
-            val tuple = NTuple()
-            cols.forEachIndexed { index, any ->
-                tuple.add(Cell(columns[index], any))
+    /**
+     * 以元组形式访问的行，第一次访问时才创建
+     */
+    val tuples: MutableList<NTuple> by lazy {
+        rows.map { cols -> run {
+                val tuple = NTuple()
+                cols.forEachIndexed { index, any ->
+                    tuple.add(Cell(columns[index], any))
+                }
+                tuple
             }
-            tuple
-        }
-    }.toMutableList();
+        }.toMutableList()
+    }
 
     fun clone() = Relation(mutableListOf<Column>().also { it.addAll(columns) }, mutableListOf<Array<Any>>().also { it.addAll(rows) })
 
@@ -76,8 +83,7 @@ infix fun select(cond: Predicate<NTuple>): Relation =
     }
 
 fun innerJoin(relation: Relation, condition: Predicate<NTuple>): Relation {
-    val columns = columns.map { i -> if (alias == null) i else Column(Identifier(Identifier(null, alias), i.name)) }.toMutableList()
-    columns.addAll(relation.columns.map { i -> if (relation.alias == null) i else Column(Identifier(Identifier(null, relation.alias), i.name)) })
+    val columns = joinedColumns(relation)
     val rows = ArrayList<NTuple>()
     for(leftRow in tuples) {
         for(rightRow in relation.tuples) {
@@ -93,8 +99,7 @@ fun innerJoin(relation: Relation, condition: Predicate<NTuple>): Relation {
     return Relation(columns.toMutableList(), rows.map { it.toArray() }.toMutableList());
 }
     fun outerJoin(relation: Relation, leftJoin: Boolean, condition: Predicate<NTuple>): Relation {
-        val columns = columns.map { i -> if (alias == null) i else Column(Identifier(Identifier(null, alias), i.name)) }.toMutableList()
-        columns.addAll(relation.columns.map { i -> if (relation.alias == null) i else Column(Identifier(Identifier(null, relation.alias), i.name)) })
+        val columns = joinedColumns(relation)
         val rows = ArrayList<NTuple>()
         if(leftJoin) {
             for(leftRow in tuples) {
@@ -127,18 +132,49 @@ fun innerJoin(relation: Relation, condition: Predicate<NTuple>): Relation {
                     tuple.addAll(rightRow)
                     if(condition.test(tuple)) {
                         rows.add(tuple)
+                        linked = true
                     }
                 }
                 if(!linked) {
                     val tuple = NTuple()
                     tuple.columns = arrayListOf(*columns.toTypedArray())
-                    tuple.addAll(columns.map { Cell(it, null) })
+                    tuple.addAll(this.columns.map { Cell(it, null) })
                     tuple.addAll(rightRow)
+                    rows.add(tuple)
                 }
             }
         }
         return Relation(columns.toMutableList(), rows.map { it.toArray() }.toMutableList());
     }
+
+    /**
+     * 哈希连接
+     * 在行数较少的一侧按连接键建立哈希表，再逐行探测另一侧，
+     * 只有键相等的行对才会被拼接，复杂度由 O(n·m) 降为 O(n + m)
+     * @param relation 右表
+     * @param leftKeys 左表中参与等值比较的列下标
+     * @param rightKeys 右表中参与等值比较的列下标，与 leftKeys 一一对应
+     * @param joinType 连接类型
+     * @param residual 等值条件以外的剩余连接条件，没有则为 null
+     */
+    fun hashJoin(relation: Relation, leftKeys: IntArray, rightKeys: IntArray, joinType: JoinType, residual: Predicate<Array<Any>>?): Relation =
+        HashJoinOperator(ScanOperator(this), ScanOperator(relation), leftKeys, rightKeys, joinType, residual).toRelation()
+
+    /**
+     * 连接后的列，带别名的关系会用别名重新限定列名
+     */
+    private fun joinedColumns(relation: Relation): MutableList<Column> {
+        val columns = columns.map { i -> alias?.let { i.qualified(it) } ?: i }.toMutableList()
+        columns.addAll(relation.columns.map { i -> relation.alias?.let { i.qualified(it) } ?: i })
+        return columns
+    }
+
+    /**
+     * 在当前关系中查找标识符对应的列下标
+     * 找不到或匹配到多个列时返回 -1
+     */
+    fun indexOf(identifier: Identifier): Int = indexOf(columns, identifier)
+
     fun naturalJoin(relation: Relation) {
 
     }
@@ -163,5 +199,33 @@ fun innerJoin(relation: Relation, condition: Predicate<NTuple>): Relation {
         fun empty(): Relation {
             return Relation(mutableListOf(), mutableListOf())
         }
+
+        /**
+         * 在列中查找标识符对应的列下标
+         * 找不到或匹配到多个列时返回 -1
+         */
+        fun indexOf(columns: List<Column>, identifier: Identifier): Int {
+            var found = -1
+            columns.forEachIndexed { index, column ->
+                if (matches(column, identifier)) {
+                    if (found >= 0) {
+                        return -1
+                    }
+                    found = index
+                }
+            }
+            return found
+        }
+
+        /**
+         * 判断标识符是否指向该列
+         * 任意一方没有限定名时只比较列名
+         */
+        fun matches(column: Column, identifier: Identifier): Boolean =
+            if (identifier.parent == null || column.identifier.parent == null) {
+                identifier.idText == column.identifier.idText
+            } else {
+                column.identifier.idTextWithParentUpUnescape == identifier.idTextWithParentUpUnescape
+            }
     }
 }
@@ -0,0 +1,122 @@
+package com.lss233.minidb.engine.aggregate
+
+import com.lss233.minidb.engine.expression.ColumnEvaluator
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.expression.ValueType
+import com.lss233.minidb.engine.vector.Batch
+
+/**
+ * 聚合函数
+ * 每个分组的中间状态按分组编号存放在基本类型的数组里，不为每个分组单独创建累加器对象。
+ * 分组由聚合算子编号，编号从 0 开始连续分配，新分组出现时算子会先调用 [resize]
+ * @param arguments 参数，COUNT(*) 没有参数
+ * @param distinct 是否只累加不重复的参数值
+ */
+abstract class Aggregator(val arguments: List<Evaluator>, private val distinct: Boolean) {
+    /**
+     * 聚合结果的类型
+     */
+    abstract val type: ValueType
+
+    /**
+     * 分组数组的容量
+     */
+    protected var capacity = 0
+        private set
+
+    /**
+     * DISTINCT 时每个分组已经见过的参数值
+     */
+    private var seen = arrayOfNulls<HashSet<Any>>(0)
+
+    /**
+     * 保证分组编号小于 groups 的状态都已分配
+     */
+    fun resize(groups: Int) {
+        if (groups <= capacity) {
+            return
+        }
+        capacity = maxOf(groups, capacity + (capacity shr 1), 16)
+        grow(capacity)
+        if (distinct) {
+            seen = seen.copyOf(capacity)
+        }
+    }
+
+    /**
+     * 丢弃全部分组的状态
+     */
+    fun clear() {
+        capacity = 0
+        grow(0)
+        seen = arrayOfNulls(0)
+    }
+
+    /**
+     * 把一行累加到分组
+     */
+    fun add(group: Int, row: Array<Any>) {
+        if (distinct && !firstSeen(group, row)) {
+            return
+        }
+        accumulate(group, row)
+    }
+
+    /**
+     * 把一批中被选中的行累加到各自的分组
+     * 默认逐行取出数据再调用 [add]，参数是单独一列时子类会直接在列向量上累加
+     * @param groups groups[i] 是 selection[i] 这一行所在的分组
+     * @param count 被选中的行数
+     */
+    open fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val row = arrayOfNulls<Any>(batch.vectors.size)
+        for (position in 0 until count) {
+            add(groups[position], batch.fill(batch.selection[position], row))
+        }
+    }
+
+    /**
+     * 分组的聚合结果，没有结果时为 null
+     */
+    abstract fun result(group: Int): Any?
+
+    /**
+     * 把分组状态扩展到新的容量
+     */
+    protected abstract fun grow(capacity: Int)
+
+    /**
+     * 把一行累加到分组，DISTINCT 已经处理过
+     */
+    protected abstract fun accumulate(group: Int, row: Array<Any>)
+
+    /**
+     * 可以直接在列向量上累加时返回参数所在的列下标，否则返回 -1
+     * 只有不带 DISTINCT、参数恰好是一列时才行
+     */
+    protected fun vectorSlot(): Int {
+        val argument = arguments.singleOrNull()
+        return if (!distinct && argument is ColumnEvaluator) argument.slot else -1
+    }
+
+    /**
+     * 参数值在分组中是否第一次出现，参数中有 NULL 的行不参与聚合
+     */
+    private fun firstSeen(group: Int, row: Array<Any>): Boolean {
+        val key: Any = if (arguments.size == 1) {
+            normalize(arguments[0].evaluate(row) ?: return false)
+        } else {
+            arguments.map { normalize(it.evaluate(row) ?: return false) }
+        }
+        val values = seen[group] ?: HashSet<Any>().also { seen[group] = it }
+        return values.add(key)
+    }
+
+    companion object {
+        /**
+         * 整数统一成 Long，使 1 和 1L 落在同一个哈希桶里
+         */
+        fun normalize(value: Any): Any = if (ExpressionCompiler.isIntegral(value)) ExpressionCompiler.toLong(value) else value
+    }
+}
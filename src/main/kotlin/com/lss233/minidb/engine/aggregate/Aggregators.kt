@@ -0,0 +1,445 @@
+package com.lss233.minidb.engine.aggregate
+
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.expression.ValueType
+import com.lss233.minidb.engine.vector.Batch
+import com.lss233.minidb.engine.vector.DoubleVector
+import com.lss233.minidb.engine.vector.LongVector
+
+/**
+ * COUNT，没有参数时（COUNT(*)）统计行数，否则统计参数都不为 NULL 的行数
+ */
+class CountAggregator(arguments: List<Evaluator>, distinct: Boolean) : Aggregator(arguments, distinct) {
+    override val type = ValueType.LONG
+    private var counts = LongArray(0)
+
+    override fun grow(capacity: Int) {
+        counts = counts.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        for (argument in arguments) {
+            if (argument.isNull(row)) {
+                return
+            }
+        }
+        counts[group]++
+    }
+
+    override fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val slot = vectorSlot()
+        val vector = if (slot >= 0) batch.vectors[slot] else null
+        if (arguments.isEmpty() && slot < 0 || vector != null && !vector.hasNulls) {
+            for (position in 0 until count) {
+                counts[groups[position]]++
+            }
+        } else if (vector != null) {
+            val selection = batch.selection
+            for (position in 0 until count) {
+                if (!vector.isNull(selection[position])) {
+                    counts[groups[position]]++
+                }
+            }
+        } else {
+            super.addBatch(batch, groups, count)
+        }
+    }
+
+    override fun result(group: Int): Any = counts[group]
+}
+
+/**
+ * SUM
+ * 整数部分和小数部分分开累加，全部是整数时结果为整数，没有非 NULL 的值时结果为 NULL
+ */
+class SumAggregator(arguments: List<Evaluator>, distinct: Boolean) : Aggregator(arguments, distinct) {
+    private val argument = arguments[0]
+    override val type = if (argument.type.isNumeric) argument.type else ValueType.ANY
+    private var longs = LongArray(0)
+    private var doubles = DoubleArray(0)
+    private var counts = LongArray(0)
+    private var fractional = BooleanArray(0)
+
+    override fun grow(capacity: Int) {
+        longs = longs.copyOf(capacity)
+        doubles = doubles.copyOf(capacity)
+        counts = counts.copyOf(capacity)
+        fractional = fractional.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        when (argument.type) {
+            ValueType.LONG -> {
+                if (argument.isNull(row)) {
+                    return
+                }
+                longs[group] += argument.evaluateLong(row)
+            }
+            ValueType.DOUBLE -> {
+                if (argument.isNull(row)) {
+                    return
+                }
+                doubles[group] += argument.evaluateDouble(row)
+                fractional[group] = true
+            }
+            else -> {
+                val value = argument.evaluate(row) ?: return
+                if (ExpressionCompiler.isIntegral(value)) {
+                    longs[group] += ExpressionCompiler.toLong(value)
+                } else {
+                    doubles[group] += ExpressionCompiler.toDouble(value)
+                    fractional[group] = true
+                }
+            }
+        }
+        counts[group]++
+    }
+
+    override fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val slot = vectorSlot()
+        val vector = if (slot >= 0) batch.vectors[slot] else null
+        val selection = batch.selection
+        when {
+            vector is LongVector -> {
+                val values = vector.values
+                for (position in 0 until count) {
+                    val index = selection[position]
+                    if (!vector.isNull(index)) {
+                        val group = groups[position]
+                        longs[group] += values[index]
+                        counts[group]++
+                    }
+                }
+            }
+            vector is DoubleVector -> {
+                val values = vector.values
+                for (position in 0 until count) {
+                    val index = selection[position]
+                    if (!vector.isNull(index)) {
+                        val group = groups[position]
+                        doubles[group] += values[index]
+                        counts[group]++
+                        fractional[group] = true
+                    }
+                }
+            }
+            else -> super.addBatch(batch, groups, count)
+        }
+    }
+
+    override fun result(group: Int): Any? =
+        when {
+            counts[group] == 0L -> null
+            fractional[group] -> longs[group] + doubles[group]
+            else -> longs[group]
+        }
+}
+
+/**
+ * AVG，结果为浮点数
+ */
+class AvgAggregator(arguments: List<Evaluator>, distinct: Boolean) : Aggregator(arguments, distinct) {
+    private val argument = arguments[0]
+    override val type = ValueType.DOUBLE
+    private var sums = DoubleArray(0)
+    private var counts = LongArray(0)
+
+    override fun grow(capacity: Int) {
+        sums = sums.copyOf(capacity)
+        counts = counts.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        if (argument.isNull(row)) {
+            return
+        }
+        sums[group] += argument.evaluateDouble(row)
+        counts[group]++
+    }
+
+    override fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val slot = vectorSlot()
+        val vector = if (slot >= 0) batch.vectors[slot] else null
+        val selection = batch.selection
+        when (vector) {
+            is LongVector -> {
+                val values = vector.values
+                for (position in 0 until count) {
+                    val index = selection[position]
+                    if (!vector.isNull(index)) {
+                        sums[groups[position]] += values[index].toDouble()
+                        counts[groups[position]]++
+                    }
+                }
+            }
+            is DoubleVector -> {
+                val values = vector.values
+                for (position in 0 until count) {
+                    val index = selection[position]
+                    if (!vector.isNull(index)) {
+                        sums[groups[position]] += values[index]
+                        counts[groups[position]]++
+                    }
+                }
+            }
+            else -> super.addBatch(batch, groups, count)
+        }
+    }
+
+    override fun result(group: Int): Any? = if (counts[group] == 0L) null else sums[group] / counts[group]
+}
+
+/**
+ * MIN 和 MAX
+ * 整数和浮点数参数用基本类型数组保存当前的极值，其它类型按 [ExpressionCompiler.compareValues] 比较
+ * @param max true 为 MAX，false 为 MIN
+ */
+class ExtremeAggregator(arguments: List<Evaluator>, distinct: Boolean, private val max: Boolean) : Aggregator(arguments, distinct) {
+    private val argument = arguments[0]
+    override val type = argument.type
+    private var longs = LongArray(0)
+    private var doubles = DoubleArray(0)
+    private var objects = arrayOfNulls<Any>(0)
+    private var present = BooleanArray(0)
+
+    override fun grow(capacity: Int) {
+        when (type) {
+            ValueType.LONG -> longs = longs.copyOf(capacity)
+            ValueType.DOUBLE -> doubles = doubles.copyOf(capacity)
+            else -> objects = objects.copyOf(capacity)
+        }
+        present = present.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        when (type) {
+            ValueType.LONG -> if (!argument.isNull(row)) {
+                offerLong(group, argument.evaluateLong(row))
+            }
+            ValueType.DOUBLE -> if (!argument.isNull(row)) {
+                offerDouble(group, argument.evaluateDouble(row))
+            }
+            else -> {
+                val value = argument.evaluate(row) ?: return
+                val current = objects[group]
+                if (current == null || ExpressionCompiler.compareValues(value, current).let { if (max) it > 0 else it < 0 }) {
+                    objects[group] = value
+                }
+                present[group] = true
+            }
+        }
+    }
+
+    override fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val slot = vectorSlot()
+        val vector = if (slot >= 0) batch.vectors[slot] else null
+        val selection = batch.selection
+        if (type == ValueType.LONG && vector is LongVector) {
+            val values = vector.values
+            for (position in 0 until count) {
+                val index = selection[position]
+                if (!vector.isNull(index)) {
+                    offerLong(groups[position], values[index])
+                }
+            }
+        } else if (type == ValueType.DOUBLE && vector is DoubleVector) {
+            val values = vector.values
+            for (position in 0 until count) {
+                val index = selection[position]
+                if (!vector.isNull(index)) {
+                    offerDouble(groups[position], values[index])
+                }
+            }
+        } else {
+            super.addBatch(batch, groups, count)
+        }
+    }
+
+    private fun offerLong(group: Int, value: Long) {
+        if (!present[group] || (if (max) value > longs[group] else value < longs[group])) {
+            longs[group] = value
+            present[group] = true
+        }
+    }
+
+    private fun offerDouble(group: Int, value: Double) {
+        if (!present[group] || (if (max) value > doubles[group] else value < doubles[group])) {
+            doubles[group] = value
+            present[group] = true
+        }
+    }
+
+    override fun result(group: Int): Any? =
+        when {
+            !present[group] -> null
+            type == ValueType.LONG -> longs[group]
+            type == ValueType.DOUBLE -> doubles[group]
+            else -> objects[group]
+        }
+}
+
+/**
+ * 方差和标准差，用 Welford 算法逐行更新均值和离差平方和
+ * @param sample true 为样本方差（除以 n - 1），false 为总体方差（除以 n）
+ * @param root 是否开平方得到标准差
+ */
+class VarianceAggregator(
+    arguments: List<Evaluator>,
+    distinct: Boolean,
+    private val sample: Boolean,
+    private val root: Boolean
+) : Aggregator(arguments, distinct) {
+    private val argument = arguments[0]
+    override val type = ValueType.DOUBLE
+    private var counts = LongArray(0)
+    private var means = DoubleArray(0)
+    private var squares = DoubleArray(0)
+
+    override fun grow(capacity: Int) {
+        counts = counts.copyOf(capacity)
+        means = means.copyOf(capacity)
+        squares = squares.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        if (!argument.isNull(row)) {
+            offer(group, argument.evaluateDouble(row))
+        }
+    }
+
+    override fun addBatch(batch: Batch, groups: IntArray, count: Int) {
+        val slot = vectorSlot()
+        val vector = if (slot >= 0) batch.vectors[slot] else null
+        val selection = batch.selection
+        when (vector) {
+            is LongVector -> for (position in 0 until count) {
+                val index = selection[position]
+                if (!vector.isNull(index)) {
+                    offer(groups[position], vector.values[index].toDouble())
+                }
+            }
+            is DoubleVector -> for (position in 0 until count) {
+                val index = selection[position]
+                if (!vector.isNull(index)) {
+                    offer(groups[position], vector.values[index])
+                }
+            }
+            else -> super.addBatch(batch, groups, count)
+        }
+    }
+
+    private fun offer(group: Int, value: Double) {
+        val count = ++counts[group]
+        val delta = value - means[group]
+        means[group] += delta / count
+        squares[group] += delta * (value - means[group])
+    }
+
+    override fun result(group: Int): Any? {
+        val count = counts[group]
+        if (count == 0L || sample && count == 1L) {
+            return null
+        }
+        val variance = squares[group] / (if (sample) count - 1 else count)
+        return if (root) Math.sqrt(variance) else variance
+    }
+}
+
+/**
+ * BIT_AND、BIT_OR 和 BIT_XOR
+ */
+class BitAggregator(arguments: List<Evaluator>, private val op: BitOp) : Aggregator(arguments, false) {
+    private val argument = arguments[0]
+    override val type = ValueType.LONG
+    private var values = LongArray(0)
+
+    /**
+     * 位运算，identity 是没有任何行时的结果
+     */
+    enum class BitOp(val identity: Long) {
+        AND(-1L), OR(0L), XOR(0L)
+    }
+
+    override fun grow(capacity: Int) {
+        val size = values.size
+        values = values.copyOf(capacity)
+        if (capacity > size) {
+            values.fill(op.identity, size, capacity)
+        }
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        if (argument.isNull(row)) {
+            return
+        }
+        val value = argument.evaluateLong(row)
+        values[group] = when (op) {
+            BitOp.AND -> values[group] and value
+            BitOp.OR -> values[group] or value
+            BitOp.XOR -> values[group] xor value
+        }
+    }
+
+    override fun result(group: Int): Any = values[group]
+}
+
+/**
+ * GROUP_CONCAT
+ * 参数中有 NULL 的行被忽略，各参数拼接成一项，按 ORDER BY 排序后用分隔符连接
+ * @param orderBy 排序依据，没有时按读入顺序
+ * @param desc 是否降序
+ */
+class GroupConcatAggregator(
+    arguments: List<Evaluator>,
+    distinct: Boolean,
+    private val orderBy: List<Evaluator>,
+    private val desc: Boolean,
+    private val separator: String
+) : Aggregator(arguments, distinct) {
+    override val type = ValueType.STRING
+
+    /**
+     * 每个分组的各项，第 0 个元素是拼接好的字符串，其后是排序依据
+     */
+    private var entries = arrayOfNulls<ArrayList<Array<Any?>>>(0)
+
+    override fun grow(capacity: Int) {
+        entries = entries.copyOf(capacity)
+    }
+
+    override fun accumulate(group: Int, row: Array<Any>) {
+        val text = StringBuilder()
+        for (argument in arguments) {
+            text.append(argument.evaluate(row) ?: return)
+        }
+        val entry = arrayOfNulls<Any>(orderBy.size + 1)
+        entry[0] = text.toString()
+        orderBy.forEachIndexed { index, evaluator -> entry[index + 1] = evaluator.evaluate(row) }
+        (entries[group] ?: ArrayList<Array<Any?>>().also { entries[group] = it }).add(entry)
+    }
+
+    override fun result(group: Int): Any? {
+        val items = entries[group] ?: return null
+        if (orderBy.isNotEmpty()) {
+            val comparator = Comparator<Array<Any?>> { left, right ->
+                for (index in 1..orderBy.size) {
+                    val a = left[index]
+                    val b = right[index]
+                    val result = when {
+                        a == null && b == null -> 0
+                        a == null -> -1
+                        b == null -> 1
+                        else -> ExpressionCompiler.compareValues(a, b)
+                    }
+                    if (result != 0) {
+                        return@Comparator result
+                    }
+                }
+                0
+            }
+            items.sortWith(if (desc) comparator.reversed() else comparator)
+        }
+        return items.joinToString(separator) { it[0] as String }
+    }
+}
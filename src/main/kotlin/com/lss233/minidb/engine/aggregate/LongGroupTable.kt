@@ -0,0 +1,84 @@
+package com.lss233.minidb.engine.aggregate
+
+/**
+ * 以整数为键的分组哈希表
+ * 开放寻址、线性探测，键和分组编号都放在基本类型的数组里，查找时不需要装箱
+ */
+class LongGroupTable {
+    private var keys = LongArray(INITIAL_CAPACITY)
+
+    /**
+     * 分组编号加一，0 表示空槽
+     */
+    private var groups = IntArray(INITIAL_CAPACITY)
+    private var mask = INITIAL_CAPACITY - 1
+    private var used = 0
+
+    /**
+     * 查找键对应的分组编号，不存在时登记为 newGroup
+     * @return 已有的分组编号，新登记的键返回 newGroup
+     */
+    fun findOrInsert(key: Long, newGroup: Int): Int {
+        var slot = hash(key) and mask
+        while (true) {
+            val group = groups[slot]
+            if (group == 0) {
+                keys[slot] = key
+                groups[slot] = newGroup + 1
+                if (++used * 2 > keys.size) {
+                    rehash()
+                }
+                return newGroup
+            }
+            if (keys[slot] == key) {
+                return group - 1
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    /**
+     * 查找键对应的分组编号，不存在时返回 -1
+     */
+    fun find(key: Long): Int {
+        var slot = hash(key) and mask
+        while (true) {
+            val group = groups[slot]
+            if (group == 0 || keys[slot] == key) {
+                return group - 1
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    private fun rehash() {
+        val oldKeys = keys
+        val oldGroups = groups
+        keys = LongArray(oldKeys.size * 2)
+        groups = IntArray(oldGroups.size * 2)
+        mask = keys.size - 1
+        for (index in oldKeys.indices) {
+            if (oldGroups[index] != 0) {
+                var slot = hash(oldKeys[index]) and mask
+                while (groups[slot] != 0) {
+                    slot = (slot + 1) and mask
+                }
+                keys[slot] = oldKeys[index]
+                groups[slot] = oldGroups[index]
+            }
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+
+        /**
+         * 打散键的低位，连续的整数键不会挤在相邻的槽里
+         */
+        private fun hash(key: Long): Int {
+            var h = key * -0x61c8864680b583ebL
+            h = h xor (h ushr 32)
+            return h.toInt() xor (h ushr 16).toInt()
+        }
+    }
+}
@@ -22,6 +22,11 @@ class DBConfig {
          */
         const val DATA_FILE:String = DB_ROOT_PATH + "Data\\"
 
+        /**
+         * 查询执行时溢出到磁盘的临时文件位置
+         */
+        const val TEMP_FILE:String = DB_ROOT_PATH + "Temp\\"
+
         /**
          * 每一次IO读取的块数
          */
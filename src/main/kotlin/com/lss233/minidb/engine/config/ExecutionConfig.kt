@@ -0,0 +1,115 @@
+package com.lss233.minidb.engine.config
+
+/**
+ * 查询执行的配置项
+ */
+class ExecutionConfig {
+
+    companion object {
+
+        /**
+         * 排序时内存中最多缓存的数据量（估算的字节数），超过后把已排好序的数据写到临时文件
+         */
+        const val SORT_BUFFER_SIZE: Long = 16L * 1024 * 1024
+
+        /**
+         * 去重时哈希集合最多占用的内存（估算的字节数），超过后新出现的行按哈希值分区写到临时文件
+         */
+        const val DISTINCT_BUFFER_SIZE: Long = 16L * 1024 * 1024
+
+        /**
+         * 所有查询的算子合计最多预留的内存（字节），默认为 JVM 最大堆的一半
+         */
+        val GLOBAL_MEMORY_LIMIT: Long = Runtime.getRuntime().maxMemory() / 2
+
+        /**
+         * 单个查询的算子合计最多预留的内存（字节），超过时哈希表和排序缓存溢出到磁盘
+         */
+        const val QUERY_MEMORY_LIMIT: Long = 256L * 1024 * 1024
+
+        /**
+         * 会话中设置单个查询内存预算的系统变量，单位为字节，如 SET @@query_memory_limit = 67108864
+         */
+        const val QUERY_MEMORY_LIMIT_VARIABLE: String = "query_memory_limit"
+
+        /**
+         * 算子每次向内存管理申请的最小字节数
+         */
+        const val MEMORY_RESERVATION_CHUNK: Long = 256L * 1024
+
+        /**
+         * 参与连接的关系不超过这个数量时用动态规划枚举连接顺序，超过时改用贪心算法
+         */
+        const val JOIN_REORDER_DP_LIMIT: Int = 10
+
+        /**
+         * 默认的查询并行度，即并行扫描时同时执行的块数，也是共享线程池的线程数
+         */
+        val PARALLEL_DEGREE: Int = Runtime.getRuntime().availableProcessors()
+
+        /**
+         * 会话中设置并行度的系统变量，如 SET @@parallel_degree = 8，设为 1 时关闭并行扫描
+         */
+        const val PARALLEL_DEGREE_VARIABLE: String = "parallel_degree"
+
+        /**
+         * 表的行数达到这个数量时才并行扫描
+         */
+        const val PARALLEL_SCAN_THRESHOLD: Int = 64 * 1024
+
+        /**
+         * 并行扫描时每块包含的分段数
+         */
+        const val MORSEL_SEGMENTS: Int = 16
+
+        /**
+         * 哈希连接两侧的估计行数都达到这个数量时，按哈希值分区后并行连接
+         */
+        const val PARALLEL_JOIN_THRESHOLD: Long = 64L * 1024
+
+        /**
+         * 并行哈希连接时每个分区中建表一侧的目标行数，使分区的哈希表能放进处理器缓存
+         */
+        const val JOIN_PARTITION_ROWS: Int = 8 * 1024
+
+        /**
+         * 等值连接两侧的估计行数都超过这个数量时，不再在内存中建哈希表，改为排序后归并连接
+         */
+        const val HASH_JOIN_MAX_BUILD_ROWS: Long = 16L * 1024 * 1024
+
+        /**
+         * 哈希连接探测一侧的估计行数达到这个数量时，才把建表一侧的运行时过滤器下推到探测一侧的表扫描
+         */
+        const val RUNTIME_FILTER_MIN_PROBE_ROWS: Long = 4L * 1024
+
+        /**
+         * 建表一侧的键超过这个数量时运行时过滤器不建布隆过滤器，只检查整数键的范围
+         */
+        const val RUNTIME_FILTER_MAX_KEYS: Int = 4 * 1024 * 1024
+
+        /**
+         * 索引嵌套循环连接的外侧最多这么多行时逐行查索引，超过时改为普通的等值连接
+         */
+        const val INDEX_JOIN_MAX_OUTER_ROWS: Int = 1024
+
+        /**
+         * 查询计划缓存最多保存的语句数，超过时淘汰最久没有用到的
+         */
+        const val PLAN_CACHE_SIZE: Int = 256
+
+        /**
+         * 会话中设置查询结果缓存的系统变量：OFF 不缓存，DEMAND 只缓存带 SQL_CACHE 的查询，ON 缓存除 SQL_NO_CACHE 以外的查询
+         */
+        const val QUERY_CACHE_TYPE_VARIABLE: String = "query_cache_type"
+
+        /**
+         * 查询结果缓存占用的内存上限（估算的字节数），超过时淘汰最久没有用到的结果
+         */
+        const val QUERY_CACHE_SIZE: Long = 16L * 1024 * 1024
+
+        /**
+         * 单个查询结果超过这个大小（估算的字节数）时不缓存
+         */
+        const val QUERY_CACHE_RESULT_LIMIT: Long = 1024L * 1024
+    }
+}
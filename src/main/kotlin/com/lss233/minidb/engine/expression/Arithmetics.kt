@@ -0,0 +1,105 @@
+package com.lss233.minidb.engine.expression
+
+/**
+ * 算术运算符
+ */
+enum class ArithmeticOp(val symbol: String) {
+    ADD("+"), SUB("-"), MUL("*"), DIV("/"), INT_DIV("DIV"), MOD("%");
+
+    /**
+     * 除数为 0 时结果为 NULL 的运算符
+     */
+    val isDivision: Boolean
+        get() = this == DIV || this == INT_DIV || this == MOD
+}
+
+/**
+ * 算术表达式的公共部分，任意一侧为 NULL 时结果为 NULL
+ */
+abstract class ArithmeticEvaluator(protected val left: Evaluator, protected val right: Evaluator) : Evaluator() {
+    override fun isNull(row: Array<Any>): Boolean = left.isNull(row) || right.isNull(row)
+}
+
+/**
+ * 两侧都是整数的运算，结果为整数
+ * 每种运算符由 [ExpressionCompiler.arithmetic] 生成一个重写了 [compute] 的实现
+ */
+abstract class LongArithmetic(left: Evaluator, right: Evaluator) : ArithmeticEvaluator(left, right) {
+    override val type = ValueType.LONG
+
+    abstract fun compute(a: Long, b: Long): Long
+
+    override fun evaluate(row: Array<Any>): Any? = if (isNull(row)) null else evaluateLong(row)
+
+    override fun evaluateLong(row: Array<Any>): Long = compute(left.evaluateLong(row), right.evaluateLong(row))
+
+    override fun evaluateDouble(row: Array<Any>): Double = evaluateLong(row).toDouble()
+}
+
+/**
+ * 结果为浮点数的运算
+ */
+abstract class DoubleArithmetic(left: Evaluator, right: Evaluator) : ArithmeticEvaluator(left, right) {
+    override val type = ValueType.DOUBLE
+
+    abstract fun compute(a: Double, b: Double): Double
+
+    override fun evaluate(row: Array<Any>): Any? = if (isNull(row)) null else evaluateDouble(row)
+
+    override fun evaluateDouble(row: Array<Any>): Double = compute(left.evaluateDouble(row), right.evaluateDouble(row))
+}
+
+/**
+ * 类型未知时的运算，两侧实际都是整数时按整数计算，否则按浮点数计算
+ */
+class GenericArithmetic(private val op: ArithmeticOp, left: Evaluator, right: Evaluator) : ArithmeticEvaluator(left, right) {
+    override val type = ValueType.ANY
+
+    override fun evaluate(row: Array<Any>): Any? {
+        val a = left.evaluate(row) ?: return null
+        val b = right.evaluate(row) ?: return null
+        if (ExpressionCompiler.isIntegral(a) && ExpressionCompiler.isIntegral(b) && op != ArithmeticOp.DIV) {
+            val x = ExpressionCompiler.toLong(a)
+            val y = ExpressionCompiler.toLong(b)
+            return when (op) {
+                ArithmeticOp.ADD -> x + y
+                ArithmeticOp.SUB -> x - y
+                ArithmeticOp.MUL -> x * y
+                ArithmeticOp.INT_DIV -> if (y == 0L) null else x / y
+                else -> if (y == 0L) null else x % y
+            }
+        }
+        val x = ExpressionCompiler.toDouble(a)
+        val y = ExpressionCompiler.toDouble(b)
+        return when (op) {
+            ArithmeticOp.ADD -> x + y
+            ArithmeticOp.SUB -> x - y
+            ArithmeticOp.MUL -> x * y
+            ArithmeticOp.DIV -> if (y == 0.0) null else x / y
+            ArithmeticOp.INT_DIV -> if (y == 0.0) null else (x / y).toLong()
+            ArithmeticOp.MOD -> if (y == 0.0) null else x % y
+        }
+    }
+
+    override fun isNull(row: Array<Any>): Boolean = evaluate(row) == null
+}
+
+/**
+ * 取负
+ */
+class NegateEvaluator(private val operand: Evaluator) : Evaluator() {
+    override val type = if (operand.type.isNumeric) operand.type else ValueType.ANY
+
+    override fun evaluate(row: Array<Any>): Any? =
+        when (type) {
+            ValueType.LONG -> if (operand.isNull(row)) null else -operand.evaluateLong(row)
+            ValueType.DOUBLE -> if (operand.isNull(row)) null else -operand.evaluateDouble(row)
+            else -> operand.evaluate(row)?.let { if (ExpressionCompiler.isIntegral(it)) -ExpressionCompiler.toLong(it) else -ExpressionCompiler.toDouble(it) }
+        }
+
+    override fun isNull(row: Array<Any>): Boolean = operand.isNull(row)
+
+    override fun evaluateLong(row: Array<Any>): Long = -operand.evaluateLong(row)
+
+    override fun evaluateDouble(row: Array<Any>): Double = -operand.evaluateDouble(row)
+}
@@ -0,0 +1,348 @@
+package com.lss233.minidb.engine.expression
+
+import com.lss233.minidb.engine.vector.*
+
+/**
+ * 比较运算符
+ */
+enum class CompareOp(val symbol: String) {
+    EQ("="), NE("<>"), GT(">"), GE(">="), LT("<"), LE("<=");
+
+    /**
+     * 根据比较结果判断是否满足运算符
+     * @param cmp 左值与右值比较的结果
+     */
+    fun accept(cmp: Int): Boolean =
+        when (this) {
+            EQ -> cmp == 0
+            NE -> cmp != 0
+            GT -> cmp > 0
+            GE -> cmp >= 0
+            LT -> cmp < 0
+            LE -> cmp <= 0
+        }
+
+    /**
+     * 交换左右操作数后等价的运算符
+     */
+    fun reverse(): CompareOp =
+        when (this) {
+            GT -> LT
+            GE -> LE
+            LT -> GT
+            LE -> GE
+            else -> this
+        }
+
+    /**
+     * 结果取反后等价的运算符，两侧都不为 NULL 时 NOT (a op b) 与 a op.negate() b 相同
+     */
+    fun negate(): CompareOp =
+        when (this) {
+            EQ -> NE
+            NE -> EQ
+            GT -> LE
+            GE -> LT
+            LT -> GE
+            LE -> GT
+        }
+}
+
+/**
+ * 比较表达式的公共部分，任意一侧为 NULL 时结果为 NULL
+ */
+abstract class ComparisonEvaluator(
+    val op: CompareOp,
+    protected val left: Evaluator,
+    protected val right: Evaluator
+) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    /**
+     * 比较两个非 NULL 的值
+     */
+    protected abstract fun matches(a: Any, b: Any): Boolean
+
+    override fun evaluate(row: Array<Any>): Any? =
+        if (left.isNull(row) || right.isNull(row)) null else test(row)
+
+    override fun isNull(row: Array<Any>): Boolean = left.isNull(row) || right.isNull(row)
+
+    override fun inverse(): Evaluator = ExpressionCompiler.compare(op.negate(), left, right)
+
+    override fun test(row: Array<Any>): Boolean {
+        val a = left.evaluate(row) ?: return false
+        val b = right.evaluate(row) ?: return false
+        return matches(a, b)
+    }
+
+    /**
+     * 列与常量、整数列与整数列的比较直接在列向量上进行，
+     * 字典编码的列先在字典上逐项比较，再按编码筛选
+     */
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int {
+        val l = left
+        val r = right
+        if (l is ColumnEvaluator && r is ConstantEvaluator) {
+            return selectColumn(batch.vectors[l.slot], op, r, false, selection, count)
+                ?: super.select(batch, selection, count)
+        }
+        if (l is ConstantEvaluator && r is ColumnEvaluator) {
+            return selectColumn(batch.vectors[r.slot], op.reverse(), l, true, selection, count)
+                ?: super.select(batch, selection, count)
+        }
+        if (l is ColumnEvaluator && r is ColumnEvaluator && this !is StringComparison) {
+            val a = batch.vectors[l.slot]
+            val b = batch.vectors[r.slot]
+            if (a is LongVector && b is LongVector) {
+                return VectorKernels.compare(op, a, b, selection, count)
+            }
+        }
+        return super.select(batch, selection, count)
+    }
+
+    /**
+     * @param op 已经调整成列在左侧时的运算符
+     * @param constantFirst 原表达式中常量是否在左侧
+     * @return 不能在这种列向量上直接计算时返回 null
+     */
+    private fun selectColumn(
+        vector: ColumnVector,
+        op: CompareOp,
+        constant: ConstantEvaluator,
+        constantFirst: Boolean,
+        selection: IntArray,
+        count: Int
+    ): Int? {
+        val value = constant.value ?: return 0
+        if (vector is DictionaryVector) {
+            val matched = BooleanArray(vector.dictionary.size) { code ->
+                val entry = vector.dictionary[code]
+                if (constantFirst) matches(value, entry) else matches(entry, value)
+            }
+            return VectorKernels.selectCodes(vector, matched, selection, count)
+        }
+        if (value !is Number || this is StringComparison) {
+            return null
+        }
+        return when (vector) {
+            is LongVector ->
+                if (constant.type == ValueType.LONG) {
+                    VectorKernels.compare(op, vector, constant.longValue, selection, count)
+                } else {
+                    VectorKernels.compare(op, vector, constant.doubleValue, selection, count)
+                }
+            is DoubleVector -> VectorKernels.compare(op, vector, constant.doubleValue, selection, count)
+            else -> null
+        }
+    }
+}
+
+/**
+ * 两侧都是整数的比较，不经过装箱
+ * 每种运算符由 [ExpressionCompiler.compare] 生成一个重写了 [compare] 的实现
+ */
+abstract class LongComparison(op: CompareOp, left: Evaluator, right: Evaluator) : ComparisonEvaluator(op, left, right) {
+    abstract fun compare(a: Long, b: Long): Boolean
+
+    override fun matches(a: Any, b: Any): Boolean = compare(ExpressionCompiler.toLong(a), ExpressionCompiler.toLong(b))
+
+    override fun test(row: Array<Any>): Boolean =
+        !left.isNull(row) && !right.isNull(row) && compare(left.evaluateLong(row), right.evaluateLong(row))
+}
+
+/**
+ * 两侧都是数值且至少一侧是浮点数的比较，不经过装箱
+ */
+abstract class DoubleComparison(op: CompareOp, left: Evaluator, right: Evaluator) : ComparisonEvaluator(op, left, right) {
+    abstract fun compare(a: Double, b: Double): Boolean
+
+    override fun matches(a: Any, b: Any): Boolean = compare(ExpressionCompiler.toDouble(a), ExpressionCompiler.toDouble(b))
+
+    override fun test(row: Array<Any>): Boolean =
+        !left.isNull(row) && !right.isNull(row) && compare(left.evaluateDouble(row), right.evaluateDouble(row))
+}
+
+/**
+ * 两侧都是字符串的比较
+ */
+class StringComparison(op: CompareOp, left: Evaluator, right: Evaluator) : ComparisonEvaluator(op, left, right) {
+    override fun matches(a: Any, b: Any): Boolean =
+        if (op == CompareOp.EQ) {
+            a.toString() == b.toString()
+        } else {
+            op.accept(a.toString().compareTo(b.toString()))
+        }
+}
+
+/**
+ * 类型未知时的比较，按实际的值决定比较方式
+ */
+class GenericComparison(op: CompareOp, left: Evaluator, right: Evaluator) : ComparisonEvaluator(op, left, right) {
+    override fun matches(a: Any, b: Any): Boolean =
+        when (op) {
+            CompareOp.EQ -> ExpressionCompiler.valueEquals(a, b)
+            CompareOp.NE -> !ExpressionCompiler.valueEquals(a, b)
+            else -> op.accept(ExpressionCompiler.compareValues(a, b))
+        }
+}
+
+/**
+ * NULL 安全的等于 (<=>)，两侧都为 NULL 时相等，结果不会是 NULL
+ */
+class NullSafeEquals(private val left: Evaluator, private val right: Evaluator) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? = test(row)
+
+    override fun test(row: Array<Any>): Boolean {
+        val a = left.evaluate(row)
+        val b = right.evaluate(row)
+        return if (a == null || b == null) a == b else ExpressionCompiler.valueEquals(a, b)
+    }
+}
+
+/**
+ * IS NULL / IS NOT NULL
+ */
+class IsNullEvaluator(private val operand: Evaluator, private val not: Boolean) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? = test(row)
+
+    override fun test(row: Array<Any>): Boolean = operand.isNull(row) != not
+
+    override fun inverse(): Evaluator = IsNullEvaluator(operand, !not)
+
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int =
+        if (operand is ColumnEvaluator) {
+            VectorKernels.selectNulls(batch.vectors[operand.slot], not, selection, count)
+        } else {
+            super.select(batch, selection, count)
+        }
+}
+
+/**
+ * 整数 IN 常量列表，列表在编译时排好序，执行时二分查找
+ * @param values 排好序且去掉了 NULL 的常量
+ * @param hasNull 列表中是否含有 NULL，NOT IN 遇到 NULL 时结果为 NULL
+ */
+class LongInList(
+    private val operand: Evaluator,
+    private val values: LongArray,
+    private val hasNull: Boolean,
+    private val not: Boolean
+) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? {
+        if (operand.isNull(row)) {
+            return null
+        }
+        val found = values.binarySearch(operand.evaluateLong(row)) >= 0
+        return if (found) !not else if (hasNull) null else not
+    }
+
+    override fun inverse(): Evaluator = LongInList(operand, values, hasNull, !not)
+
+    override fun test(row: Array<Any>): Boolean = evaluate(row) == true
+
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int {
+        val vector = (operand as? ColumnEvaluator)?.let { batch.vectors[it.slot] as? LongVector }
+            ?: return super.select(batch, selection, count)
+        if (not && hasNull) {
+            return 0
+        }
+        val column = vector.values
+        return VectorKernels.selectWhere(selection, count) { !vector.isNull(it) && (values.binarySearch(column[it]) >= 0) != not }
+    }
+}
+
+/**
+ * IN 常量列表，列表在编译时放入哈希表
+ * @param numeric 为 true 时按数值比较，值统一转换成 double 后查找；否则按字符串查找
+ */
+class HashInList(
+    private val operand: Evaluator,
+    private val values: Set<Any>,
+    private val numeric: Boolean,
+    private val hasNull: Boolean,
+    private val not: Boolean
+) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? {
+        val value = operand.evaluate(row) ?: return null
+        val found = values.contains(if (numeric) ExpressionCompiler.toDouble(value) else value.toString())
+        return if (found) !not else if (hasNull) null else not
+    }
+
+    override fun inverse(): Evaluator = HashInList(operand, values, numeric, hasNull, !not)
+
+    override fun test(row: Array<Any>): Boolean = evaluate(row) == true
+}
+
+/**
+ * 类型不能统一的 IN 列表，按 [ExpressionCompiler.valueEquals] 的规则比较
+ * 列表中的常量在编译时按值放入哈希表，只有非常量的项才逐个比较
+ */
+class GenericInList(private val operand: Evaluator, private val items: List<Evaluator>, private val not: Boolean) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+    private val dynamic = items.filter { it !is ConstantEvaluator }
+    private val constants = items.filterIsInstance<ConstantEvaluator>().map { it.value }
+    private val hasNull = null in constants
+
+    /**
+     * 数值常量的 double 值，与任何能转换成数值的值按大小比较
+     */
+    private val numbers = constants.filterIsInstance<Number>().map { it.toDouble() + 0.0 }.toHashSet()
+
+    /**
+     * 不是数值的常量转换成的 double 值，与数值比较时使用
+     */
+    private val numericTexts = constants
+        .mapNotNull { if (it == null || it is Number) null else ExpressionCompiler.toDoubleOrNull(it)?.plus(0.0) }
+        .toHashSet()
+
+    /**
+     * 字符串常量，与数值以外的值比较时按字符串比较
+     */
+    private val strings = constants.filterIsInstance<String>().toHashSet()
+
+    /**
+     * 不是数值的常量的字符串形式，字符串与数值以外的值都按字符串比较
+     */
+    private val texts = constants.mapNotNull { if (it is Number) null else it?.toString() }.toHashSet()
+
+    /**
+     * 既不是数值也不是字符串的常量
+     */
+    private val others = constants.filter { it != null && it !is Number && it !is String }.toHashSet()
+
+    override fun evaluate(row: Array<Any>): Any? {
+        val value = operand.evaluate(row) ?: return null
+        val number = ExpressionCompiler.toDoubleOrNull(value)?.plus(0.0)
+        val found = when (value) {
+            is Number -> number != null && (number in numbers || number in numericTexts)
+            is String -> value in texts || number != null && number in numbers
+            else -> value.toString() in strings || value in others || number != null && number in numbers
+        }
+        if (found) {
+            return !not
+        }
+        var unknown = hasNull
+        for (item in dynamic) {
+            val candidate = item.evaluate(row)
+            if (candidate == null) {
+                unknown = true
+            } else if (ExpressionCompiler.valueEquals(value, candidate)) {
+                return !not
+            }
+        }
+        return if (unknown) null else not
+    }
+
+    override fun test(row: Array<Any>): Boolean = evaluate(row) == true
+
+    override fun inverse(): Evaluator = GenericInList(operand, items, !not)
+}
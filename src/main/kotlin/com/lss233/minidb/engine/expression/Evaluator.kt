@@ -0,0 +1,123 @@
+package com.lss233.minidb.engine.expression
+
+import com.lss233.minidb.engine.vector.Batch
+import com.lss233.minidb.engine.vector.VectorKernels
+import java.util.function.Predicate
+
+/**
+ * 编译后的表达式
+ * 由 [ExpressionCompiler] 根据操作数类型生成，执行时直接从行数据中按列下标取值。
+ * 数值类型的求值器重写 [evaluateLong] 或 [evaluateDouble]，上层可以不经过装箱直接得到基本类型的结果；
+ * 作为条件使用时调用 [test]
+ */
+abstract class Evaluator : Predicate<Array<Any>> {
+    /**
+     * 求值结果的类型
+     */
+    abstract val type: ValueType
+
+    /**
+     * 求值，结果为 NULL 时返回 null
+     */
+    abstract fun evaluate(row: Array<Any>): Any?
+
+    /**
+     * 结果是否为 NULL
+     */
+    open fun isNull(row: Array<Any>): Boolean = evaluate(row) == null
+
+    /**
+     * 以 long 求值，调用前应先确认结果不为 NULL
+     */
+    open fun evaluateLong(row: Array<Any>): Long = ExpressionCompiler.toLong(evaluate(row)!!)
+
+    /**
+     * 以 double 求值，调用前应先确认结果不为 NULL
+     */
+    open fun evaluateDouble(row: Array<Any>): Double = ExpressionCompiler.toDouble(evaluate(row)!!)
+
+    /**
+     * 作为条件求值，NULL 视为不满足
+     */
+    override fun test(row: Array<Any>): Boolean = ExpressionCompiler.isTrue(evaluate(row))
+
+    /**
+     * 逻辑取反后的等价表达式，供 [ExpressionCompiler.not] 消去 NOT，不能直接取反时返回 null
+     * 实现必须在三值逻辑下等价：操作数为 NULL 时取反前后的结果都是 NULL
+     */
+    open fun inverse(): Evaluator? = null
+
+    /**
+     * 在一批数据上作为条件求值，就地压缩选择向量
+     * 默认逐行取出数据再调用 [test]，能直接在列向量上计算的求值器会重写它
+     * @param selection 选择向量，前 count 项是待检查的行号
+     * @return 满足条件的行数
+     */
+    open fun select(batch: Batch, selection: IntArray, count: Int): Int {
+        val row = arrayOfNulls<Any>(batch.vectors.size)
+        return VectorKernels.selectWhere(selection, count) { test(batch.fill(it, row)) }
+    }
+}
+
+/**
+ * 读取一列
+ * @param slot 列在行中的下标
+ */
+open class ColumnEvaluator(val slot: Int, override val type: ValueType) : Evaluator() {
+    override fun evaluate(row: Array<Any>): Any? = row[slot]
+
+    override fun isNull(row: Array<Any>): Boolean = row[slot] == null
+}
+
+/**
+ * 读取整数列
+ */
+class LongColumnEvaluator(slot: Int) : ColumnEvaluator(slot, ValueType.LONG) {
+    override fun evaluateLong(row: Array<Any>): Long {
+        val value = row[slot]
+        return if (value is Long) value else ExpressionCompiler.toLong(value)
+    }
+
+    override fun evaluateDouble(row: Array<Any>): Double = evaluateLong(row).toDouble()
+}
+
+/**
+ * 读取浮点数列
+ */
+class DoubleColumnEvaluator(slot: Int) : ColumnEvaluator(slot, ValueType.DOUBLE) {
+    override fun evaluateDouble(row: Array<Any>): Double {
+        val value = row[slot]
+        return if (value is Double) value else ExpressionCompiler.toDouble(value)
+    }
+}
+
+/**
+ * 常量，数值常量在编译时就转换成基本类型
+ */
+class ConstantEvaluator(val value: Any?) : Evaluator() {
+    override val type = ValueType.of(value)
+    val longValue = if (value is Number) value.toLong() else 0L
+    val doubleValue = if (value is Number) value.toDouble() else 0.0
+    private val truth = ExpressionCompiler.isTrue(value)
+
+    override fun evaluate(row: Array<Any>): Any? = value
+
+    override fun isNull(row: Array<Any>): Boolean = value == null
+
+    override fun evaluateLong(row: Array<Any>): Long = longValue
+
+    override fun evaluateDouble(row: Array<Any>): Double = doubleValue
+
+    override fun test(row: Array<Any>): Boolean = truth
+
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int = if (truth) count else 0
+}
+
+/**
+ * 求值时才报错的表达式，用于计划阶段无法解析的列
+ */
+class ErrorEvaluator(private val message: String) : Evaluator() {
+    override val type = ValueType.ANY
+
+    override fun evaluate(row: Array<Any>): Any? = throw RuntimeException(message)
+}
@@ -0,0 +1,263 @@
+package com.lss233.minidb.engine.expression
+
+import com.lss233.minidb.engine.schema.Column
+import java.math.BigInteger
+
+/**
+ * 表达式编译器
+ * 根据操作数的类型为每个运算选择专门的求值器：
+ * 两侧都是整数时按 long 计算，都是数值时按 double 计算，都是字符串时按字符串比较，
+ * 只有类型无法确定时才退回到按实际值判断的通用实现。
+ *
+ * 操作数全部是常量的运算在编译时直接求值，结果作为常量；AND、OR 去掉恒真、恒假的操作数，
+ * NOT 尽量换成取反后的比较或 IS 判断，比较运算把常量放在右侧。
+ * 像 `WHERE 1 = 1 AND ...` 这样的条件编译后不再有多余的运算
+ */
+object ExpressionCompiler {
+
+    /**
+     * 读取一列，按列的声明类型选择求值器
+     * @param slot 列在行中的下标
+     */
+    fun column(slot: Int, column: Column): Evaluator =
+        when (val type = ValueType.of(column.dataType)) {
+            ValueType.LONG -> LongColumnEvaluator(slot)
+            ValueType.DOUBLE -> DoubleColumnEvaluator(slot)
+            else -> ColumnEvaluator(slot, type)
+        }
+
+    fun constant(value: Any?): Evaluator =
+        ConstantEvaluator(if (value is BigInteger && value.bitLength() < 64) value.toLong() else value)
+
+    fun compare(op: CompareOp, left: Evaluator, right: Evaluator): Evaluator =
+        if (left is ConstantEvaluator && right !is ConstantEvaluator) {
+            compare(op.reverse(), right, left)
+        } else {
+            fold(comparison(op, left, right), left, right)
+        }
+
+    private fun comparison(op: CompareOp, left: Evaluator, right: Evaluator): Evaluator =
+        if (left.type == ValueType.LONG && right.type == ValueType.LONG) {
+            when (op) {
+                CompareOp.EQ -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a == b }
+                CompareOp.NE -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a != b }
+                CompareOp.GT -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a > b }
+                CompareOp.GE -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a >= b }
+                CompareOp.LT -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a < b }
+                CompareOp.LE -> object : LongComparison(op, left, right) { override fun compare(a: Long, b: Long) = a <= b }
+            }
+        } else if (left.type.isNumeric && right.type.isNumeric) {
+            when (op) {
+                CompareOp.EQ -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a == b }
+                CompareOp.NE -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a != b }
+                CompareOp.GT -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a > b }
+                CompareOp.GE -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a >= b }
+                CompareOp.LT -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a < b }
+                CompareOp.LE -> object : DoubleComparison(op, left, right) { override fun compare(a: Double, b: Double) = a <= b }
+            }
+        } else if (left.type == ValueType.STRING && right.type == ValueType.STRING) {
+            StringComparison(op, left, right)
+        } else {
+            GenericComparison(op, left, right)
+        }
+
+    fun nullSafeEquals(left: Evaluator, right: Evaluator): Evaluator = fold(NullSafeEquals(left, right), left, right)
+
+    fun arithmetic(op: ArithmeticOp, left: Evaluator, right: Evaluator): Evaluator =
+        fold(arithmeticOf(op, left, right), left, right)
+
+    private fun arithmeticOf(op: ArithmeticOp, left: Evaluator, right: Evaluator): Evaluator =
+        if (left.type == ValueType.LONG && right.type == ValueType.LONG && op != ArithmeticOp.DIV) {
+            when (op) {
+                ArithmeticOp.ADD -> object : LongArithmetic(left, right) { override fun compute(a: Long, b: Long) = a + b }
+                ArithmeticOp.SUB -> object : LongArithmetic(left, right) { override fun compute(a: Long, b: Long) = a - b }
+                ArithmeticOp.MUL -> object : LongArithmetic(left, right) { override fun compute(a: Long, b: Long) = a * b }
+                ArithmeticOp.INT_DIV -> object : LongArithmetic(left, right) {
+                    override fun compute(a: Long, b: Long) = a / b
+                    override fun isNull(row: Array<Any>) = super.isNull(row) || right.evaluateLong(row) == 0L
+                }
+                else -> object : LongArithmetic(left, right) {
+                    override fun compute(a: Long, b: Long) = a % b
+                    override fun isNull(row: Array<Any>) = super.isNull(row) || right.evaluateLong(row) == 0L
+                }
+            }
+        } else if (left.type.isNumeric && right.type.isNumeric && op != ArithmeticOp.INT_DIV) {
+            when (op) {
+                ArithmeticOp.ADD -> object : DoubleArithmetic(left, right) { override fun compute(a: Double, b: Double) = a + b }
+                ArithmeticOp.SUB -> object : DoubleArithmetic(left, right) { override fun compute(a: Double, b: Double) = a - b }
+                ArithmeticOp.MUL -> object : DoubleArithmetic(left, right) { override fun compute(a: Double, b: Double) = a * b }
+                ArithmeticOp.DIV -> object : DoubleArithmetic(left, right) {
+                    override fun compute(a: Double, b: Double) = a / b
+                    override fun isNull(row: Array<Any>) = super.isNull(row) || right.evaluateDouble(row) == 0.0
+                }
+                else -> object : DoubleArithmetic(left, right) {
+                    override fun compute(a: Double, b: Double) = a % b
+                    override fun isNull(row: Array<Any>) = super.isNull(row) || right.evaluateDouble(row) == 0.0
+                }
+            }
+        } else {
+            GenericArithmetic(op, left, right)
+        }
+
+    fun negate(operand: Evaluator): Evaluator = fold(NegateEvaluator(operand), operand)
+
+    /**
+     * 恒真的操作数不影响结果，有恒假的操作数时结果恒为假
+     */
+    fun and(operands: List<Evaluator>): Evaluator {
+        if (operands.any { it is ConstantEvaluator && truthOf(it.value) == false }) {
+            return constant(false)
+        }
+        val rest = operands.filterNot { it is ConstantEvaluator && truthOf(it.value) == true }
+        return when {
+            rest.isEmpty() -> constant(true)
+            rest.size == 1 && (rest.size == operands.size || rest[0].type == ValueType.BOOLEAN) -> rest[0]
+            else -> fold(AndEvaluator(rest.toTypedArray()), *rest.toTypedArray())
+        }
+    }
+
+    /**
+     * 恒假的操作数不影响结果，有恒真的操作数时结果恒为真
+     */
+    fun or(operands: List<Evaluator>): Evaluator {
+        if (operands.any { it is ConstantEvaluator && truthOf(it.value) == true }) {
+            return constant(true)
+        }
+        val rest = operands.filterNot { it is ConstantEvaluator && truthOf(it.value) == false }
+        return when {
+            rest.isEmpty() -> constant(false)
+            rest.size == 1 && (rest.size == operands.size || rest[0].type == ValueType.BOOLEAN) -> rest[0]
+            else -> fold(OrEvaluator(rest.toTypedArray()), *rest.toTypedArray())
+        }
+    }
+
+    /**
+     * 能取反的操作数直接取反，如 NOT a < b 编译成 a >= b，NOT (a AND b) 编译成 NOT a OR NOT b
+     */
+    fun not(operand: Evaluator): Evaluator = operand.inverse() ?: fold(NotEvaluator(operand), operand)
+
+    fun isNull(operand: Evaluator, not: Boolean): Evaluator = fold(IsNullEvaluator(operand, not), operand)
+
+    fun isTruth(operand: Evaluator, expected: Boolean, not: Boolean): Evaluator =
+        fold(IsTruthEvaluator(operand, expected, not), operand)
+
+    /**
+     * BETWEEN 编译成两个比较的 AND
+     */
+    fun between(operand: Evaluator, low: Evaluator, high: Evaluator, not: Boolean): Evaluator {
+        val range = and(listOf(compare(CompareOp.GE, operand, low), compare(CompareOp.LE, operand, high)))
+        return if (not) not(range) else range
+    }
+
+    /**
+     * IN 列表
+     * 列表全部是常量时在编译阶段建好查找结构，否则逐个比较
+     */
+    fun inList(operand: Evaluator, items: List<Evaluator>, not: Boolean): Evaluator =
+        fold(inListOf(operand, items, not), operand, *items.toTypedArray())
+
+    private fun inListOf(operand: Evaluator, items: List<Evaluator>, not: Boolean): Evaluator {
+        if (items.any { it !is ConstantEvaluator }) {
+            return GenericInList(operand, items, not)
+        }
+        val values = items.mapNotNull { (it as ConstantEvaluator).value }
+        val hasNull = values.size < items.size
+        val types = values.map { ValueType.of(it) }.toSet()
+        return if (operand.type == ValueType.LONG && types.all { it == ValueType.LONG }) {
+            LongInList(operand, values.map { toLong(it) }.toSortedSet().toLongArray(), hasNull, not)
+        } else if (operand.type.isNumeric && types.all { it.isNumeric }) {
+            HashInList(operand, values.map { toDouble(it) }.toHashSet(), true, hasNull, not)
+        } else if (operand.type == ValueType.STRING && types.all { it == ValueType.STRING }) {
+            HashInList(operand, values.map { it.toString() }.toHashSet(), false, hasNull, not)
+        } else {
+            GenericInList(operand, items, not)
+        }
+    }
+
+    /**
+     * 操作数全部是常量时在编译阶段求出结果
+     * 求值出错时保持原样，错误留到执行时才报告，与不折叠时一致
+     */
+    private fun fold(evaluator: Evaluator, vararg operands: Evaluator): Evaluator {
+        if (operands.any { it !is ConstantEvaluator }) {
+            return evaluator
+        }
+        return try {
+            constant(evaluator.evaluate(EMPTY_ROW))
+        } catch (e: RuntimeException) {
+            evaluator
+        }
+    }
+
+    private val EMPTY_ROW = emptyArray<Any>()
+
+    /**
+     * 比较两个值是否相等
+     * 与 [compareValues] 一致，有一侧是数值时按数值比较，另一侧无法转换成数值时不相等；
+     * 其余情况下字符串与任何值之间按字符串比较，NULL 不与任何值相等
+     */
+    fun valueEquals(left: Any?, right: Any?): Boolean {
+        if (left == null || right == null) {
+            return false
+        }
+        if (left is Number || right is Number) {
+            val a = toDoubleOrNull(left) ?: return false
+            val b = toDoubleOrNull(right) ?: return false
+            return a == b
+        }
+        return if (left is String || right is String) {
+            left.toString() == right.toString()
+        } else {
+            left == right
+        }
+    }
+
+    /**
+     * 比较两个非 NULL 值的大小
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun compareValues(left: Any, right: Any): Int =
+        if (left is Number && right is Number) {
+            left.toDouble().compareTo(right.toDouble())
+        } else if (left is Comparable<*> && left.javaClass == right.javaClass) {
+            (left as Comparable<Any>).compareTo(right)
+        } else if (left is Number || right is Number) {
+            toDouble(left).compareTo(toDouble(right))
+        } else {
+            throw RuntimeException("Expression cannot be compared.")
+        }
+
+    fun isIntegral(value: Any): Boolean = value is Long || value is Int || value is Short || value is Byte
+
+    fun toLong(value: Any): Long =
+        when (value) {
+            is Number -> value.toLong()
+            is Boolean -> if (value) 1L else 0L
+            else -> value.toString().toLongOrNull() ?: toDouble(value).toLong()
+        }
+
+    fun toDouble(value: Any): Double = toDoubleOrNull(value) ?: throw RuntimeException("Expression cannot be compared.")
+
+    /**
+     * 按 [toDouble] 的规则转换成数值，无法转换时返回 null
+     */
+    fun toDoubleOrNull(value: Any): Double? =
+        when (value) {
+            is Number -> value.toDouble()
+            is Boolean -> if (value) 1.0 else 0.0
+            else -> value.toString().toDoubleOrNull()
+        }
+
+    /**
+     * 把值当作条件，NULL 返回 null
+     */
+    fun truthOf(value: Any?): Boolean? =
+        when (value) {
+            null -> null
+            is Boolean -> value
+            is Number -> value.toDouble() != 0.0
+            else -> value.toString().toDoubleOrNull()?.let { it != 0.0 } ?: false
+        }
+
+    fun isTrue(value: Any?): Boolean = truthOf(value) == true
+}
@@ -0,0 +1,146 @@
+package com.lss233.minidb.engine.expression
+
+import com.lss233.minidb.engine.vector.Batch
+
+/**
+ * AND，按三值逻辑求值，作为条件时遇到不满足的操作数立即返回
+ */
+class AndEvaluator(private val operands: Array<Evaluator>) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? {
+        var unknown = false
+        for (operand in operands) {
+            when (ExpressionCompiler.truthOf(operand.evaluate(row))) {
+                false -> return false
+                null -> unknown = true
+                else -> {}
+            }
+        }
+        return if (unknown) null else true
+    }
+
+    /**
+     * NOT (a AND b) 等价于 NOT a OR NOT b
+     */
+    override fun inverse(): Evaluator = ExpressionCompiler.or(operands.map { ExpressionCompiler.not(it) })
+
+    override fun test(row: Array<Any>): Boolean {
+        for (operand in operands) {
+            if (!operand.test(row)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * 依次用每个操作数缩小选择向量
+     */
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int {
+        var selected = count
+        for (operand in operands) {
+            if (selected == 0) {
+                break
+            }
+            selected = operand.select(batch, selection, selected)
+        }
+        return selected
+    }
+}
+
+/**
+ * OR，按三值逻辑求值，作为条件时遇到满足的操作数立即返回
+ */
+class OrEvaluator(private val operands: Array<Evaluator>) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? {
+        var unknown = false
+        for (operand in operands) {
+            when (ExpressionCompiler.truthOf(operand.evaluate(row))) {
+                true -> return true
+                null -> unknown = true
+                else -> {}
+            }
+        }
+        return if (unknown) null else false
+    }
+
+    /**
+     * NOT (a OR b) 等价于 NOT a AND NOT b
+     */
+    override fun inverse(): Evaluator = ExpressionCompiler.and(operands.map { ExpressionCompiler.not(it) })
+
+    override fun test(row: Array<Any>): Boolean {
+        for (operand in operands) {
+            if (operand.test(row)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * 每个操作数只检查之前的操作数还没有选中的行，最后按行号顺序合并
+     */
+    override fun select(batch: Batch, selection: IntArray, count: Int): Int {
+        val matched = BooleanArray(batch.size)
+        val pending = selection.copyOf(count)
+        var pendingCount = count
+        for (operand in operands) {
+            if (pendingCount == 0) {
+                break
+            }
+            val candidates = pending.copyOf(pendingCount)
+            val selected = operand.select(batch, candidates, pendingCount)
+            for (position in 0 until selected) {
+                matched[candidates[position]] = true
+            }
+            var remaining = 0
+            for (position in 0 until pendingCount) {
+                if (!matched[pending[position]]) {
+                    pending[remaining++] = pending[position]
+                }
+            }
+            pendingCount = remaining
+        }
+        var selected = 0
+        for (position in 0 until count) {
+            if (matched[selection[position]]) {
+                selection[selected++] = selection[position]
+            }
+        }
+        return selected
+    }
+}
+
+/**
+ * NOT，操作数为 NULL 时结果仍为 NULL
+ */
+class NotEvaluator(private val operand: Evaluator) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? = ExpressionCompiler.truthOf(operand.evaluate(row))?.not()
+
+    override fun test(row: Array<Any>): Boolean = evaluate(row) == true
+
+    /**
+     * 操作数本身是真值时 NOT NOT a 就是 a，否则还要保留把值转换成真值的一步
+     */
+    override fun inverse(): Evaluator? = if (operand.type == ValueType.BOOLEAN) operand else null
+}
+
+/**
+ * IS TRUE / IS FALSE 及其否定，结果不会是 NULL
+ * @param expected 期望的真值
+ */
+class IsTruthEvaluator(private val operand: Evaluator, private val expected: Boolean, private val not: Boolean) : Evaluator() {
+    override val type = ValueType.BOOLEAN
+
+    override fun evaluate(row: Array<Any>): Any? = test(row)
+
+    override fun test(row: Array<Any>): Boolean = (ExpressionCompiler.truthOf(operand.evaluate(row)) == expected) != not
+
+    override fun inverse(): Evaluator = IsTruthEvaluator(operand, expected, !not)
+}
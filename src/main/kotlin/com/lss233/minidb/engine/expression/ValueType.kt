@@ -0,0 +1,51 @@
+package com.lss233.minidb.engine.expression
+
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
+
+/**
+ * 表达式求值结果的类型
+ * 编译表达式时根据操作数的类型选择专门的求值器
+ */
+enum class ValueType {
+    LONG, DOUBLE, STRING, BOOLEAN, ANY;
+
+    val isNumeric: Boolean
+        get() = this == LONG || this == DOUBLE
+
+    companion object {
+        /**
+         * 列的声明类型对应的值类型
+         */
+        fun of(typeName: DataTypeName?): ValueType =
+            when (typeName) {
+                DataTypeName.TINYINT, DataTypeName.SMALLINT, DataTypeName.MEDIUMINT,
+                DataTypeName.INT, DataTypeName.BIGINT, DataTypeName.YEAR, DataTypeName.SERIAL -> LONG
+                DataTypeName.REAL, DataTypeName.DOUBLE, DataTypeName.FLOAT,
+                DataTypeName.DECIMAL, DataTypeName.FIXED -> DOUBLE
+                DataTypeName.CHAR, DataTypeName.VARCHAR, DataTypeName.TINYTEXT, DataTypeName.TEXT,
+                DataTypeName.MEDIUMTEXT, DataTypeName.LONGTEXT, DataTypeName.ENUM -> STRING
+                else -> ANY
+            }
+
+        /**
+         * 常量对应的值类型
+         */
+        fun of(value: Any?): ValueType =
+            when (value) {
+                is Byte, is Short, is Int, is Long -> LONG
+                is Number -> DOUBLE
+                is String -> STRING
+                is Boolean -> BOOLEAN
+                else -> ANY
+            }
+
+        /**
+         * 两侧分别是这两种类型时，值按 [com.lss233.minidb.engine.operator.HashJoinOperator.normalizeKey] 归一化后是否相等
+         * 与按 [ExpressionCompiler.compareValues] 比较是否相等一致。
+         * 数值与字符串比较时字符串按数值解析，归一化却保留字符串，类型不确定时也可能遇到这种情况，
+         * 所以只有两侧都是数值、都是字符串或都是布尔值时，等值比较才能作为哈希、归并连接和索引查找的键
+         */
+        fun keyCompatible(left: ValueType, right: ValueType): Boolean =
+            (left.isNumeric && right.isNumeric) || (left == right && (left == STRING || left == BOOLEAN))
+    }
+}
@@ -0,0 +1,66 @@
+package com.lss233.minidb.engine.memory
+
+import com.lss233.minidb.engine.operator.HashJoinOperator
+
+/**
+ * 列上的哈希索引，记录每个值出现在哪些行
+ * 值按 [HashJoinOperator.normalizeKey] 归一化后作为键，整数和浮点数可以互相查找；NULL 不进入索引。
+ * 由 [RowStore] 在追加行时维护，修改这一列时整个索引作废
+ */
+class ColumnIndex {
+    private val entries = HashMap<Any, Postings>()
+
+    /**
+     * 记录第 [row] 行的值为 [value]
+     */
+    @Synchronized
+    fun add(value: Any?, row: Int) {
+        val key = HashJoinOperator.normalizeKey(value) ?: return
+        entries.getOrPut(key) { Postings() }.add(row)
+    }
+
+    /**
+     * 值等于 [value] 的行号，按行号升序排列
+     * @param limit 只返回小于这个数的行号，即快照中的行
+     */
+    @Synchronized
+    fun rows(value: Any?, limit: Int): IntArray {
+        val key = HashJoinOperator.normalizeKey(value) ?: return EMPTY
+        val postings = entries[key] ?: return EMPTY
+        var count = postings.size
+        while (count > 0 && postings.rows[count - 1] >= limit) {
+            count--
+        }
+        return postings.rows.copyOf(count)
+    }
+
+    /**
+     * 一个值对应的行号，追加时行号递增
+     */
+    private class Postings {
+        var rows = IntArray(1)
+        var size = 0
+
+        fun add(row: Int) {
+            if (size == rows.size) {
+                rows = rows.copyOf(size * 2)
+            }
+            rows[size++] = row
+        }
+    }
+
+    companion object {
+        private val EMPTY = IntArray(0)
+
+        /**
+         * 为快照中的一列建立索引
+         */
+        fun of(snapshot: TableSnapshot, column: Int): ColumnIndex {
+            val index = ColumnIndex()
+            for (row in 0 until snapshot.size) {
+                index.add(snapshot.get(row, column), row)
+            }
+            return index
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.lss233.minidb.engine.memory
+
+import com.lss233.minidb.engine.schema.Column
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * 表中一列数据的紧凑存储
+ * 按列的声明类型把值存放在基本类型数组中，NULL 记录在位图里，数组按需扩容。
+ * 扩容时先复制再替换数组引用，引用是 volatile 的，
+ * 因此持有快照的读者总能读到快照之前写入的数据，追加写入不会影响正在进行的扫描
+ */
+abstract class ColumnStore {
+    @Volatile
+    private var nulls = LongArray(1)
+
+    /**
+     * 是否含有 NULL
+     */
+    @Volatile
+    var hasNulls = false
+        private set
+
+    fun isNull(index: Int): Boolean =
+        hasNulls && (index ushr 6) < nulls.size && (nulls[index ushr 6] ushr (index and 63)) and 1L != 0L
+
+    private fun markNull(index: Int, isNull: Boolean) {
+        val word = index ushr 6
+        var bitmap = nulls
+        if (word >= bitmap.size) {
+            if (!isNull) {
+                return
+            }
+            bitmap = bitmap.copyOf(maxOf(word + 1, bitmap.size * 2))
+            nulls = bitmap
+        }
+        bitmap[word] = if (isNull) bitmap[word] or (1L shl index) else bitmap[word] and (1L shl index).inv()
+        hasNulls = hasNulls || isNull
+    }
+
+    /**
+     * 复制一份，用于写时复制
+     */
+    fun copy(): ColumnStore {
+        val copied = copyValues()
+        copied.nulls = nulls.copyOf()
+        copied.hasNulls = hasNulls
+        return copied
+    }
+
+    protected abstract fun copyValues(): ColumnStore
+
+    /**
+     * 写入一个值
+     * @return 值不能用这种存储表示时返回 false，此时不会有任何改动
+     */
+    fun set(index: Int, value: Any?): Boolean {
+        if (value == null) {
+            ensureCapacity(index + 1)
+            markNull(index, true)
+            return true
+        }
+        if (!setValue(index, value)) {
+            return false
+        }
+        markNull(index, false)
+        return true
+    }
+
+    /**
+     * 读出一个值，NULL 返回 null
+     */
+    fun get(index: Int): Any? = if (isNull(index)) null else getValue(index)
+
+    /**
+     * 保证至少能存放 capacity 个值
+     */
+    protected abstract fun ensureCapacity(capacity: Int)
+
+    protected abstract fun setValue(index: Int, value: Any): Boolean
+
+    protected abstract fun getValue(index: Int): Any
+
+    protected fun grow(current: Int, required: Int): Int = maxOf(required, current + (current shr 1), 16)
+
+    companion object {
+        /**
+         * 按列的声明类型创建存储
+         */
+        fun of(column: Column): ColumnStore =
+            when (column.dataType) {
+                DataTypeName.TINYINT, DataTypeName.SMALLINT, DataTypeName.MEDIUMINT,
+                DataTypeName.INT, DataTypeName.YEAR -> IntColumnStore()
+                DataTypeName.BIGINT, DataTypeName.SERIAL -> LongColumnStore()
+                DataTypeName.REAL, DataTypeName.DOUBLE, DataTypeName.FLOAT -> DoubleColumnStore()
+                DataTypeName.CHAR, DataTypeName.VARCHAR, DataTypeName.TINYTEXT, DataTypeName.TEXT,
+                DataTypeName.MEDIUMTEXT, DataTypeName.LONGTEXT, DataTypeName.ENUM -> StringColumnStore()
+                else -> ObjectColumnStore()
+            }
+
+        /**
+         * 把值转换成整数，无法无损转换时返回 null
+         */
+        fun toLongExact(value: Any): Long? =
+            when (value) {
+                is Long -> value
+                is Int -> value.toLong()
+                is Short -> value.toLong()
+                is Byte -> value.toLong()
+                is BigInteger -> if (value.bitLength() < 64) value.toLong() else null
+                is BigDecimal -> try { value.longValueExact() } catch (e: ArithmeticException) { null }
+                is String -> value.trim().toLongOrNull()
+                else -> null
+            }
+    }
+}
+
+/**
+ * INT 及更窄的整数列
+ */
+class IntColumnStore : ColumnStore() {
+    @Volatile
+    var values = IntArray(0)
+        private set
+
+    override fun copyValues() = IntColumnStore().also { it.values = values.copyOf() }
+
+    override fun ensureCapacity(capacity: Int) {
+        if (capacity > values.size) {
+            values = values.copyOf(grow(values.size, capacity))
+        }
+    }
+
+    override fun setValue(index: Int, value: Any): Boolean {
+        val long = toLongExact(value) ?: return false
+        if (long < Int.MIN_VALUE || long > Int.MAX_VALUE) {
+            return false
+        }
+        ensureCapacity(index + 1)
+        values[index] = long.toInt()
+        return true
+    }
+
+    override fun getValue(index: Int): Any = values[index]
+}
+
+/**
+ * BIGINT 列
+ */
+class LongColumnStore : ColumnStore() {
+    @Volatile
+    var values = LongArray(0)
+        private set
+
+    override fun copyValues() = LongColumnStore().also { it.values = values.copyOf() }
+
+    override fun ensureCapacity(capacity: Int) {
+        if (capacity > values.size) {
+            values = values.copyOf(grow(values.size, capacity))
+        }
+    }
+
+    override fun setValue(index: Int, value: Any): Boolean {
+        val long = toLongExact(value) ?: return false
+        ensureCapacity(index + 1)
+        values[index] = long
+        return true
+    }
+
+    override fun getValue(index: Int): Any = values[index]
+}
+
+/**
+ * 浮点数列
+ */
+class DoubleColumnStore : ColumnStore() {
+    @Volatile
+    var values = DoubleArray(0)
+        private set
+
+    override fun copyValues() = DoubleColumnStore().also { it.values = values.copyOf() }
+
+    override fun ensureCapacity(capacity: Int) {
+        if (capacity > values.size) {
+            values = values.copyOf(grow(values.size, capacity))
+        }
+    }
+
+    override fun setValue(index: Int, value: Any): Boolean {
+        val double = when (value) {
+            is Number -> value.toDouble()
+            is String -> value.trim().toDoubleOrNull() ?: return false
+            else -> return false
+        }
+        ensureCapacity(index + 1)
+        values[index] = double
+        return true
+    }
+
+    override fun getValue(index: Int): Any = values[index]
+}
+
+/**
+ * 字符串列
+ * 所有字符串以 UTF-8 编码依次存放在同一个字节数组中，每行只记录起始位置和长度；
+ * 修改时新值追加在末尾，旧值占用的空间不回收
+ */
+class StringColumnStore : ColumnStore() {
+    @Volatile
+    private var bytes = ByteArray(0)
+    private var used = 0
+    @Volatile
+    private var starts = IntArray(0)
+    @Volatile
+    private var lengths = IntArray(0)
+
+    override fun copyValues() = StringColumnStore().also {
+        it.bytes = bytes.copyOf()
+        it.used = used
+        it.starts = starts.copyOf()
+        it.lengths = lengths.copyOf()
+    }
+
+    override fun ensureCapacity(capacity: Int) {
+        if (capacity > starts.size) {
+            val size = grow(starts.size, capacity)
+            starts = starts.copyOf(size)
+            lengths = lengths.copyOf(size)
+        }
+    }
+
+    override fun setValue(index: Int, value: Any): Boolean {
+        val string = when (value) {
+            is String -> value
+            is Number, is Boolean, is Char -> value.toString()
+            else -> return false
+        }
+        val encoded = string.toByteArray(Charsets.UTF_8)
+        if (used + encoded.size > bytes.size) {
+            bytes = bytes.copyOf(grow(bytes.size, used + encoded.size))
+        }
+        System.arraycopy(encoded, 0, bytes, used, encoded.size)
+        ensureCapacity(index + 1)
+        starts[index] = used
+        lengths[index] = encoded.size
+        used += encoded.size
+        return true
+    }
+
+    override fun getValue(index: Int): Any = String(bytes, starts[index], lengths[index], Charsets.UTF_8)
+}
+
+/**
+ * 其他类型的列，直接存放对象
+ */
+class ObjectColumnStore : ColumnStore() {
+    @Volatile
+    private var values = arrayOfNulls<Any>(0)
+
+    override fun copyValues() = ObjectColumnStore().also { it.values = values.copyOf() }
+
+    override fun ensureCapacity(capacity: Int) {
+        if (capacity > values.size) {
+            values = values.copyOf(grow(values.size, capacity))
+        }
+    }
+
+    override fun setValue(index: Int, value: Any): Boolean {
+        ensureCapacity(index + 1)
+        values[index] = value
+        return true
+    }
+
+    override fun getValue(index: Int): Any = values[index]!!
+}
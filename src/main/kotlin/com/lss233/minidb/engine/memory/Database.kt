@@ -1,6 +1,7 @@
 package com.lss233.minidb.engine.memory
 
 import com.lss233.minidb.engine.NTuple
+import com.lss233.minidb.engine.QueryCache
 import com.lss233.minidb.engine.memory.internal.catalog.*
 import com.lss233.minidb.engine.memory.internal.information.ColumnsView
 import com.lss233.minidb.engine.memory.internal.information.ParametersView
@@ -21,6 +22,7 @@ class Database(val name: String, val dba: Int, val encoding: Int, val locProvide
         }
 
         schema[table.name] = table
+        QueryCache.invalidate(table.name)
 //        this["information_schema"]["columns"].let {
 //            run {
 //                table.columns.forEachIndexed { index, col -> run {
@@ -49,6 +51,7 @@ class Database(val name: String, val dba: Int, val encoding: Int, val locProvide
     }
     operator fun set(schemaName: String, schema: Schema) {
         schemas[schemaName] = schema
+        Engine.catalogChanged()
     }
 
     fun createSchema(schemaName: String): Schema {
@@ -145,6 +148,8 @@ class Database(val name: String, val dba: Int, val encoding: Int, val locProvide
             throw RuntimeException("View or Table with name ${identifier.idText} does not exist.")
         }
         schema.views.remove(identifier.idText)
+        Engine.catalogChanged()
+        QueryCache.invalidate(identifier.idText)
     }
 
 }
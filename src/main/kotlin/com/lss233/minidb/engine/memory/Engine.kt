@@ -9,6 +9,7 @@ import hu.webarticum.treeprinter.printer.traditional.TraditionalTreePrinter
 import miniDB.parser.ast.expression.primary.Identifier
 import miniDB.parser.ast.stmt.ddl.DDLCreateTableStatement
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 
 object Engine {
     val systemSession: Session = Session()
@@ -17,6 +18,22 @@ object Engine {
 
     private val storageService = StorageService()
 
+    /**
+     * 目录的版本，建库、建模式、建表和删表时增加
+     * 系统视图据此判断缓存的数据是否过期
+     */
+    private val catalogCounter = AtomicLong()
+
+    val catalogVersion: Long
+        get() = catalogCounter.get()
+
+    /**
+     * 数据库中的对象发生了变化
+     */
+    fun catalogChanged() {
+        catalogCounter.incrementAndGet()
+    }
+
     init {
         systemSession.properties["database"] = "minidb"
     }
@@ -75,6 +92,7 @@ object Engine {
         val db = Database(name, dba, encoding, locProvider, allowConn, connLimit)
 
         databases[name] = db
+        catalogChanged()
         // Assign system schema
         db.initSchema()
 
@@ -105,6 +123,7 @@ object Engine {
             }
             this.databases[database] = tempDatabase
         }
+        catalogChanged()
     }
 
     // is temp
@@ -0,0 +1,167 @@
+package com.lss233.minidb.engine.memory
+
+import com.lss233.minidb.engine.operator.SortOperator
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 表的行存储
+ * 每一列按声明类型使用一个 [ColumnStore]，整数和浮点数不装箱，字符串以字节存放，NULL 记录在位图中。
+ * 行数组和 NTuple 只在读取时按需创建。
+ *
+ * 数据按 [Segment] 分段存放，读取通过 [snapshot] 得到的快照进行：
+ * 取快照只复制分段引用的数组，之后对已存在行的修改会先复制所在的分段（写时复制），
+ * 追加的行只写在快照范围之外，因此正在进行的扫描不会看到不一致的数据。
+ *
+ * 快照隔离依赖以下约定，修改这个类时必须保持：
+ * - 快照记下取快照时的行数，只读取这个行数以内的行；追加直接写进快照也引用着的最后一个分段和其中的 [ColumnStore]，
+ *   但只写快照行数之外的位置，NULL 位图中快照范围内的位也不会改变
+ * - [ColumnStore] 扩容时先复制再替换 volatile 的数组引用，读者要么读到旧数组，要么读到已经包含快照中所有数据的新数组
+ * - 修改已有的行，以及因为值与列类型不符而把一列换成对象存储，都先经过 [writable]：
+ *   分段创建于上一次取快照之前时，复制一份并替换 volatile 的分段数组，快照引用的分段和列存储从不原地修改
+ * - 列索引中可能有快照之后追加的行，按快照的行数过滤；列被修改过后快照不再使用存储中的索引
+ *
+ * 同时记录每一列是否一直按追加的顺序升序排列，例如按顺序插入的自增主键，扫描时可以利用这一有序性。
+ * 连接需要按列查找行时，列上的 [ColumnIndex] 在第一次使用时建立，之后随追加的行一起维护
+ */
+class RowStore(val columns: List<Column>) {
+    @Volatile
+    private var segments: Array<Segment> = emptyArray()
+
+    /**
+     * 快照周期，每次取快照加一
+     */
+    private var epoch = 0L
+
+    /**
+     * 每一列是否按行号升序排列，NULL 视为最小；修改过的列不再视为有序
+     */
+    private val ordered = BooleanArray(columns.size) { true }
+    private val lastValues = arrayOfNulls<Any>(columns.size)
+
+    /**
+     * 已经建立的列索引，修改过的列的索引被丢弃，下次使用时重新建立
+     */
+    private val indexes = arrayOfNulls<ColumnIndex>(columns.size)
+
+    /**
+     * 每一列被修改的次数，快照据此判断存储中的索引是否还与快照一致
+     */
+    private val versions = LongArray(columns.size)
+
+    /**
+     * 行数
+     */
+    @Volatile
+    var size = 0
+        private set
+
+    /**
+     * 数据的版本，每次追加或修改时加一
+     */
+    @Volatile
+    var version = 0L
+        private set
+
+    /**
+     * 追加一行
+     */
+    @Synchronized
+    fun add(row: Array<out Any?>) {
+        if (row.size != columns.size) {
+            throw RuntimeException("Incorrect row size ${row.size}, expected ${columns.size}.")
+        }
+        if (segments.isEmpty() || segments.last().size == Segment.CAPACITY) {
+            segments = segments + Segment(Array(columns.size) { ColumnStore.of(columns[it]) }, epoch)
+        }
+        val index = segments.size - 1
+        val offset = segments[index].size
+        for (column in row.indices) {
+            write(index, column, offset, row[column])
+            if (ordered[column] && size > 0 && SortOperator.compareKeys(lastValues[column], row[column]) > 0) {
+                ordered[column] = false
+            }
+            lastValues[column] = row[column]
+            indexes[column]?.add(row[column], size)
+        }
+        segments[index].size++
+        size++
+        version++
+    }
+
+    /**
+     * 读取一个值
+     * @param index 行号
+     * @param column 列下标
+     */
+    @Synchronized
+    fun get(index: Int, column: Int): Any? =
+        segments[index / Segment.CAPACITY].stores[column].get(index % Segment.CAPACITY)
+
+    /**
+     * 修改一个值
+     * @param index 行号
+     * @param column 列下标
+     */
+    @Synchronized
+    fun set(index: Int, column: Int, value: Any?) {
+        if (index >= size) {
+            throw IndexOutOfBoundsException("Row $index does not exist.")
+        }
+        val segment = index / Segment.CAPACITY
+        writable(segment)
+        write(segment, column, index % Segment.CAPACITY, value)
+        ordered[column] = false
+        indexes[column] = null
+        versions[column]++
+        version++
+    }
+
+    /**
+     * 取得当前数据的快照
+     */
+    @Synchronized
+    fun snapshot(): TableSnapshot {
+        epoch++
+        return TableSnapshot(columns, segments, size, ordered.copyOf(), this, versions.copyOf())
+    }
+
+    /**
+     * 取得一列的索引，还没有建立时先建立
+     * 索引中可能有快照之后追加的行，查找时按快照的行数过滤
+     * @param version 快照中这一列的修改次数
+     * @return 快照之后这一列被修改过时返回 null
+     */
+    @Synchronized
+    fun index(column: Int, version: Long): ColumnIndex? {
+        if (versions[column] != version) {
+            return null
+        }
+        return indexes[column] ?: ColumnIndex.of(TableSnapshot(columns, segments, size), column).also { indexes[column] = it }
+    }
+
+    /**
+     * 保证分段没有被快照引用，否则先复制一份替换掉
+     */
+    private fun writable(index: Int): Segment {
+        val segment = segments[index]
+        if (segment.epoch == epoch) {
+            return segment
+        }
+        val copied = segment.copy(epoch)
+        segments = segments.copyOf().also { it[index] = copied }
+        return copied
+    }
+
+    private fun write(index: Int, column: Int, offset: Int, value: Any?) {
+        if (!segments[index].stores[column].set(offset, value)) {
+            // 值与列的声明类型不符，这一列改为直接存放对象
+            val segment = writable(index)
+            val objects = ObjectColumnStore()
+            for (existing in 0 until maxOf(segment.size, offset)) {
+                objects.set(existing, segment.stores[column].get(existing))
+            }
+            objects.set(offset, value)
+            segment.stores[column] = objects
+        }
+    }
+}
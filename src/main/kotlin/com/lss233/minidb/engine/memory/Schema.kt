@@ -7,10 +7,12 @@ class Schema(schemaName: String) {
 
     operator fun set(name: String, view: View) {
         views[name] = view
+        Engine.catalogChanged()
     }
 
     operator fun set(name: String, table: Table) {
         views[name] = table
+        Engine.catalogChanged()
     }
     operator fun get(name: String) : View
         = views[name] ?: throw RuntimeException("View $name does not exist.")
@@ -0,0 +1,29 @@
+package com.lss233.minidb.engine.memory
+
+/**
+ * 表数据的一个分段，每段最多 [CAPACITY] 行
+ * @param stores 每一列的存储
+ * @param epoch 创建分段时所处的快照周期，周期改变之后分段可能已被快照引用，修改前必须先复制
+ */
+class Segment(val stores: Array<ColumnStore>, val epoch: Long) {
+    /**
+     * 分段中的行数
+     */
+    var size = 0
+
+    /**
+     * 复制一份，用于写时复制
+     */
+    fun copy(epoch: Long): Segment {
+        val segment = Segment(Array(stores.size) { stores[it].copy() }, epoch)
+        segment.size = size
+        return segment
+    }
+
+    companion object {
+        /**
+         * 每段的行数，与批量执行的批大小一致，扫描时一段正好装满一批
+         */
+        const val CAPACITY = 1024
+    }
+}
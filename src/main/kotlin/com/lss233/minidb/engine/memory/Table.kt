@@ -3,56 +3,96 @@ package com.lss233.minidb.engine.memory
 import com.lss233.minidb.engine.Cell
 import com.lss233.minidb.engine.NTuple
 import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.TableScanOperator
 import com.lss233.minidb.engine.schema.Column
 import miniDB.parser.ast.expression.Expression
+import miniDB.parser.ast.expression.primary.literal.LiteralNull
+import miniDB.parser.ast.expression.primary.literal.LiteralNumber
+import miniDB.parser.ast.expression.primary.literal.LiteralString
 import java.util.function.Predicate
-class Table(val name: String, private val relation: Relation): View() {
+class Table(val name: String, val columns: MutableList<Column>): View() {
+    private val store = RowStore(columns)
 
-    constructor(name: String, columns: MutableList<Column>, tuples: MutableList<NTuple>) :
-            this(name, Relation(columns, tuples.map { it.toArray() }.toMutableList()))
+    constructor(name: String, relation: Relation) : this(name, relation.columns) {
+        relation.rows.forEach { insert(it) }
+    }
+
+    constructor(name: String, columns: MutableList<Column>, tuples: MutableList<NTuple>) : this(name, columns) {
+        tuples.forEach { tuple -> store.add(tuple.map { if (it is Cell<*>) it.value else it }.toTypedArray()) }
+    }
 
     /**
      * Get a copy of relation
      * @return Relation of this table
      */
     override fun getRelation(): Relation
-        = relation.clone()
+        = Relation(columns, store.snapshot().rows())
+
+    /**
+     * 表中数据的版本，插入和修改行时增加，查询结果缓存据此判断缓存的结果是否过期
+     */
+    val version: Long
+        get() = store.version
+
+    /**
+     * 取得表数据的只读快照，不复制数据
+     */
+    fun snapshot(): TableSnapshot = store.snapshot()
+
+    /**
+     * 扫描快照，列用别名重新限定，不修改表本身的列
+     */
+    override fun scan(alias: String): Operator =
+        TableScanOperator(store.snapshot(), columns.map { it.qualified(alias) }.toMutableList()).also { it.alias = alias }
 
     override fun insert(row: Array<Any>) {
-        if(row.size != relation.columns.size) {
+        if(row.size != columns.size) {
             throw RuntimeException("Unable inserting row for table `$name`, incorrect row size and column size.")
         }
-        relation.rows.add(row)
+        store.add(row)
     }
     override fun insert(row: NTuple) {
-        val tuple = NTuple()
-        val arr = ArrayList<Any>()
+        val arr = arrayOfNulls<Any>(columns.size)
 
-        for(column in relation.columns) {
+        columns.forEachIndexed { index, column ->
             if(row.columns.contains(column)) {
-                tuple.add(row[column])
-                arr.add((row[column] as Cell<*>).value!!)
+                arr[index] = (row[column] as Cell<*>).value
             } else {
-                tuple.add(Cell(column, column.defaultValue() ?:
+                arr[index] = column.defaultValue() ?:
                     throw RuntimeException("Unable inserting row for table `$name`, " +
-                            "no default value for column `${column.name}`.")))
-                arr.add(column.defaultValue()!!)
+                            "no default value for column `${column.name}`.")
             }
         }
-        relation.tuples.add(tuple)
-        insert(arr.toArray())
+        store.add(arr)
     }
 
-    override fun update(cond: Predicate<NTuple>, updated: Array<Cell<Expression>>): Int {
+    /**
+     * 把满足条件的行的指定列改为新的值
+     * @param cond 在快照的行上检查的条件，行中的值按 [columns] 的顺序排列
+     * @return 修改的行数
+     */
+    override fun update(cond: Predicate<Array<Any>>, updated: Array<Cell<Expression>>): Int {
         var affectsCounter = 0
-        for (tuple in relation.tuples) {
-            if(cond.test(tuple)) {
-                affectsCounter ++
-                for (cell in updated) {
-                    tuple[cell.column] = cell.value
+        val targets = updated.map { cell -> columns.indexOf(cell.column).takeIf { it >= 0 }
+            ?: throw RuntimeException("No such column named ${cell.column}") }
+        synchronized(store) {
+            val snapshot = store.snapshot()
+            for (index in 0 until snapshot.size) {
+                if(cond.test(snapshot.row(index))) {
+                    affectsCounter ++
+                    updated.forEachIndexed { i, cell -> store.set(index, targets[i], valueOf(cell.value)) }
                 }
             }
         }
         return affectsCounter
     }
-}
\ No newline at end of file
+
+    private fun valueOf(expression: Expression): Any? =
+        when (expression) {
+            is LiteralString -> expression.unescapedString
+            is LiteralNumber -> expression.number
+            is LiteralNull -> null
+            else -> expression
+        }
+}
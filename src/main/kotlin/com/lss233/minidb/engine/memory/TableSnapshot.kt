@@ -0,0 +1,102 @@
+package com.lss233.minidb.engine.memory
+
+import com.lss233.minidb.engine.Cell
+import com.lss233.minidb.engine.NTuple
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 表在某一时刻的只读快照
+ * 只持有分段的引用，创建的代价与行数无关；之后的插入和修改都不会影响快照中看到的数据
+ * @param size 快照中的行数
+ * @param ordered 每一列是否按行号升序排列
+ * @param store 快照所属的行存储，用来取得列索引
+ * @param versions 取快照时每一列的修改次数
+ */
+class TableSnapshot(
+    val columns: List<Column>,
+    private val segments: Array<Segment>,
+    val size: Int,
+    private val ordered: BooleanArray = BooleanArray(columns.size),
+    private val store: RowStore? = null,
+    private val versions: LongArray = LongArray(columns.size)
+) {
+
+    /**
+     * 这一列是否按行号升序排列，NULL 视为最小；行号本身总是有序的
+     */
+    fun isOrdered(column: Int): Boolean = column == ROW_ID || ordered[column]
+
+    /**
+     * 分段数
+     */
+    val segmentCount: Int
+        get() = (size + Segment.CAPACITY - 1) / Segment.CAPACITY
+
+    /**
+     * 取得一个分段
+     */
+    fun segment(index: Int): Segment = segments[index]
+
+    /**
+     * 分段中属于快照的行数
+     */
+    fun segmentSize(index: Int): Int = minOf(Segment.CAPACITY, size - index * Segment.CAPACITY)
+
+    /**
+     * 读取一个值
+     * @param index 行号
+     * @param column 列下标
+     */
+    fun get(index: Int, column: Int): Any? =
+        segments[index / Segment.CAPACITY].stores[column].get(index % Segment.CAPACITY)
+
+    /**
+     * 取出一行
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun row(index: Int): Array<Any> {
+        val segment = segments[index / Segment.CAPACITY]
+        val offset = index % Segment.CAPACITY
+        return Array(columns.size) { segment.stores[it].get(offset) } as Array<Any>
+    }
+
+    /**
+     * 只取出一行中的部分列
+     * @param fields 依次要取出的列下标，[ROW_ID] 表示取行号
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun row(index: Int, fields: IntArray): Array<Any> {
+        val segment = segments[index / Segment.CAPACITY]
+        val offset = index % Segment.CAPACITY
+        return Array(fields.size) { if (fields[it] == ROW_ID) index.toLong() else segment.stores[fields[it]].get(offset) } as Array<Any>
+    }
+
+    /**
+     * 以元组的形式取出一行
+     */
+    fun tuple(index: Int): NTuple {
+        val tuple = NTuple()
+        for (column in columns.indices) {
+            tuple.add(Cell(columns[column], get(index, column)))
+        }
+        return tuple
+    }
+
+    /**
+     * 取得一列的索引
+     * 优先使用行存储中维护的索引；快照之后这一列被修改过时，存储中的索引已与快照不一致，为快照单独建立一个
+     */
+    fun index(column: Int): ColumnIndex = store?.index(column, versions[column]) ?: ColumnIndex.of(this, column)
+
+    /**
+     * 取出所有行
+     */
+    fun rows(): MutableList<Array<Any>> = MutableList(size) { row(it) }
+
+    companion object {
+        /**
+         * 代表行号的列下标，行号以 Long 的形式输出，可以用 [get] 重新读取这一行的其它列
+         */
+        const val ROW_ID = -1
+    }
+}
@@ -3,6 +3,8 @@ package com.lss233.minidb.engine.memory
 import com.lss233.minidb.engine.Cell
 import com.lss233.minidb.engine.NTuple
 import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.ScanOperator
 import miniDB.parser.ast.expression.Expression
 import java.util.function.Predicate
 
@@ -14,13 +16,19 @@ abstract class View {
         return ret
     }
 
+    /**
+     * 创建扫描算子
+     * @param alias 表的别名，用于限定列名
+     */
+    open fun scan(alias: String): Operator = ScanOperator(getRelation(alias))
+
     open fun insert(row: Array<Any>) {
         throw UnsupportedOperationException("Cannot perform insert on view")
     }
     open fun insert(row: NTuple) {
         throw UnsupportedOperationException("Cannot perform insert on view")
     }
-    open fun update(cond: Predicate<NTuple>, updated: Array<Cell<Expression>>): Int {
+    open fun update(cond: Predicate<Array<Any>>, updated: Array<Cell<Expression>>): Int {
         throw UnsupportedOperationException("Cannot perform update on view")
     }
 }
\ No newline at end of file
@@ -0,0 +1,28 @@
+package com.lss233.minidb.engine.memory.internal
+
+import com.lss233.minidb.engine.memory.Engine
+
+/**
+ * 系统视图的数据快照
+ * 系统视图的数据由数据库中的对象生成，只在建库、建表、删表等操作之后才会变化。
+ * 这里记下生成数据时的 [Engine.catalogVersion]，版本没有变化时直接返回上次生成的数据，
+ * 客户端连接时反复查询系统视图只需付出连接的代价
+ * @param generate 生成视图的数据
+ */
+class CatalogSnapshot(private val generate: () -> MutableList<Array<Any>>) {
+    private class Data(val version: Long, val rows: List<Array<Any>>)
+
+    @Volatile
+    private var data: Data? = null
+
+    /**
+     * 当前的数据，返回的列表可以由调用者修改
+     */
+    fun rows(): MutableList<Array<Any>> {
+        // 先读版本再生成，生成期间目录再变化时下次读取会重新生成
+        val version = Engine.catalogVersion
+        val current = data?.takeIf { it.version == version }
+            ?: Data(version, generate()).also { data = it }
+        return ArrayList(current.rows)
+    }
+}
@@ -3,6 +3,7 @@ package com.lss233.minidb.engine.memory.internal.catalog
 import com.lss233.minidb.engine.Relation
 import com.lss233.minidb.engine.memory.Database
 import com.lss233.minidb.engine.memory.View
+import com.lss233.minidb.engine.memory.internal.CatalogSnapshot
 import com.lss233.minidb.engine.schema.Column
 
 /**
@@ -13,6 +14,11 @@ abstract class PostgresCatalogView(val database: Database): View() {
     protected abstract fun getColumns(): MutableList<Column>
     protected abstract fun generateData(): MutableList<Array<Any>>
 
+    private val snapshot = CatalogSnapshot(::generateData)
+
+    /**
+     * 列每次重新创建，别名会修改列的限定名；数据取自快照，目录没有变化时不重新生成
+     */
     override fun getRelation(): Relation
-        = Relation(getColumns(), generateData())
+        = Relation(getColumns(), snapshot.rows())
 }
\ No newline at end of file
@@ -0,0 +1,274 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.aggregate.Aggregator
+import com.lss233.minidb.engine.aggregate.LongGroupTable
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.expression.ValueType
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 哈希聚合算子
+ * open 时读完下层的全部数据，把每一行累加到所属的分组，之后逐个分组输出。
+ * 输出的列依次是各个分组键和各个聚合函数的结果；没有分组键时整个输入是一个分组，输入为空也输出一行。
+ * 只有一个整数分组键时用 [LongGroupTable] 查找分组，不必为每一行创建键对象。
+ *
+ * 分组增多时向 [MemoryManager] 申请内存，申请不到时分组表不再增长：已有分组的行照常累加，
+ * 新分组的行按分组键的哈希值写入若干个临时文件分区，内存中的分组输出完之后逐个分区重新聚合；
+ * 分区仍然放不下时按哈希值的下一段继续分区，最多分 [MAX_LEVEL] 层
+ * @param keys 分组键
+ * @param aggregators 聚合函数
+ * @param columns 输出的列
+ */
+abstract class AggregateOperator(
+    protected val keys: List<Evaluator>,
+    protected val aggregators: List<Aggregator>,
+    override val columns: MutableList<Column>
+) : Operator() {
+    /**
+     * 是否按单个整数键分组
+     */
+    protected val longKey = keys.size == 1 && keys[0].type == ValueType.LONG
+    private var longGroups = LongGroupTable()
+    private var nullGroup = -1
+    private val groups = HashMap<Any, Int>()
+
+    /**
+     * 每个分组的键值，下标就是分组编号
+     */
+    private val keyValues = ArrayList<Array<Any?>>()
+    private var cursor = 0
+
+    private var memory: MemoryReservation? = null
+    private var bytes = 0L
+
+    /**
+     * 溢出之后新分组的行写入的分区，没有溢出时为 null
+     */
+    private var partitions: Array<SpillFile>? = null
+
+    /**
+     * 当前输入的分区层数，从下层算子读取时为 0
+     */
+    private var level = 0
+
+    /**
+     * 还没有聚合的分区和它们的层数
+     */
+    private val pending = ArrayDeque<Pair<SpillFile, Int>>()
+
+    /**
+     * 分组表是否已经停止增长，此时新分组的分组编号为 -1，这一行要交给 [spill]
+     */
+    protected val spilling: Boolean
+        get() = partitions != null
+
+    override fun open() {
+        close()
+        memory = MemoryManager.reserve()
+        level = 0
+        consume()
+        if (keys.isEmpty()) {
+            singleGroup()
+        }
+        cursor = 0
+    }
+
+    /**
+     * 读完下层的全部数据并累加到各个分组
+     */
+    protected abstract fun consume()
+
+    @Suppress("UNCHECKED_CAST")
+    override fun next(): Array<Any>? {
+        while (cursor >= keyValues.size) {
+            if (!nextPartition()) {
+                return null
+            }
+        }
+        val group = cursor++
+        val key = keyValues[group]
+        val row = arrayOfNulls<Any>(key.size + aggregators.size)
+        System.arraycopy(key, 0, row, 0, key.size)
+        for (index in aggregators.indices) {
+            row[key.size + index] = aggregators[index].result(group)
+        }
+        return row as Array<Any>
+    }
+
+    override fun close() {
+        clear()
+        memory?.close()
+        memory = null
+    }
+
+    /**
+     * 把一行累加到所属的分组，分组表停止增长后新分组的行写入分区
+     */
+    protected fun add(row: Array<Any>) {
+        val group = groupOf(row)
+        if (group < 0) {
+            spill(row)
+            return
+        }
+        for (aggregator in aggregators) {
+            aggregator.add(group, row)
+        }
+    }
+
+    /**
+     * 把新分组的一行按分组键的哈希值写入分区
+     */
+    protected fun spill(row: Array<Any>) {
+        val files = partitions ?: throw IllegalStateException("Aggregation is not spilling.")
+        val hash = when {
+            longKey -> if (keys[0].isNull(row)) 0 else java.lang.Long.hashCode(keys[0].evaluateLong(row))
+            else -> keys.map { key -> key.evaluate(row)?.let { Aggregator.normalize(it) } }.hashCode()
+        }
+        files[((hash * HASH_MULTIPLIER) ushr (32 - PARTITION_BITS * (level + 1))) and ((1 shl PARTITION_BITS) - 1)].write(row)
+    }
+
+    /**
+     * 一行所在的分组编号，新的键会登记为新的分组，分组表停止增长后新的键返回 -1
+     */
+    protected fun groupOf(row: Array<Any>): Int =
+        when {
+            keys.isEmpty() -> singleGroup()
+            longKey -> if (keys[0].isNull(row)) groupOfNull() else groupOfLong(keys[0].evaluateLong(row))
+            else -> {
+                val values = Array(keys.size) { keys[it].evaluate(row) }
+                val key: Any = if (values.size == 1) {
+                    values[0]?.let { Aggregator.normalize(it) } ?: NULL_KEY
+                } else {
+                    values.map { value -> value?.let { Aggregator.normalize(it) } }
+                }
+                groups[key] ?: if (spilling) -1 else newGroup(values).also { groups[key] = it }
+            }
+        }
+
+    /**
+     * 整数键所在的分组编号
+     */
+    protected fun groupOfLong(key: Long): Int {
+        if (spilling) {
+            return longGroups.find(key)
+        }
+        val group = longGroups.findOrInsert(key, keyValues.size)
+        return if (group == keyValues.size) newGroup(arrayOf(key)) else group
+    }
+
+    /**
+     * 整数键为 NULL 的分组编号
+     */
+    protected fun groupOfNull(): Int {
+        if (nullGroup < 0) {
+            if (spilling) {
+                return -1
+            }
+            nullGroup = newGroup(arrayOfNulls(1))
+        }
+        return nullGroup
+    }
+
+    /**
+     * 没有分组键时唯一的分组
+     */
+    protected fun singleGroup(): Int = if (keyValues.isEmpty()) newGroup(arrayOfNulls(0)) else 0
+
+    private fun newGroup(key: Array<Any?>): Int {
+        keyValues.add(key)
+        for (aggregator in aggregators) {
+            aggregator.resize(keyValues.size)
+        }
+        bytes += GROUP_OVERHEAD + 16L * (key.size + aggregators.size)
+        val granted = memory?.reserve(bytes) ?: true
+        if (!granted && keys.isNotEmpty() && level < MAX_LEVEL) {
+            partitions = Array(1 shl PARTITION_BITS) { SpillFile("aggregate") }
+        }
+        return keyValues.size - 1
+    }
+
+    /**
+     * 内存中的分组输出完后，聚合下一个分区，没有时返回 false
+     */
+    private fun nextPartition(): Boolean {
+        // 先处理刚分出来的分区，同时存在的临时文件不会太多
+        partitions?.let { files ->
+            for (file in files.reversed()) {
+                if (file.rows > 0) {
+                    file.seal()
+                    pending.addFirst(Pair(file, level + 1))
+                } else {
+                    file.close()
+                }
+            }
+        }
+        partitions = null
+        val (file, next) = pending.removeFirstOrNull() ?: return false
+        clearGroups()
+        level = next
+        try {
+            file.reader().use { reader ->
+                while (true) {
+                    add(reader.next() ?: break)
+                }
+            }
+        } finally {
+            file.close()
+        }
+        cursor = 0
+        return true
+    }
+
+    /**
+     * 丢弃全部分组，归还预留的内存
+     */
+    private fun clearGroups() {
+        longGroups = LongGroupTable()
+        nullGroup = -1
+        groups.clear()
+        keyValues.clear()
+        for (aggregator in aggregators) {
+            aggregator.clear()
+        }
+        bytes = 0
+        memory?.release()
+    }
+
+    /**
+     * 丢弃全部分组，关闭并删除所有临时文件
+     */
+    private fun clear() {
+        clearGroups()
+        partitions?.forEach { it.close() }
+        partitions = null
+        pending.forEach { it.first.close() }
+        pending.clear()
+    }
+
+    companion object {
+        /**
+         * 单个分组键为 NULL 时在哈希表中使用的键
+         */
+        private val NULL_KEY = Any()
+
+        /**
+         * 每层分区数为 2 的这么多次方
+         */
+        private const val PARTITION_BITS = 4
+
+        /**
+         * 最多分区的层数，最后一层的分区放不下时分组表继续增长
+         */
+        private const val MAX_LEVEL = 3
+
+        /**
+         * 用于打散哈希值的乘数，分区取乘积的高位
+         */
+        private const val HASH_MULTIPLIER = -0x61c88647
+
+        /**
+         * 每个分组除了键和聚合状态以外在哈希表中占用的内存
+         */
+        private const val GROUP_OVERHEAD = 64L
+    }
+}
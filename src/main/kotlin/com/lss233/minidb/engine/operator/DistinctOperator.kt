@@ -0,0 +1,257 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 去重算子，用于 SELECT DISTINCT 和不带 ALL 的 UNION
+ * 每行编码成紧凑的二进制键放入哈希集合，第一次出现的行立即输出，重复的行直接丢弃，不需要先读完全部输入。
+ * 数值按 [HashJoinOperator.normalizeKey] 归一化后编码，1 和 1.0 视为相同；NULL 与 NULL 视为相同。
+ *
+ * 哈希集合超过 memoryLimit 或向 [MemoryManager] 申请不到内存后不再增长：之后读到的行若不在集合中，按键的哈希值写入若干个临时文件分区，
+ * 输入读完后逐个分区重新去重；分区仍然放不下时按哈希值的下一段继续分区，最多分 [MAX_LEVEL] 层。
+ * 溢出之后的行会推迟到最后输出，[preserveOrder] 为 true 时不溢出，按输入的顺序输出，此时内存申请不到也继续增长
+ * @param memoryLimit 哈希集合占用的内存上限（估算的字节数）
+ * @param preserveOrder 是否必须保持输入的顺序，如输入已经按 ORDER BY 排好序
+ */
+class DistinctOperator(
+    private val child: Operator,
+    private val memoryLimit: Long = ExecutionConfig.DISTINCT_BUFFER_SIZE,
+    private val preserveOrder: Boolean = false
+) : Operator() {
+    override val columns: MutableList<Column> = child.columns
+    private var seen = HashSet<Key>()
+    private var bytes = 0L
+
+    /**
+     * 当前输入已经溢出时，之后读到的新行写入的分区
+     */
+    private var partitions: Array<SpillFile>? = null
+
+    /**
+     * 当前输入的分区层数，从子算子读取时为 0
+     */
+    private var level = 0
+    private var reader: SpillFile.Reader? = null
+    private var current: SpillFile? = null
+
+    /**
+     * 是否还在从子算子读取，读完之后才处理分区
+     */
+    private var reading = false
+
+    /**
+     * 还没有处理的分区和它们的层数
+     */
+    private val pending = ArrayDeque<Pair<SpillFile, Int>>()
+    private val encoder = KeyEncoder()
+    private var memory: MemoryReservation? = null
+
+    init {
+        alias = child.alias
+    }
+
+    override fun open() {
+        release()
+        memory = MemoryManager.reserve()
+        level = 0
+        child.open()
+        reading = true
+    }
+
+    override fun next(): Array<Any>? {
+        while (true) {
+            val row = (if (reading) child.next() else reader?.next()) ?: if (nextPartition()) continue else return null
+            val key = encoder.encode(row)
+            if (key in seen) {
+                continue
+            }
+            val files = partitions
+            if (files != null) {
+                files[partitionOf(key, level)].write(row)
+                continue
+            }
+            seen.add(key)
+            bytes += ENTRY_OVERHEAD + key.bytes.size
+            val granted = memory?.reserve(bytes) ?: true
+            if ((bytes > memoryLimit || !granted) && !preserveOrder && level < MAX_LEVEL) {
+                partitions = Array(1 shl PARTITION_BITS) { SpillFile("distinct") }
+            }
+            return row
+        }
+    }
+
+    override fun close() {
+        if (reading) {
+            child.close()
+            reading = false
+        }
+        release()
+    }
+
+    /**
+     * 丢弃哈希集合，关闭并删除所有临时文件
+     */
+    private fun release() {
+        reader?.close()
+        reader = null
+        current?.close()
+        current = null
+        partitions?.forEach { it.close() }
+        partitions = null
+        pending.forEach { it.first.close() }
+        pending.clear()
+        seen = HashSet()
+        bytes = 0
+        memory?.close()
+        memory = null
+    }
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = preserveOrder && child.orderedBy(slot)
+
+    /**
+     * 当前输入读完，换成下一个没有处理的分区，没有时返回 false
+     */
+    private fun nextPartition(): Boolean {
+        if (reading) {
+            child.close()
+            reading = false
+        }
+        reader?.close()
+        reader = null
+        current?.close()
+        current = null
+        // 先处理刚分出来的分区，同时存在的临时文件不会太多
+        partitions?.let { files ->
+            for (file in files.reversed()) {
+                if (file.rows > 0) {
+                    file.seal()
+                    pending.addFirst(Pair(file, level + 1))
+                } else {
+                    file.close()
+                }
+            }
+        }
+        partitions = null
+        val (file, next) = pending.removeFirstOrNull() ?: return false
+        seen = HashSet()
+        bytes = 0
+        memory?.release()
+        level = next
+        current = file
+        reader = file.reader()
+        return true
+    }
+
+    /**
+     * 第 [level] 层分区取哈希值中的一段，每层用不同的位
+     */
+    private fun partitionOf(key: Key, level: Int): Int =
+        ((key.hashCode() * HASH_MULTIPLIER) ushr (level * PARTITION_BITS)) and ((1 shl PARTITION_BITS) - 1)
+
+    /**
+     * 一行编码后的二进制键
+     */
+    private class Key(val bytes: ByteArray) {
+        private val hash = bytes.contentHashCode()
+
+        override fun hashCode(): Int = hash
+
+        override fun equals(other: Any?): Boolean = other is Key && hash == other.hash && bytes.contentEquals(other.bytes)
+    }
+
+    /**
+     * 把一行编码成二进制键，每个值前有一个字节的类型标记，整数按变长编码；
+     * 字符串先写长度，ASCII 字符占一个字节，其余字符以 0x80 开头再写两个字节
+     */
+    private class KeyEncoder {
+        private var buffer = ByteArray(64)
+        private var size = 0
+
+        fun encode(row: Array<Any>): Key {
+            size = 0
+            for (value in row as Array<Any?>) {
+                when (val normalized = HashJoinOperator.normalizeKey(value)) {
+                    null -> put(NULL)
+                    is Long -> {
+                        put(LONG)
+                        putVarLong(normalized)
+                    }
+                    is Double -> {
+                        put(DOUBLE)
+                        putVarLong(java.lang.Double.doubleToLongBits(normalized))
+                    }
+                    is String -> putString(STRING, normalized)
+                    is Boolean -> put(if (normalized) TRUE else FALSE)
+                    else -> putString(OTHER, normalized.toString())
+                }
+            }
+            return Key(buffer.copyOf(size))
+        }
+
+        private fun put(byte: Int) {
+            if (size == buffer.size) {
+                buffer = buffer.copyOf(size * 2)
+            }
+            buffer[size++] = byte.toByte()
+        }
+
+        /**
+         * 每个字节存 7 位，最高位表示后面还有字节
+         */
+        private fun putVarLong(value: Long) {
+            var rest = (value shl 1) xor (value shr 63)
+            while (rest and 0x7FL.inv() != 0L) {
+                put(((rest and 0x7F) or 0x80).toInt())
+                rest = rest ushr 7
+            }
+            put(rest.toInt())
+        }
+
+        private fun putString(tag: Int, value: String) {
+            put(tag)
+            putVarLong(value.length.toLong())
+            for (char in value) {
+                if (char.code < 0x80) {
+                    put(char.code)
+                } else {
+                    put(0x80)
+                    put(char.code shr 8)
+                    put(char.code and 0xFF)
+                }
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * 每层分区数为 2 的这么多次方
+         */
+        private const val PARTITION_BITS = 4
+
+        /**
+         * 最多分区的层数，最后一层的分区放不下时哈希集合继续增长
+         */
+        private const val MAX_LEVEL = 3
+
+        /**
+         * 用于打散哈希值的乘数
+         */
+        private const val HASH_MULTIPLIER = -0x61c88647
+
+        /**
+         * 哈希集合中每个键除了编码本身以外占用的内存
+         */
+        private const val ENTRY_OVERHEAD = 64L
+
+        private const val NULL = 0
+        private const val LONG = 1
+        private const val DOUBLE = 2
+        private const val STRING = 3
+        private const val TRUE = 4
+        private const val FALSE = 5
+        private const val OTHER = 6
+    }
+}
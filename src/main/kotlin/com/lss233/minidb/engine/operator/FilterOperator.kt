@@ -0,0 +1,35 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.schema.Column
+import java.util.function.Predicate
+
+/**
+ * 选择算子
+ * 只输出满足条件的行
+ */
+class FilterOperator(private val child: Operator, private val cond: Predicate<Array<Any>>) : Operator() {
+    override val columns: MutableList<Column> = child.columns
+
+    init {
+        alias = child.alias
+    }
+
+    override fun open() = child.open()
+
+    override fun next(): Array<Any>? {
+        while (true) {
+            val row = child.next() ?: return null
+            if (cond.test(row)) {
+                return row
+            }
+        }
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(slot)
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = child.pushRuntimeFilter(slot, filter)
+}
@@ -0,0 +1,29 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.aggregate.Aggregator
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 逐行输入的哈希聚合算子
+ */
+class HashAggregateOperator(
+    private val child: Operator,
+    keys: List<Evaluator>,
+    aggregators: List<Aggregator>,
+    columns: MutableList<Column>
+) : AggregateOperator(keys, aggregators, columns) {
+
+    override fun consume() {
+        child.open()
+        try {
+            while (true) {
+                add(child.next() ?: break)
+            }
+        } finally {
+            child.close()
+        }
+    }
+
+    override fun estimatedRows(): Long = if (keys.isEmpty()) 1 else child.estimatedRows()
+}
@@ -0,0 +1,680 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.JoinType
+import com.lss233.minidb.engine.config.ExecutionConfig
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinTask
+import java.util.function.Predicate
+
+/**
+ * 哈希连接
+ * 打开时在估计行数较少的一侧按连接键建立哈希表，之后逐行从另一侧拉取数据探测，
+ * 只有键相等的行对才会被拼接并检查剩余条件。
+ * 两侧都很大且并行度大于 1 时改为分区并行连接：两侧按连接键的哈希值分成同样多的分区，
+ * 每个分区的哈希表足够小、能放进缓存，各对分区在共享线程池中独立地建表和探测，结果按分区顺序输出。
+ * 每对分区每次最多输出 [OUTPUT_CHUNK_ROWS] 行，取走之后再接着执行，多对多的连接也不会把整个分区的结果堆在内存中；
+ * 同时执行的各对分区的结果按估算大小预留内存，预留不到时减少同时执行的分区数，最少只执行一对。
+ * 读完建表一侧后，按每个连接键的取值构造 [RuntimeFilter] 下推到探测一侧的表扫描，不能匹配的行在扫描时就被丢掉。
+ *
+ * 缓存的行向 [MemoryManager] 申请内存，申请不到时把两侧按连接键的哈希值分区写到临时文件，
+ * 之后逐对分区用新的哈希连接处理；分区仍然放不下时按哈希值的下一段继续分区，最多分 [MAX_SPILL_LEVEL] 层
+ * @param leftKeys 左侧参与等值比较的列下标
+ * @param rightKeys 右侧参与等值比较的列下标，与 leftKeys 一一对应
+ * @param residual 等值条件以外的剩余连接条件，没有则为 null
+ * @param level 溢出分区的层数，处理溢出分区的连接为上一层加一
+ */
+class HashJoinOperator(
+    left: Operator,
+    right: Operator,
+    private val leftKeys: IntArray,
+    private val rightKeys: IntArray,
+    joinType: JoinType,
+    private val residual: Predicate<Array<Any>>?,
+    private val level: Int = 0
+) : JoinOperator(left, right, joinType) {
+    private var buildLeft = true
+    private var buildRows = ArrayList<Array<Any>>()
+    private var table = HashMap<Any, MutableList<Int>>()
+    private var buildMatched: BooleanArray? = null
+    private var preserveProbe = false
+
+    private lateinit var probe: Operator
+    private var probeKeys = rightKeys
+    private var probeRow: Array<Any>? = null
+    private var candidates: List<Int> = emptyList()
+    private var candidateCursor = 0
+    private var linked = false
+    private var probeExhausted = false
+    private var unmatchedCursor = 0
+
+    private var preserveBuild = false
+    private var partitioned: Partitioned? = null
+    private val running = ArrayDeque<ForkJoinTask<Chunk>>()
+    private var nextPartition = 0
+
+    /**
+     * 同时执行的分区数
+     */
+    private var inFlight = 1
+
+    /**
+     * 读入和分区两侧数据预留的字节数，输出的预留在此之上
+     */
+    private var inputBytes = 0L
+
+    /**
+     * 已经取走的结果中最大的估算字节数，还没有取走任何结果时按每一块都是满的估算
+     */
+    private var chunkBytes = 0L
+    private var measured = false
+    private var partitionRows: List<Array<Any>> = emptyList()
+    private var partitionCursor = 0
+
+    private var buildKeys = leftKeys
+    private var memory: MemoryReservation? = null
+    private var spilled: Spilled? = null
+
+    /**
+     * 正在处理的一对溢出分区的连接
+     */
+    private var spillJoin: HashJoinOperator? = null
+
+    override fun open() {
+        releaseSpill()
+        memory?.close()
+        val memory = MemoryManager.reserve().also { this.memory = it }
+        buildLeft = left.estimatedRows() <= right.estimatedRows()
+        val build = if (buildLeft) left else right
+        buildKeys = if (buildLeft) leftKeys else rightKeys
+        probe = if (buildLeft) right else left
+        probeKeys = if (buildLeft) rightKeys else leftKeys
+        // 外连接中需要保留未匹配行的一侧
+        preserveBuild = (joinType == JoinType.LEFT && buildLeft) || (joinType == JoinType.RIGHT && !buildLeft)
+        preserveProbe = (joinType == JoinType.LEFT && !buildLeft) || (joinType == JoinType.RIGHT && buildLeft)
+
+        val degree = WorkerPool.degree()
+        // 并行连接要先读完探测一侧再分区，上层只需要少量行时逐行探测，输出足够后就不再读探测一侧
+        val parallel = degree > 1 && rowLimit >= ExecutionConfig.PARALLEL_JOIN_THRESHOLD &&
+                minOf(left.estimatedRows(), right.estimatedRows()) >= ExecutionConfig.PARALLEL_JOIN_THRESHOLD
+        partitioned = null
+        buildRows = ArrayList()
+        table = HashMap()
+        var bytes = 0L
+        build.open()
+        try {
+            while (true) {
+                val row = build.next() ?: break
+                val spill = spilled
+                if (spill != null) {
+                    spill.addBuild(row)
+                    continue
+                }
+                // NULL 不与任何值相等，无需放入哈希表；并行连接在分区时才建表
+                if (!parallel) {
+                    hashKey(row, buildKeys)?.let { key -> table.getOrPut(key) { ArrayList(1) }.add(buildRows.size) }
+                }
+                buildRows.add(row)
+                // 并行连接时每一行还要在分区中另占一份位置
+                bytes += SpillFile.estimateSize(row) + ENTRY_OVERHEAD + if (parallel) PARTITION_OVERHEAD else 0L
+                if (!memory.reserve(bytes) && level < MAX_SPILL_LEVEL) {
+                    spillBuild()
+                }
+            }
+        } finally {
+            build.close()
+        }
+        if (spilled != null) {
+            spillProbe(emptyList())
+            return
+        }
+        if (parallel) {
+            openPartitioned(degree, bytes)
+            return
+        }
+        buildMatched = if (preserveBuild) BooleanArray(buildRows.size) else null
+        pushRuntimeFilters(table.keys.asSequence(), table.size)
+
+        probeRow = null
+        candidates = emptyList()
+        candidateCursor = 0
+        probeExhausted = false
+        unmatchedCursor = 0
+        probe.open()
+    }
+
+    override fun next(): Array<Any>? {
+        spilled?.let { return nextSpilled(it) }
+        if (partitioned != null) {
+            while (partitionCursor >= partitionRows.size) {
+                val task = running.removeFirstOrNull() ?: return null
+                val chunk = task.join()
+                partitionRows = chunk.rows
+                partitionCursor = 0
+                chunkBytes = if (measured) maxOf(chunkBytes, chunk.bytes) else chunk.bytes
+                measured = true
+                reserveOutput(chunk.bytes)
+                // 没有输出完的分区排在最前面接着执行，结果仍按分区顺序输出
+                chunk.rest?.let { rest -> running.addFirst(WorkerPool.pool.submit(Callable { rest.run() })) }
+                repeat(inFlight - running.size) { submitPartition() }
+            }
+            return partitionRows[partitionCursor++]
+        }
+        while (!probeExhausted) {
+            val current = probeRow
+            if (current == null) {
+                val row = probe.next()
+                if (row == null) {
+                    probeExhausted = true
+                    break
+                }
+                probeRow = row
+                candidates = hashKey(row, probeKeys)?.let { table[it] } ?: emptyList()
+                candidateCursor = 0
+                linked = false
+                continue
+            }
+            while (candidateCursor < candidates.size) {
+                val buildIndex = candidates[candidateCursor++]
+                val joined = if (buildLeft) joinRow(buildRows[buildIndex], current) else joinRow(current, buildRows[buildIndex])
+                if (residual == null || residual.test(joined)) {
+                    linked = true
+                    buildMatched?.set(buildIndex, true)
+                    return joined
+                }
+            }
+            probeRow = null
+            if (!linked && preserveProbe) {
+                return if (buildLeft) joinRow(null, current) else joinRow(current, null)
+            }
+        }
+        // 外连接：输出建表一侧中没有匹配过的行
+        val matched = buildMatched ?: return null
+        while (unmatchedCursor < buildRows.size) {
+            val buildIndex = unmatchedCursor++
+            if (!matched[buildIndex]) {
+                return if (buildLeft) joinRow(buildRows[buildIndex], null) else joinRow(null, buildRows[buildIndex])
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+        if (::probe.isInitialized) {
+            probe.close()
+        }
+        buildRows = ArrayList()
+        table = HashMap()
+        for (task in running) {
+            task.cancel(false)
+        }
+        running.clear()
+        partitioned = null
+        partitionRows = emptyList()
+        partitionCursor = 0
+        releaseSpill()
+        memory?.close()
+        memory = null
+    }
+
+    /**
+     * 分区后的两侧数据
+     * 每一侧先切成若干块并行分区，chunks[块][分区] 是这一块中落在该分区的行，最后一个分区存放连接键为 NULL 的行
+     */
+    private class Partitioned(val build: List<Array<Partition>>, val probe: List<Array<Partition>>, val count: Int)
+
+    /**
+     * 一个分区中的行和它们的连接键
+     */
+    private class Partition {
+        val rows = ArrayList<Array<Any>>()
+        val keys = ArrayList<Any>()
+    }
+
+    /**
+     * 一对分区一次输出的结果
+     * @param bytes 结果的估算字节数
+     * @param rest 这对分区还没有输出完时，接着执行的连接
+     */
+    private class Chunk(val rows: List<Array<Any>>, val bytes: Long, val rest: PartitionJoin?)
+
+    /**
+     * 建表一侧已经读入 [buildRows] 后，读入探测一侧并分区并行连接
+     * 两侧每一行在分区中另占的位置与行本身一起预留，分区之后读入时的列表随即丢弃；
+     * 探测一侧申请不到内存时改为溢出到磁盘
+     * @param bytes 建表一侧已经预留的字节数
+     */
+    private fun openPartitioned(degree: Int, bytes: Long) {
+        var bits = 1
+        val target = maxOf(buildRows.size / ExecutionConfig.JOIN_PARTITION_ROWS, degree * 4)
+        while (1 shl bits < target && bits < MAX_PARTITION_BITS) {
+            bits++
+        }
+        val buildCount = buildRows.size
+        val buildPartitions = partition(buildRows, buildKeys, bits, degree)
+        buildRows = ArrayList()
+        pushRuntimeFilters(buildPartitions.asSequence().flatMap { chunk -> chunk.asSequence().flatMap { it.keys } }, buildCount)
+        val probeInput = ArrayList<Array<Any>>()
+        var reserved = bytes
+        probe.open()
+        try {
+            while (true) {
+                val row = probe.next() ?: break
+                probeInput.add(row)
+                reserved += SpillFile.estimateSize(row) + PARTITION_OVERHEAD
+                if (!memory!!.reserve(reserved) && level < MAX_SPILL_LEVEL) {
+                    spillBuild(buildPartitions.asSequence().flatMap { chunk -> chunk.asSequence().flatMap { it.rows } })
+                    break
+                }
+            }
+        } finally {
+            if (spilled == null) {
+                probe.close()
+            }
+        }
+        if (spilled != null) {
+            spillProbe(probeInput)
+            return
+        }
+        partitioned = Partitioned(buildPartitions, partition(probeInput, probeKeys, bits, degree), 1 shl bits)
+        probeInput.clear()
+        nextPartition = 0
+        partitionRows = emptyList()
+        partitionCursor = 0
+        inputBytes = reserved
+        chunkBytes = OUTPUT_CHUNK_ROWS * (ROW_OVERHEAD + VALUE_SIZE * columns.size)
+        measured = false
+        inFlight = degree
+        reserveOutput(0)
+        repeat(inFlight) { submitPartition() }
+    }
+
+    /**
+     * 为取走的结果和同时执行的各对分区的结果预留内存，预留不到时减少同时执行的分区数
+     * @param current 取走的结果的估算字节数
+     */
+    private fun reserveOutput(current: Long) {
+        val memory = memory ?: return
+        while (inFlight > 1 && !memory.reserve(inputBytes + current + chunkBytes * inFlight)) {
+            inFlight--
+        }
+    }
+
+    /**
+     * 按建表一侧的连接键为每个探测键构造运行时过滤器，在打开探测一侧之前下推
+     * 外连接保留探测一侧未匹配的行时不能下推；探测一侧很小时过滤省不下多少工作，也不下推
+     * @param keys 建表一侧非 NULL 的连接键，多个连接键时是由各键组成的列表
+     */
+    private fun pushRuntimeFilters(keys: Sequence<Any>, count: Int) {
+        if (preserveProbe || probe.estimatedRows() < ExecutionConfig.RUNTIME_FILTER_MIN_PROBE_ROWS) {
+            return
+        }
+        for (index in probeKeys.indices) {
+            val values = if (probeKeys.size == 1) keys else keys.map { (it as List<*>)[index]!! }
+            probe.pushRuntimeFilter(probeKeys[index], RuntimeFilter.of(this, values, count))
+        }
+    }
+
+    /**
+     * 溢出到磁盘的两侧数据，两侧按连接键的哈希值分成同样多的分区，连接键为 NULL 的行放在第一个分区
+     */
+    private inner class Spilled {
+        val build = Array(1 shl SPILL_BITS) { SpillFile("join") }
+        val probe = Array(1 shl SPILL_BITS) { SpillFile("join") }
+
+        /**
+         * 下一对要处理的分区
+         */
+        var next = 0
+
+        fun addBuild(row: Array<Any>) = build[partitionOf(hashKey(row, buildKeys))].write(row)
+
+        fun addProbe(row: Array<Any>) = probe[partitionOf(hashKey(row, probeKeys))].write(row)
+
+        /**
+         * 第 [level] 层分区取哈希值中的一段，每层用不同的位；乘数与并行连接分区用的不同，
+         * 处理溢出分区时并行连接的分区仍然均匀
+         */
+        private fun partitionOf(key: Any?): Int =
+            if (key == null) 0 else ((key.hashCode() * SPILL_MULTIPLIER) ushr (32 - SPILL_BITS * (level + 1))) and ((1 shl SPILL_BITS) - 1)
+
+        fun close() {
+            build.forEach { it.close() }
+            probe.forEach { it.close() }
+        }
+    }
+
+    /**
+     * 把已经读入内存的建表一侧写入分区，之后建表一侧的行直接写入分区
+     * @param rows 已经读入内存的行，并行连接时是已经分好区的行
+     */
+    private fun spillBuild(rows: Sequence<Array<Any>> = buildRows.asSequence()) {
+        val spill = Spilled()
+        spilled = spill
+        for (row in rows) {
+            spill.addBuild(row)
+        }
+        buildRows = ArrayList()
+        table = HashMap()
+        memory?.release()
+    }
+
+    /**
+     * 把探测一侧写入分区，[prefix] 是已经读入内存的行，探测一侧还没打开时为空
+     */
+    private fun spillProbe(prefix: List<Array<Any>>) {
+        val spill = spilled ?: return
+        if (prefix.isEmpty()) {
+            probe.open()
+        }
+        try {
+            for (row in prefix) {
+                spill.addProbe(row)
+            }
+            while (true) {
+                spill.addProbe(probe.next() ?: break)
+            }
+        } finally {
+            probe.close()
+        }
+        memory?.release()
+        spill.build.forEach { it.seal() }
+        spill.probe.forEach { it.seal() }
+    }
+
+    /**
+     * 逐对处理溢出分区，分区中的行交给新的哈希连接，输出它的结果
+     */
+    private fun nextSpilled(spill: Spilled): Array<Any>? {
+        while (true) {
+            spillJoin?.let { join ->
+                join.next()?.let { return it }
+                join.close()
+                spillJoin = null
+                spill.build[spill.next - 1].close()
+                spill.probe[spill.next - 1].close()
+            }
+            if (spill.next >= spill.build.size) {
+                return null
+            }
+            val build = spill.build[spill.next]
+            val probe = spill.probe[spill.next]
+            spill.next++
+            // 一侧为空时只有保留另一侧未匹配行的外连接才有输出
+            if ((build.rows == 0L && !preserveProbe) || (probe.rows == 0L && !preserveBuild)) {
+                build.close()
+                probe.close()
+                continue
+            }
+            val buildScan = SpillScanOperator(build, if (buildLeft) left.columns else right.columns)
+            val probeScan = SpillScanOperator(probe, if (buildLeft) right.columns else left.columns)
+            val join = if (buildLeft) {
+                HashJoinOperator(buildScan, probeScan, leftKeys, rightKeys, joinType, residual, level + 1)
+            } else {
+                HashJoinOperator(probeScan, buildScan, leftKeys, rightKeys, joinType, residual, level + 1)
+            }
+            spillJoin = join
+            join.open()
+        }
+    }
+
+    /**
+     * 关闭正在处理的分区连接，删除所有溢出分区
+     */
+    private fun releaseSpill() {
+        spillJoin?.close()
+        spillJoin = null
+        spilled?.close()
+        spilled = null
+    }
+
+    /**
+     * 把一侧的行切成 [degree] 块，并行地按连接键哈希值的高 [bits] 位分区
+     */
+    private fun partition(rows: List<Array<Any>>, keys: IntArray, bits: Int, degree: Int): List<Array<Partition>> {
+        val chunk = (rows.size + degree - 1) / degree
+        val tasks = (0 until degree).map { index ->
+            WorkerPool.pool.submit(Callable {
+                val partitions = Array((1 shl bits) + 1) { Partition() }
+                for (position in index * chunk until minOf(rows.size, (index + 1) * chunk)) {
+                    val row = rows[position]
+                    val key = hashKey(row, keys)
+                    val partition = if (key == null) partitions.last() else partitions[(key.hashCode() * HASH_MULTIPLIER) ushr (32 - bits)]
+                    partition.rows.add(row)
+                    key?.let { partition.keys.add(it) }
+                }
+                partitions
+            })
+        }
+        return tasks.map { it.join() }
+    }
+
+    private fun submitPartition() {
+        val partitioned = partitioned ?: return
+        if (nextPartition > partitioned.count) {
+            return
+        }
+        val join = PartitionJoin(partitioned, nextPartition++)
+        running.addLast(WorkerPool.pool.submit(Callable { join.run() }))
+    }
+
+    /**
+     * 一对分区的连接，每次执行最多输出 [OUTPUT_CHUNK_ROWS] 行，下次执行从停下的地方接着输出
+     * 最后一个分区是连接键为 NULL 的行，不会匹配任何行，只输出外连接中保留的一侧
+     */
+    private inner class PartitionJoin(private val partitioned: Partitioned, private val partition: Int) {
+        private var rows: ArrayList<Array<Any>>? = null
+        private var table: HashMap<Any, MutableList<Int>>? = null
+        private var matched: BooleanArray? = null
+
+        /**
+         * 探测一侧正在处理的块、块中的行，以及这一行已经检查过的候选行数
+         */
+        private var chunk = 0
+        private var position = 0
+        private var candidate = 0
+        private var linked = false
+
+        /**
+         * 建表一侧下一个要检查是否匹配过的行
+         */
+        private var unmatched = 0
+
+        fun run(): Chunk {
+            val output = ArrayList<Array<Any>>()
+            val finished = if (partition == partitioned.count) nulls(output) else join(output)
+            var bytes = 0L
+            for (row in output) {
+                bytes += SpillFile.estimateSize(row)
+            }
+            return Chunk(output, bytes, if (finished) null else this)
+        }
+
+        /**
+         * 接着连接这对分区，第一次执行时建哈希表
+         * @return 这对分区是否已经输出完
+         */
+        private fun join(output: MutableList<Array<Any>>): Boolean {
+            val rows = rows ?: build()
+            val table = table!!
+            while (output.size < OUTPUT_CHUNK_ROWS && chunk < partitioned.probe.size) {
+                val part = partitioned.probe[chunk][partition]
+                if (position >= part.rows.size) {
+                    chunk++
+                    position = 0
+                    continue
+                }
+                val probeRow = part.rows[position]
+                val candidates = table[part.keys[position]] ?: emptyList()
+                while (candidate < candidates.size && output.size < OUTPUT_CHUNK_ROWS) {
+                    val buildIndex = candidates[candidate++]
+                    val joined = if (buildLeft) joinRow(rows[buildIndex], probeRow) else joinRow(probeRow, rows[buildIndex])
+                    if (residual == null || residual.test(joined)) {
+                        linked = true
+                        matched?.set(buildIndex, true)
+                        output.add(joined)
+                    }
+                }
+                if (candidate < candidates.size) {
+                    return false
+                }
+                if (!linked && preserveProbe) {
+                    output.add(if (buildLeft) joinRow(null, probeRow) else joinRow(probeRow, null))
+                }
+                position++
+                candidate = 0
+                linked = false
+            }
+            if (chunk < partitioned.probe.size) {
+                return false
+            }
+            matched?.let { matched ->
+                while (unmatched < rows.size) {
+                    if (output.size >= OUTPUT_CHUNK_ROWS) {
+                        return false
+                    }
+                    val buildIndex = unmatched++
+                    if (!matched[buildIndex]) {
+                        output.add(if (buildLeft) joinRow(rows[buildIndex], null) else joinRow(null, rows[buildIndex]))
+                    }
+                }
+            }
+            this.rows = null
+            this.table = null
+            this.matched = null
+            return true
+        }
+
+        /**
+         * 把建表一侧落在这个分区的行放进哈希表
+         */
+        private fun build(): ArrayList<Array<Any>> {
+            val rows = ArrayList<Array<Any>>()
+            val table = HashMap<Any, MutableList<Int>>()
+            for (chunk in partitioned.build) {
+                val part = chunk[partition]
+                for (index in part.rows.indices) {
+                    table.getOrPut(part.keys[index]) { ArrayList(1) }.add(rows.size)
+                    rows.add(part.rows[index])
+                }
+            }
+            this.rows = rows
+            this.table = table
+            matched = if (preserveBuild) BooleanArray(rows.size) else null
+            return rows
+        }
+
+        /**
+         * 接着输出连接键为 NULL 的保留行，先输出建表一侧的各块，再输出探测一侧的各块
+         * @return 是否已经输出完
+         */
+        private fun nulls(output: MutableList<Array<Any>>): Boolean {
+            val chunks = partitioned.build.size + partitioned.probe.size
+            while (chunk < chunks) {
+                val fromBuild = chunk < partitioned.build.size
+                val part = if (fromBuild) partitioned.build[chunk] else partitioned.probe[chunk - partitioned.build.size]
+                val rows = part[partitioned.count].rows
+                if ((fromBuild && !preserveBuild) || (!fromBuild && !preserveProbe) || position >= rows.size) {
+                    chunk++
+                    position = 0
+                    continue
+                }
+                if (output.size >= OUTPUT_CHUNK_ROWS) {
+                    return false
+                }
+                val row = rows[position++]
+                output.add(if (buildLeft == fromBuild) joinRow(row, null) else joinRow(null, row))
+            }
+            return true
+        }
+    }
+
+    override fun estimatedRows(): Long = maxOf(left.estimatedRows(), right.estimatedRows())
+
+    override fun withChildren(left: Operator, right: Operator): JoinOperator =
+        HashJoinOperator(left, right, leftKeys, rightKeys, joinType, residual)
+
+    override fun withEquiKeys(left: Operator, right: Operator, leftKeys: IntArray, rightKeys: IntArray): JoinOperator =
+        equiJoin(left, right, this.leftKeys + leftKeys, this.rightKeys + rightKeys, joinType, residual)
+
+    companion object {
+        /**
+         * 分区数最多为 2 的这么多次方
+         */
+        private const val MAX_PARTITION_BITS = 12
+
+        /**
+         * 用于打散哈希值的乘数，分区取乘积的高位
+         */
+        private const val HASH_MULTIPLIER = -0x61c88647
+
+        /**
+         * 溢出时每层分区数为 2 的这么多次方
+         */
+        private const val SPILL_BITS = 4
+
+        /**
+         * 最多溢出分区的层数，最后一层的分区放不下时哈希表继续增长
+         */
+        private const val MAX_SPILL_LEVEL = 3
+
+        /**
+         * 溢出分区时用于打散哈希值的乘数
+         */
+        private const val SPILL_MULTIPLIER = 0x7FEB352D
+
+        /**
+         * 哈希表中每一行除了行本身以外占用的内存
+         */
+        private const val ENTRY_OVERHEAD = 48L
+
+        /**
+         * 并行连接分区时每一行在分区中另占的内存：读入时的列表和分区中的列表各一个位置，以及算好的连接键
+         */
+        private const val PARTITION_OVERHEAD = 40L
+
+        /**
+         * 并行连接时一对分区每次最多输出的行数
+         */
+        private const val OUTPUT_CHUNK_ROWS = 4096
+
+        /**
+         * 还没有取走任何结果时估算一行的大小用到的行数组开销和每个值的大小，与 [SpillFile.estimateSize] 的估算相同量级
+         */
+        private const val ROW_OVERHEAD = 16L
+        private const val VALUE_SIZE = 24L
+
+        /**
+         * 计算一行的连接键，任意一个键为 NULL 时返回 null
+         */
+        fun hashKey(row: Array<Any>, keys: IntArray): Any? {
+            if (keys.size == 1) {
+                return normalizeKey(row[keys[0]])
+            }
+            val key = ArrayList<Any>(keys.size)
+            for (index in keys) {
+                key.add(normalizeKey(row[index]) ?: return null)
+            }
+            return key
+        }
+
+        /**
+         * 把数值统一成 Long 或 Double，使 1、1L、1.0 能落在同一个哈希桶中
+         */
+        fun normalizeKey(any: Any?): Any? =
+            when (val value = JoinOperator.valueOf(any)) {
+                is Byte, is Short, is Int, is Long -> (value as Number).toLong()
+                is Number -> value.toDouble().let { if (it == Math.rint(it) && Math.abs(it) < 1e15) it.toLong() else it }
+                else -> value
+            }
+
+        /**
+         * 数值与其它类型的值比较时用的键：能解析成数值的字符串也换成数值，
+         * 与 [com.lss233.minidb.engine.expression.ExpressionCompiler.compareValues] 比较数值和字符串的方式一致
+         */
+        fun numericKey(any: Any?): Any? =
+            when (val value = normalizeKey(any)) {
+                is String -> value.toDoubleOrNull()?.let { normalizeKey(it) } ?: value
+                else -> value
+            }
+    }
+}
@@ -0,0 +1,385 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.expression.ValueType
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 哈希半连接与反连接，由 WHERE 中的 IN、EXISTS、= ANY、<> ALL 子查询改写而来
+ * 打开时读入右侧（子查询）的全部行，按连接键放入哈希集合，之后逐行拉取左侧探测，只输出左侧的行：
+ * 半连接输出在右侧有匹配的行，反连接输出没有匹配的行。子查询只执行一次，不再对外层的每一行重新执行。
+ *
+ * NOT IN 和 <> ALL 按三值逻辑处理 NULL（[nullAware]），此时最后一对连接键是 IN 两侧的值，之前的是关联条件：
+ * 右侧与左侧关联条件相同的一组行为空时条件成立；否则左侧的值为 NULL，或这一组中没有相等的值但有 NULL 时，
+ * 条件的结果为 NULL，这一行不输出。
+ * 一对连接键的类型不能直接按键比较时（见 [ValueType.keyCompatible]），两侧的值都按 [HashJoinOperator.numericKey] 取键。
+ *
+ * 哈希集合增长时向 [MemoryManager] 申请内存，申请不到时把已经读入的键和右侧剩下的键按哈希值写入若干个临时文件分区，
+ * 左侧不查哈希集合就能确定结果的行先输出，其余的行按同样的哈希值分区，之后逐对分区重新连接；
+ * 分区仍然放不下时按哈希值的下一段继续分区，最多分 [MAX_SPILL_LEVEL] 层。溢出之后输出不再保持左侧的顺序
+ * @param leftKeys 在左侧的行上求值的连接键
+ * @param rightKeys 在右侧的行上求值的连接键，与 leftKeys 一一对应；没有连接键时只要右侧有行就算匹配
+ * @param anti 为 true 时输出没有匹配的行
+ * @param nullAware 是否按 NOT IN 的规则处理 NULL，只用于反连接
+ * @param level 溢出分区的层数，处理溢出分区的连接为上一层加一
+ * @param numeric 每一对连接键是否按数值取键
+ */
+class HashSemiJoinOperator(
+    private val left: Operator,
+    private val right: Operator,
+    private val leftKeys: Array<Evaluator>,
+    private val rightKeys: Array<Evaluator>,
+    private val anti: Boolean,
+    private val nullAware: Boolean,
+    private val level: Int = 0,
+    private val numeric: BooleanArray = BooleanArray(leftKeys.size) { !ValueType.keyCompatible(leftKeys[it].type, rightKeys[it].type) }
+) : Operator() {
+    override val columns: MutableList<Column> = left.columns
+    private var keys = HashSet<Any>()
+
+    /**
+     * [nullAware] 时右侧各组的关联键，值为这一组中是否有值为 NULL 的行
+     */
+    private var groups = HashMap<Any, Boolean>()
+
+    /**
+     * 分区时参与计算哈希值的连接键个数：带关联条件的 NOT IN 只按关联键分区，使同一组的行落在同一个分区，其余按全部连接键
+     */
+    private val partitionKeys = if (nullAware && rightKeys.size > 1) rightKeys.size - 1 else rightKeys.size
+
+    private var memory: MemoryReservation? = null
+    private var spilled: Spilled? = null
+
+    /**
+     * 正在输出的不需要查哈希集合的左侧行
+     */
+    private var passedReader: SpillFile.Reader? = null
+
+    /**
+     * 正在处理的一对溢出分区的连接
+     */
+    private var spillJoin: HashSemiJoinOperator? = null
+
+    init {
+        alias = left.alias
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    override fun open() {
+        releaseSpill()
+        memory?.close()
+        val memory = MemoryManager.reserve().also { this.memory = it }
+        keys = HashSet()
+        groups = HashMap()
+        var bytes = 0L
+        val required = if (nullAware) rightKeys.size - 1 else rightKeys.size
+        right.open()
+        try {
+            while (true) {
+                val row = right.next() ?: break
+                if (rightKeys.isEmpty()) {
+                    // 不带关联条件的 EXISTS 只需要知道子查询有没有行
+                    keys.add(NO_KEY)
+                    break
+                }
+                val values = arrayOfNulls<Any>(rightKeys.size)
+                for (index in values.indices) {
+                    values[index] = keyOf(rightKeys[index].evaluate(row), numeric[index])
+                }
+                // 关联键为 NULL 的行不属于任何一组，不是 NOT IN 时任意一个键为 NULL 的行不会匹配
+                if ((0 until required).any { values[it] == null }) {
+                    continue
+                }
+                if (nullAware && rightKeys.size == 1) {
+                    // 不带关联条件的 NOT IN 只有一组，这一组始终留在内存中，只有非 NULL 的值放入哈希集合或分区
+                    groups[NO_KEY] = groups[NO_KEY] == true || values[0] == null
+                    if (values[0] == null) {
+                        continue
+                    }
+                }
+                val spill = spilled
+                if (spill != null) {
+                    spill.addRight(values)
+                    continue
+                }
+                add(values)
+                bytes += SpillFile.estimateSize(values as Array<Any>) + ENTRY_OVERHEAD
+                if (!memory.reserve(bytes) && level < MAX_SPILL_LEVEL) {
+                    spillRight()
+                }
+            }
+        } finally {
+            right.close()
+        }
+        if (spilled != null) {
+            spillLeft()
+            return
+        }
+        left.open()
+    }
+
+    override fun next(): Array<Any>? {
+        spilled?.let { return nextSpilled(it) }
+        while (true) {
+            val row = left.next() ?: return null
+            if (if (nullAware) notIn(row) else matches(row) != anti) {
+                return row
+            }
+        }
+    }
+
+    override fun close() {
+        if (spilled == null) {
+            left.close()
+        }
+        releaseSpill()
+        keys = HashSet()
+        groups = HashMap()
+        memory?.close()
+        memory = null
+    }
+
+    override fun estimatedRows(): Long = left.estimatedRows()
+
+    private fun matches(row: Array<Any>): Boolean {
+        val key = keyOf(row, leftKeys, numeric, leftKeys.size) ?: return false
+        return key in keys
+    }
+
+    /**
+     * NOT IN 的结果是否为真
+     */
+    private fun notIn(row: Array<Any>): Boolean {
+        val group = keyOf(row, leftKeys, numeric, leftKeys.size - 1) ?: return true
+        val hasNull = groups[group] ?: return true
+        val key = keyOf(row, leftKeys, numeric, leftKeys.size) ?: return false
+        return key !in keys && !hasNull
+    }
+
+    /**
+     * 不查哈希集合就能确定的结果，需要查时返回 null
+     */
+    private fun decided(row: Array<Any>): Boolean? {
+        if (!nullAware) {
+            return if (keyOf(row, leftKeys, numeric, leftKeys.size) == null) anti else null
+        }
+        keyOf(row, leftKeys, numeric, leftKeys.size - 1) ?: return true
+        if (leftKeys.size == 1) {
+            val hasNull = groups[NO_KEY] ?: return true
+            if (hasNull || keyOf(row, leftKeys, numeric, 1) == null) {
+                return false
+            }
+        }
+        return null
+    }
+
+    /**
+     * 把右侧一行的连接键放入哈希集合
+     */
+    private fun add(values: Array<Any?>) {
+        if (nullAware && values.size > 1) {
+            val group = keyFrom(values, values.size - 1)
+            groups[group] = groups[group] == true || values.last() == null
+            if (values.last() == null) {
+                return
+            }
+        }
+        keys.add(keyFrom(values, values.size))
+    }
+
+    /**
+     * 一组溢出到临时文件的分区
+     * 右侧的分区中每行是归一化后的各个连接键，左侧的分区中是原来的行
+     */
+    private inner class Spilled {
+        val right = Array(1 shl SPILL_BITS) { SpillFile("semijoin") }
+        val left = Array(1 shl SPILL_BITS) { SpillFile("semijoin") }
+
+        /**
+         * 不查哈希集合就能确定要输出的左侧行
+         */
+        val passed = SpillFile("semijoin")
+
+        /**
+         * 下一对要处理的分区
+         */
+        var next = 0
+
+        @Suppress("UNCHECKED_CAST")
+        fun addRight(values: Array<Any?>) = right[partitionOf(keyFrom(values, partitionKeys))].write(values as Array<Any>)
+
+        fun addLeft(row: Array<Any>) {
+            when (decided(row)) {
+                true -> passed.write(row)
+                false -> {}
+                null -> left[partitionOf(keyOf(row, leftKeys, numeric, partitionKeys))].write(row)
+            }
+        }
+
+        /**
+         * 第 [level] 层分区取哈希值中的一段，每层用不同的位
+         */
+        private fun partitionOf(key: Any?): Int =
+            if (key == null) 0 else ((key.hashCode() * SPILL_MULTIPLIER) ushr (32 - SPILL_BITS * (level + 1))) and ((1 shl SPILL_BITS) - 1)
+
+        fun close() {
+            right.forEach { it.close() }
+            left.forEach { it.close() }
+            passed.close()
+        }
+    }
+
+    /**
+     * 把已经放入哈希集合的键写入分区，之后右侧的键直接写入分区
+     */
+    private fun spillRight() {
+        val spill = Spilled()
+        spilled = spill
+        for (key in keys) {
+            spill.addRight(tupleOf(key, rightKeys.size))
+        }
+        // 带关联条件时组的信息随键一起分区，有 NULL 的组另外写一行值为 NULL 的键
+        if (rightKeys.size > 1) {
+            for ((group, hasNull) in groups) {
+                if (hasNull) {
+                    spill.addRight(tupleOf(group, rightKeys.size - 1).copyOf(rightKeys.size))
+                }
+            }
+            groups = HashMap()
+        }
+        keys = HashSet()
+        memory?.release()
+    }
+
+    /**
+     * 读完左侧并写入分区
+     */
+    private fun spillLeft() {
+        val spill = spilled ?: return
+        left.open()
+        try {
+            while (true) {
+                spill.addLeft(left.next() ?: break)
+            }
+        } finally {
+            left.close()
+        }
+        spill.right.forEach { it.seal() }
+        spill.left.forEach { it.seal() }
+        passedReader = spill.passed.reader()
+    }
+
+    /**
+     * 溢出之后先输出不需要查哈希集合的行，再逐对处理分区
+     */
+    private fun nextSpilled(spill: Spilled): Array<Any>? {
+        passedReader?.let { reader ->
+            reader.next()?.let { return it }
+            reader.close()
+            passedReader = null
+        }
+        while (true) {
+            spillJoin?.let { join ->
+                join.next()?.let { return it }
+                join.close()
+                spillJoin = null
+                spill.right[spill.next - 1].close()
+                spill.left[spill.next - 1].close()
+            }
+            if (spill.next >= spill.right.size) {
+                return null
+            }
+            val rightFile = spill.right[spill.next]
+            val leftFile = spill.left[spill.next]
+            spill.next++
+            // 右侧的分区为空时半连接没有输出
+            if (leftFile.rows == 0L || (rightFile.rows == 0L && !anti)) {
+                rightFile.close()
+                leftFile.close()
+                continue
+            }
+            val keyColumns = MutableList(rightKeys.size) { Column("key$it") }
+            val join = HashSemiJoinOperator(
+                SpillScanOperator(leftFile, left.columns),
+                SpillScanOperator(rightFile, keyColumns),
+                leftKeys,
+                Array(rightKeys.size) { ExpressionCompiler.column(it, keyColumns[it]) },
+                anti, nullAware, level + 1, numeric
+            )
+            spillJoin = join
+            join.open()
+        }
+    }
+
+    /**
+     * 关闭正在处理的分区连接，删除所有溢出分区
+     */
+    private fun releaseSpill() {
+        passedReader?.close()
+        passedReader = null
+        spillJoin?.close()
+        spillJoin = null
+        spilled?.close()
+        spilled = null
+    }
+
+    companion object {
+        /**
+         * 没有连接键时所有行共同的键
+         */
+        private val NO_KEY = emptyList<Any>()
+
+        /**
+         * 每层分区数为 2 的这么多次方
+         */
+        private const val SPILL_BITS = 4
+
+        /**
+         * 最多分区的层数，最后一层的分区放不下时哈希集合继续增长
+         */
+        private const val MAX_SPILL_LEVEL = 3
+
+        /**
+         * 用于打散分区哈希值的乘数
+         */
+        private const val SPILL_MULTIPLIER = -0x61c88647
+
+        /**
+         * 哈希集合中每个键除了键的值以外占用的内存
+         */
+        private const val ENTRY_OVERHEAD = 48L
+
+        /**
+         * 前 [count] 个连接键在一行上的值，按 [HashJoinOperator.normalizeKey] 或 [HashJoinOperator.numericKey] 归一化，
+         * 任意一个为 NULL 时返回 null
+         */
+        private fun keyOf(row: Array<Any>, keys: Array<Evaluator>, numeric: BooleanArray, count: Int): Any? {
+            if (count == 1) {
+                return keyOf(keys[0].evaluate(row), numeric[0])
+            }
+            val key = ArrayList<Any>(count)
+            for (index in 0 until count) {
+                key.add(keyOf(keys[index].evaluate(row), numeric[index]) ?: return null)
+            }
+            return key
+        }
+
+        private fun keyOf(value: Any?, numeric: Boolean): Any? =
+            if (numeric) HashJoinOperator.numericKey(value) else HashJoinOperator.normalizeKey(value)
+
+        /**
+         * 由归一化后的前 [count] 个键组成与 [keyOf] 相同形式的键
+         */
+        @Suppress("UNCHECKED_CAST")
+        private fun keyFrom(values: Array<Any?>, count: Int): Any =
+            if (count == 1) values[0]!! else (values.copyOf(count) as Array<Any>).asList()
+
+        /**
+         * [keyFrom] 的逆过程
+         */
+        @Suppress("UNCHECKED_CAST")
+        private fun tupleOf(key: Any, count: Int): Array<Any?> =
+            if (count == 1) arrayOf<Any?>(key) else (key as List<Any?>).toTypedArray()
+    }
+}
@@ -0,0 +1,178 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.JoinType
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.memory.ColumnIndex
+import com.lss233.minidb.engine.memory.TableSnapshot
+import com.lss233.minidb.engine.schema.Column
+import java.util.function.Predicate
+
+/**
+ * 索引嵌套循环连接
+ * 右侧是一张表的扫描，左侧每输出一行，就用它的第一个连接键查右表这一列的 [ColumnIndex]，
+ * 按行号只取出匹配的行，再检查其余的连接键、右表自身的过滤条件和剩余条件，不需要扫描整张右表。
+ *
+ * 打开时先读入左侧最多 [ExecutionConfig.INDEX_JOIN_MAX_OUTER_ROWS] 行，
+ * 左侧更多时逐行查索引不再划算，改用 [equiJoin] 选出的等值连接，已读入的行重新交给它
+ * @param right 右表经过过滤后的算子，回退到等值连接时使用
+ * @param scan 右表的扫描，输出的列与 [right] 相同
+ * @param filter 右表自身的过滤条件，在右表的行上检查，没有则为 null
+ * @param leftKeys 左侧参与等值比较的列下标，第一个用来查索引
+ * @param rightKeys 右侧参与等值比较的列下标，与 leftKeys 一一对应
+ * @param residual 等值条件以外的剩余连接条件，没有则为 null
+ */
+class IndexNestedLoopJoinOperator(
+    left: Operator,
+    right: Operator,
+    private val scan: TableScanOperator,
+    private val filter: Predicate<Array<Any>>?,
+    private val leftKeys: IntArray,
+    private val rightKeys: IntArray,
+    joinType: JoinType,
+    private val residual: Predicate<Array<Any>>?
+) : JoinOperator(left, right, joinType) {
+    private var fallback: Operator? = null
+    private var index: ColumnIndex? = null
+    private val outerRows = ArrayList<Array<Any>>()
+    private var outerCursor = 0
+
+    private var leftRow: Array<Any>? = null
+    private var candidates = IntArray(0)
+    private var candidateCursor = 0
+    private var linked = false
+
+    override fun open() {
+        fallback = null
+        index = null
+        outerRows.clear()
+        outerCursor = 0
+        leftRow = null
+        left.open()
+        while (outerRows.size <= ExecutionConfig.INDEX_JOIN_MAX_OUTER_ROWS) {
+            outerRows.add(left.next() ?: break)
+        }
+        if (outerRows.size > ExecutionConfig.INDEX_JOIN_MAX_OUTER_ROWS) {
+            val replayed = Replayed(ArrayList(outerRows), left).also { it.alias = left.alias }
+            outerRows.clear()
+            fallback = equiJoin(replayed, right, leftKeys, rightKeys, joinType, residual).also { it.open() }
+            return
+        }
+        left.close()
+    }
+
+    override fun next(): Array<Any>? {
+        fallback?.let { return it.next() }
+        val snapshot = scan.snapshot
+        while (true) {
+            val current = leftRow
+            if (current != null) {
+                while (candidateCursor < candidates.size) {
+                    val rightRow = snapshot.row(candidates[candidateCursor++], scan.fields)
+                    if (!keysMatch(current, rightRow) || (filter != null && !filter.test(rightRow))) {
+                        continue
+                    }
+                    val joined = joinRow(current, rightRow)
+                    if (residual == null || residual.test(joined)) {
+                        linked = true
+                        return joined
+                    }
+                }
+                leftRow = null
+                if (!linked && joinType == JoinType.LEFT) {
+                    return joinRow(current, null)
+                }
+            }
+            if (outerCursor >= outerRows.size) {
+                return null
+            }
+            val row = outerRows[outerCursor++]
+            leftRow = row
+            val index = index ?: snapshot.index(scan.fields[rightKeys[0]]).also { index = it }
+            candidates = index.rows(row[leftKeys[0]], snapshot.size)
+            candidateCursor = 0
+            linked = false
+        }
+    }
+
+    override fun close() {
+        fallback?.close() ?: left.close()
+        fallback = null
+        outerRows.clear()
+    }
+
+    override fun estimatedRows(): Long = left.estimatedRows()
+
+    override fun withChildren(left: Operator, right: Operator): JoinOperator =
+        if (right === this.right) {
+            IndexNestedLoopJoinOperator(left, right, scan, filter, leftKeys, rightKeys, joinType, residual)
+        } else {
+            equiJoin(left, right, leftKeys, rightKeys, joinType, residual)
+        }
+
+    override fun withEquiKeys(left: Operator, right: Operator, leftKeys: IntArray, rightKeys: IntArray): JoinOperator =
+        if (right === this.right) {
+            IndexNestedLoopJoinOperator(left, right, scan, filter, this.leftKeys + leftKeys, this.rightKeys + rightKeys, joinType, residual)
+        } else {
+            equiJoin(left, right, this.leftKeys + leftKeys, this.rightKeys + rightKeys, joinType, residual)
+        }
+
+    /**
+     * 检查第一对以外的连接键是否相等
+     */
+    private fun keysMatch(leftRow: Array<Any>, rightRow: Array<Any>): Boolean {
+        for (index in 1 until leftKeys.size) {
+            val key = HashJoinOperator.normalizeKey(leftRow[leftKeys[index]]) ?: return false
+            if (key != HashJoinOperator.normalizeKey(rightRow[rightKeys[index]])) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * 先输出已经读入的行，再继续从已打开的下层算子读取
+     */
+    private class Replayed(private val rows: List<Array<Any>>, private val rest: Operator) : Operator() {
+        override val columns: MutableList<Column> = rest.columns
+        private var cursor = 0
+
+        override fun open() {
+            cursor = 0
+        }
+
+        override fun next(): Array<Any>? = if (cursor < rows.size) rows[cursor++] else rest.next()
+
+        override fun close() = rest.close()
+
+        override fun estimatedRows(): Long = rest.estimatedRows()
+
+        override fun orderedBy(slot: Int): Boolean = rest.orderedBy(slot)
+    }
+
+    companion object {
+        /**
+         * 右侧是一张大表的扫描、且有一对连接键在右侧是表中的列时创建索引嵌套循环连接，否则选择普通的等值连接
+         * @param scan 右表的扫描，右侧不是表扫描时为 null
+         * @param filter 已经下推到右表上的过滤条件
+         */
+        fun of(
+            left: Operator,
+            right: Operator,
+            scan: TableScanOperator?,
+            filter: Predicate<Array<Any>>?,
+            leftKeys: IntArray,
+            rightKeys: IntArray,
+            joinType: JoinType,
+            residual: Predicate<Array<Any>>?
+        ): JoinOperator {
+            val key = rightKeys.indices.firstOrNull { scan != null && scan.fields[rightKeys[it]] != TableSnapshot.ROW_ID }
+            if (scan == null || key == null || joinType == JoinType.RIGHT ||
+                scan.estimatedRows() <= ExecutionConfig.INDEX_JOIN_MAX_OUTER_ROWS) {
+                return equiJoin(left, right, leftKeys, rightKeys, joinType, residual)
+            }
+            return IndexNestedLoopJoinOperator(
+                left, right, scan, filter, first(leftKeys, key), first(rightKeys, key), joinType, residual
+            )
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Cell
+import com.lss233.minidb.engine.JoinType
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.schema.Column
+import java.util.function.Predicate
+
+/**
+ * 连接算子的公共部分
+ * 输出的列为左右两侧的列依次拼接，带别名的一侧会用别名重新限定列名
+ */
+abstract class JoinOperator(
+    val left: Operator,
+    val right: Operator,
+    val joinType: JoinType
+) : Operator() {
+    override val columns: MutableList<Column> = joinedColumns(left, right)
+
+    /**
+     * 上层下推的行数上限，没有则为 [Long.MAX_VALUE]
+     */
+    protected var rowLimit = Long.MAX_VALUE
+
+    /**
+     * 用新的左右两侧创建同样的连接，新的两侧必须输出相同的列
+     */
+    abstract fun withChildren(left: Operator, right: Operator): JoinOperator
+
+    /**
+     * 用新的左右两侧创建增加了等值连接键的哈希连接，原有的连接条件保持不变
+     * @param leftKeys 新增的左侧连接键下标
+     * @param rightKeys 新增的右侧连接键下标
+     */
+    abstract fun withEquiKeys(left: Operator, right: Operator, leftKeys: IntArray, rightKeys: IntArray): JoinOperator
+
+    /**
+     * 与 [withEquiKeys] 相同，但右侧原本是一张表的扫描时可以改为查索引的嵌套循环连接
+     * @param scan 右侧下推过滤条件之前的表扫描
+     * @param filter 下推到右侧的过滤条件，在表扫描输出的行上检查，没有则为 null
+     */
+    open fun withIndexKeys(
+        left: Operator,
+        right: Operator,
+        scan: TableScanOperator,
+        filter: Predicate<Array<Any>>?,
+        leftKeys: IntArray,
+        rightKeys: IntArray
+    ): JoinOperator = withEquiKeys(left, right, leftKeys, rightKeys)
+
+    /**
+     * 运行时过滤器交给提供这一列的一侧
+     * 即使这一侧在外连接中保留未匹配的行或补 NULL，被丢掉的行在上层连接中也只会输出连接键不匹配或为 NULL 的行，
+     * 上层不保留探测一侧未匹配的行时这些行本来就会被丢掉
+     */
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean {
+        val width = left.columns.size
+        return if (slot < width) left.pushRuntimeFilter(slot, filter) else right.pushRuntimeFilter(slot - width, filter)
+    }
+
+    /**
+     * 外连接中保留未匹配行的一侧每一行至少输出一行，这一侧也最多只需要这么多行
+     */
+    override fun pushLimit(rows: Long) {
+        rowLimit = minOf(rowLimit, rows)
+        when (joinType) {
+            JoinType.LEFT -> left.pushLimit(rows)
+            JoinType.RIGHT -> right.pushLimit(rows)
+            else -> {}
+        }
+    }
+
+    /**
+     * 拼接左右两行，缺失的一侧以 NULL 补齐
+     */
+    @Suppress("UNCHECKED_CAST")
+    protected fun joinRow(leftRow: Array<Any>?, rightRow: Array<Any>?): Array<Any> {
+        val leftWidth = left.columns.size
+        val row = arrayOfNulls<Any>(leftWidth + right.columns.size)
+        leftRow?.forEachIndexed { index, any -> row[index] = valueOf(any) }
+        rightRow?.forEachIndexed { index, any -> row[leftWidth + index] = valueOf(any) }
+        return row as Array<Any>
+    }
+
+    companion object {
+        /**
+         * 没有连接条件时使用的条件，即笛卡尔积
+         */
+        val ALWAYS: Predicate<Array<Any>> = Predicate { true }
+
+        /**
+         * 为等值连接选择算法
+         * 两侧已经按某一对连接键有序时使用归并连接；两侧都大到哈希表放不进内存时，
+         * 把无序的一侧按连接键排序（排序可以溢出到磁盘）后归并连接；其余情况使用哈希连接
+         */
+        fun equiJoin(
+            left: Operator,
+            right: Operator,
+            leftKeys: IntArray,
+            rightKeys: IntArray,
+            joinType: JoinType,
+            residual: Predicate<Array<Any>>?
+        ): JoinOperator {
+            val ordered = leftKeys.indices.firstOrNull { left.orderedBy(leftKeys[it]) && right.orderedBy(rightKeys[it]) }
+            if (ordered != null) {
+                return MergeJoinOperator(left, right, first(leftKeys, ordered), first(rightKeys, ordered), joinType, residual)
+            }
+            if (minOf(left.estimatedRows(), right.estimatedRows()) > ExecutionConfig.HASH_JOIN_MAX_BUILD_ROWS) {
+                val key = leftKeys.indices.firstOrNull { left.orderedBy(leftKeys[it]) || right.orderedBy(rightKeys[it]) } ?: 0
+                return MergeJoinOperator(
+                    sortedBy(left, leftKeys[key]), sortedBy(right, rightKeys[key]),
+                    first(leftKeys, key), first(rightKeys, key), joinType, residual
+                )
+            }
+            return HashJoinOperator(left, right, leftKeys, rightKeys, joinType, residual)
+        }
+
+        /**
+         * 把第 [index] 个连接键换到最前面
+         */
+        fun first(keys: IntArray, index: Int): IntArray =
+            keys.copyOf().also {
+                it[0] = keys[index]
+                it[index] = keys[0]
+            }
+
+        private fun sortedBy(operator: Operator, slot: Int): Operator =
+            if (operator.orderedBy(slot)) {
+                operator
+            } else {
+                val key = ExpressionCompiler.column(slot, operator.columns[slot])
+                SortOperator(operator, listOf(key), booleanArrayOf(false)).also { it.alias = operator.alias }
+            }
+
+        /**
+         * 连接后输出的列
+         */
+        fun joinedColumns(left: Operator, right: Operator): MutableList<Column> = (
+                left.columns.map { i -> left.alias?.let { i.qualified(it) } ?: i } +
+                right.columns.map { i -> right.alias?.let { i.qualified(it) } ?: i }
+            ).toMutableList()
+
+        /**
+         * 解开嵌套的单元格，取出实际的值
+         */
+        fun valueOf(any: Any?): Any? = if (any is Cell<*>) valueOf(any.value) else any
+    }
+}
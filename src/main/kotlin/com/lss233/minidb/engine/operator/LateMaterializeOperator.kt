@@ -0,0 +1,50 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.memory.TableSnapshot
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 延迟物化算子
+ * 连接之前表扫描只输出参与过滤和连接的列，只在结果中用到的宽列用行号代替；
+ * 过滤和连接完成后，这里按行号从表快照中取回这些列，同时按 [columns] 的顺序重新排列
+ * @param indexes 输出的每一列在下层算子中的列下标，延迟读取的列是行号所在的下标
+ * @param snapshots 延迟读取的列所属的表快照，其余为 null
+ * @param fields 延迟读取的列在快照中的列下标
+ * @param columns 输出的列
+ */
+class LateMaterializeOperator(
+    private val child: Operator,
+    private val indexes: IntArray,
+    private val snapshots: Array<TableSnapshot?>,
+    private val fields: IntArray,
+    override val columns: MutableList<Column>
+) : Operator() {
+
+    override fun open() = child.open()
+
+    @Suppress("UNCHECKED_CAST")
+    override fun next(): Array<Any>? {
+        val row = child.next() ?: return null
+        return Array(indexes.size) { index ->
+            val value = row[indexes[index]] as Any?
+            val snapshot = snapshots[index]
+            when {
+                snapshot == null -> value
+                // 外连接补 NULL 的行没有行号
+                value == null -> null
+                else -> snapshot.get((value as Long).toInt(), fields[index])
+            }
+        } as Array<Any>
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = snapshots[slot] == null && child.orderedBy(indexes[slot])
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean =
+        snapshots[slot] == null && child.pushRuntimeFilter(indexes[slot], filter)
+
+    override fun pushLimit(rows: Long) = child.pushLimit(rows)
+}
@@ -0,0 +1,51 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 限制算子
+ * 跳过前 offset 行，最多输出 count 行，输出足够后不再向下层拉取数据。
+ * 创建时把 offset + count 作为行数上限下推，下层的表扫描和连接不必预先读完整张表
+ */
+class LimitOperator(private val child: Operator, private val offset: Long, private val count: Long) : Operator() {
+    override val columns: MutableList<Column> = child.columns
+    private var skipped = 0L
+    private var emitted = 0L
+
+    init {
+        pushLimit(count)
+    }
+
+    override fun open() {
+        skipped = 0
+        emitted = 0
+        child.open()
+    }
+
+    override fun next(): Array<Any>? {
+        if (emitted >= count) {
+            return null
+        }
+        while (skipped < offset) {
+            child.next() ?: return null
+            skipped++
+        }
+        val row = child.next() ?: return null
+        emitted++
+        return row
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = minOf(count, maxOf(child.estimatedRows() - offset, 0))
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(slot)
+
+    override fun pushLimit(rows: Long) {
+        val limit = minOf(rows, count)
+        // 只有 OFFSET 没有行数时不限制
+        if (limit < Long.MAX_VALUE - offset) {
+            child.pushLimit(offset + limit)
+        }
+    }
+}
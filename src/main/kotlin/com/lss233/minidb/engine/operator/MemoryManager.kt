@@ -0,0 +1,121 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.memory.Engine
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 查询执行的内存管理
+ * 所有查询共享全局预算 [ExecutionConfig.GLOBAL_MEMORY_LIMIT]，每个查询另有自己的预算，
+ * 由会话变量 [ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] 设置，默认为 [ExecutionConfig.QUERY_MEMORY_LIMIT]。
+ * 哈希表、排序缓存等要在堆中缓存数据的算子在缓存之前先通过 [MemoryReservation] 申请，
+ * 任何一个预算不够时申请被拒绝，算子把数据分区写到临时文件，而不是一直占用内存直到整个服务内存耗尽
+ */
+object MemoryManager {
+    private val used = AtomicLong()
+
+    /**
+     * 所有查询当前预留的内存
+     */
+    val usedBytes: Long
+        get() = used.get()
+
+    /**
+     * 为当前会话正在执行的查询创建一个预留，不在会话中执行时单独按一个查询计算
+     */
+    fun reserve(): MemoryReservation {
+        val session = Engine.session.get()
+        val limit = session?.properties?.get(ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE)?.toLongOrNull()?.coerceAtLeast(0)
+            ?: ExecutionConfig.QUERY_MEMORY_LIMIT
+        return MemoryReservation(session?.memory ?: QueryMemory(), limit)
+    }
+
+    internal fun acquire(bytes: Long): Boolean = acquire(used, bytes, ExecutionConfig.GLOBAL_MEMORY_LIMIT)
+
+    internal fun release(bytes: Long) {
+        used.addAndGet(-bytes)
+    }
+
+    /**
+     * 在不超过上限时增加计数
+     */
+    internal fun acquire(counter: AtomicLong, bytes: Long, limit: Long): Boolean {
+        while (true) {
+            val current = counter.get()
+            if (current + bytes > limit) {
+                return false
+            }
+            if (counter.compareAndSet(current, current + bytes)) {
+                return true
+            }
+        }
+    }
+}
+
+/**
+ * 一个查询的算子预留的内存
+ * 会话同一时刻只执行一个查询，所以每个会话持有一个
+ */
+class QueryMemory {
+    private val used = AtomicLong()
+
+    /**
+     * 查询当前预留的内存
+     */
+    val usedBytes: Long
+        get() = used.get()
+
+    internal fun acquire(bytes: Long, limit: Long): Boolean = MemoryManager.acquire(used, bytes, limit)
+
+    internal fun release(bytes: Long) {
+        used.addAndGet(-bytes)
+    }
+}
+
+/**
+ * 一个算子预留的内存
+ * 算子缓存的数据增长时调用 [reserve] 把预留调整到需要的大小，溢出到磁盘后调用 [release] 归还，关闭时归还全部
+ * @param limit 查询的内存预算
+ */
+class MemoryReservation internal constructor(private val query: QueryMemory, private val limit: Long) : Closeable {
+    /**
+     * 已经预留的字节数
+     */
+    var reserved = 0L
+        private set
+
+    /**
+     * 把预留调整到至少 bytes，按 [ExecutionConfig.MEMORY_RESERVATION_CHUNK] 整块申请，避免每一行都竞争全局计数
+     * @return 查询或全局的预算不够时返回 false，已经预留的部分保持不变
+     */
+    fun reserve(bytes: Long): Boolean {
+        if (bytes <= reserved) {
+            return true
+        }
+        val chunk = ExecutionConfig.MEMORY_RESERVATION_CHUNK
+        val request = (bytes - reserved + chunk - 1) / chunk * chunk
+        if (!query.acquire(request, limit)) {
+            return false
+        }
+        if (!MemoryManager.acquire(request)) {
+            query.release(request)
+            return false
+        }
+        reserved += request
+        return true
+    }
+
+    /**
+     * 归还全部预留
+     */
+    fun release() {
+        if (reserved > 0) {
+            query.release(reserved)
+            MemoryManager.release(reserved)
+            reserved = 0
+        }
+    }
+
+    override fun close() = release()
+}
@@ -0,0 +1,180 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.JoinType
+import java.util.function.Predicate
+
+/**
+ * 归并连接
+ * 两侧输入都按第一对连接键升序排列，同时向前推进两侧，右侧每次只缓存键相同的一组行，
+ * 左侧键相同的每一行都与这一组比较，内存占用与输入大小无关。
+ * 其余的连接键和剩余条件在键相等的行对上检查，NULL 键不与任何行匹配
+ * @param leftKeys 左侧参与等值比较的列下标，第一个是两侧输入排序所依据的列
+ * @param rightKeys 右侧参与等值比较的列下标，与 leftKeys 一一对应
+ * @param residual 等值条件以外的剩余连接条件，没有则为 null
+ */
+class MergeJoinOperator(
+    left: Operator,
+    right: Operator,
+    private val leftKeys: IntArray,
+    private val rightKeys: IntArray,
+    joinType: JoinType,
+    private val residual: Predicate<Array<Any>>?
+) : JoinOperator(left, right, joinType) {
+    private val group = ArrayList<Array<Any>>()
+    private var groupMatched = BooleanArray(0)
+    private var groupKey: Any? = null
+
+    /**
+     * 右侧已经读出、但还没有归入分组的一行
+     */
+    private var rightRow: Array<Any>? = null
+    private var rightExhausted = false
+
+    private var leftRow: Array<Any>? = null
+    private var candidates = 0
+    private var candidateCursor = 0
+    private var linked = false
+    private var leftExhausted = false
+
+    /**
+     * 等待输出的右外连接中未匹配的行
+     */
+    private val pending = ArrayDeque<Array<Any>>()
+
+    override fun open() {
+        group.clear()
+        groupKey = null
+        rightRow = null
+        rightExhausted = false
+        leftRow = null
+        leftExhausted = false
+        pending.clear()
+        left.open()
+        right.open()
+    }
+
+    override fun next(): Array<Any>? {
+        while (true) {
+            pending.removeFirstOrNull()?.let { return it }
+            val current = leftRow
+            if (current != null) {
+                while (candidateCursor < candidates) {
+                    val index = candidateCursor++
+                    val joined = joinRow(current, group[index])
+                    if (keysMatch(current, group[index]) && (residual == null || residual.test(joined))) {
+                        linked = true
+                        groupMatched[index] = true
+                        return joined
+                    }
+                }
+                leftRow = null
+                if (!linked && joinType == JoinType.LEFT) {
+                    return joinRow(current, null)
+                }
+                continue
+            }
+            if (leftExhausted) {
+                // 右外连接：右侧剩下的行都没有匹配
+                return if (joinType == JoinType.RIGHT) nextRight()?.let { joinRow(null, it) } else null
+            }
+            val row = left.next()
+            if (row == null) {
+                leftExhausted = true
+                closeGroup()
+                continue
+            }
+            val key = HashJoinOperator.normalizeKey(row[leftKeys[0]])
+            if (key != null && SortOperator.compareKeys(key, groupKey) != 0) {
+                advance(key)
+            }
+            leftRow = row
+            candidates = if (key == null) 0 else group.size
+            candidateCursor = 0
+            linked = false
+        }
+    }
+
+    override fun close() {
+        left.close()
+        right.close()
+        group.clear()
+        pending.clear()
+    }
+
+    override fun estimatedRows(): Long = maxOf(left.estimatedRows(), right.estimatedRows())
+
+    /**
+     * 输出按驱动的一侧的连接键排列，内连接时两侧的连接键都有序
+     */
+    override fun orderedBy(slot: Int): Boolean =
+        (joinType != JoinType.RIGHT && slot == leftKeys[0]) ||
+            (joinType != JoinType.LEFT && slot == left.columns.size + rightKeys[0])
+
+    override fun withChildren(left: Operator, right: Operator): JoinOperator =
+        equiJoin(left, right, leftKeys, rightKeys, joinType, residual)
+
+    override fun withEquiKeys(left: Operator, right: Operator, leftKeys: IntArray, rightKeys: IntArray): JoinOperator =
+        equiJoin(left, right, this.leftKeys + leftKeys, this.rightKeys + rightKeys, joinType, residual)
+
+    /**
+     * 让右侧前进到键为 [key] 的一组行
+     * 跳过的行以及旧的分组中没有匹配过的行在右外连接时输出
+     */
+    private fun advance(key: Any) {
+        closeGroup()
+        groupKey = key
+        while (true) {
+            val row = nextRight() ?: break
+            val result = SortOperator.compareKeys(HashJoinOperator.normalizeKey(row[rightKeys[0]]), key)
+            if (result > 0) {
+                rightRow = row
+                break
+            }
+            if (result == 0) {
+                group.add(row)
+            } else if (joinType == JoinType.RIGHT) {
+                pending.addLast(joinRow(null, row))
+            }
+        }
+        groupMatched = BooleanArray(group.size)
+    }
+
+    private fun closeGroup() {
+        if (joinType == JoinType.RIGHT) {
+            for (index in group.indices) {
+                if (!groupMatched[index]) {
+                    pending.addLast(joinRow(null, group[index]))
+                }
+            }
+        }
+        group.clear()
+        groupMatched = BooleanArray(0)
+    }
+
+    private fun nextRight(): Array<Any>? {
+        rightRow?.let {
+            rightRow = null
+            return it
+        }
+        if (rightExhausted) {
+            return null
+        }
+        return right.next() ?: run {
+            rightExhausted = true
+            null
+        }
+    }
+
+    /**
+     * 检查第一对以外的连接键是否相等
+     */
+    private fun keysMatch(leftRow: Array<Any>, rightRow: Array<Any>): Boolean {
+        for (index in 1 until leftKeys.size) {
+            val key = HashJoinOperator.normalizeKey(leftRow[leftKeys[index]]) ?: return false
+            if (key != HashJoinOperator.normalizeKey(rightRow[rightKeys[index]])) {
+                return false
+            }
+        }
+        return true
+    }
+}
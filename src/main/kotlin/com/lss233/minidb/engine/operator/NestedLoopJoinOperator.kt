@@ -0,0 +1,154 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.JoinType
+import java.util.BitSet
+import java.util.function.Predicate
+
+/**
+ * 嵌套循环连接
+ * 右表在打开时物化一次，之后左表每输出一行就与右表的所有行比较一次。
+ * 物化时向 [MemoryManager] 申请内存，申请不到时右表其余的行写到临时文件，每一轮比较完内存中的行后再从头读一遍文件
+ */
+class NestedLoopJoinOperator(
+    left: Operator,
+    right: Operator,
+    joinType: JoinType,
+    private val cond: Predicate<Array<Any>>
+) : JoinOperator(left, right, joinType) {
+    private var rightRows = ArrayList<Array<Any>>()
+    private var rightSpill: SpillFile? = null
+    private var rightReader: SpillFile.Reader? = null
+    private var rightCount = 0L
+    private var rightMatched: BitSet? = null
+    private var leftRow: Array<Any>? = null
+    private var rightCursor = 0L
+    private var linked = false
+    private var leftExhausted = false
+    private var memory: MemoryReservation? = null
+
+    override fun open() {
+        releaseRight()
+        val memory = MemoryManager.reserve().also { this.memory = it }
+        var bytes = 0L
+        right.open()
+        try {
+            while (true) {
+                val row = right.next() ?: break
+                val spill = rightSpill
+                if (spill != null) {
+                    spill.write(row)
+                    continue
+                }
+                rightRows.add(row)
+                bytes += SpillFile.estimateSize(row)
+                if (!memory.reserve(bytes)) {
+                    rightSpill = SpillFile("join")
+                }
+            }
+        } finally {
+            right.close()
+        }
+        rightSpill?.seal()
+        rightCount = rightRows.size + (rightSpill?.rows ?: 0)
+        rightMatched = if (joinType == JoinType.RIGHT) BitSet() else null
+        leftRow = null
+        leftExhausted = false
+        rightCursor = 0
+        left.open()
+    }
+
+    override fun next(): Array<Any>? {
+        while (!leftExhausted) {
+            val current = leftRow
+            if (current == null) {
+                leftRow = left.next()
+                if (leftRow == null) {
+                    leftExhausted = true
+                    rightCursor = 0
+                }
+                linked = false
+                continue
+            }
+            while (rightCursor < rightCount) {
+                val rightIndex = rightCursor++
+                val joined = joinRow(current, rightRow(rightIndex))
+                if (cond.test(joined)) {
+                    linked = true
+                    rightMatched?.set(rightIndex.toInt())
+                    return joined
+                }
+            }
+            leftRow = null
+            rightCursor = 0
+            if (!linked && joinType == JoinType.LEFT) {
+                return joinRow(current, null)
+            }
+        }
+        // 右外连接：输出右表中没有匹配过的行
+        val matched = rightMatched ?: return null
+        while (rightCursor < rightCount) {
+            val rightIndex = rightCursor++
+            val row = rightRow(rightIndex)
+            if (!matched[rightIndex.toInt()]) {
+                return joinRow(null, row)
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+        left.close()
+        releaseRight()
+    }
+
+    /**
+     * 丢弃物化的右表，删除临时文件并归还预留的内存
+     */
+    private fun releaseRight() {
+        rightRows = ArrayList()
+        rightReader?.close()
+        rightReader = null
+        rightSpill?.close()
+        rightSpill = null
+        memory?.close()
+        memory = null
+    }
+
+    /**
+     * 按顺序取右表的行，内存中的行之后接着从头读临时文件
+     */
+    private fun rightRow(index: Long): Array<Any> {
+        if (index < rightRows.size) {
+            return rightRows[index.toInt()]
+        }
+        if (index == rightRows.size.toLong()) {
+            rightReader?.close()
+            rightReader = rightSpill!!.reader()
+        }
+        return rightReader!!.next()!!
+    }
+
+    override fun estimatedRows(): Long = left.estimatedRows() * right.estimatedRows()
+
+    /**
+     * 左表逐行驱动连接，输出保持左表的顺序
+     */
+    override fun orderedBy(slot: Int): Boolean =
+        joinType != JoinType.RIGHT && slot < left.columns.size && left.orderedBy(slot)
+
+    override fun withChildren(left: Operator, right: Operator): JoinOperator =
+        NestedLoopJoinOperator(left, right, joinType, cond)
+
+    override fun withEquiKeys(left: Operator, right: Operator, leftKeys: IntArray, rightKeys: IntArray): JoinOperator =
+        equiJoin(left, right, leftKeys, rightKeys, joinType, if (cond === ALWAYS) null else cond)
+
+    override fun withIndexKeys(
+        left: Operator,
+        right: Operator,
+        scan: TableScanOperator,
+        filter: Predicate<Array<Any>>?,
+        leftKeys: IntArray,
+        rightKeys: IntArray
+    ): JoinOperator =
+        IndexNestedLoopJoinOperator.of(left, right, scan, filter, leftKeys, rightKeys, joinType, if (cond === ALWAYS) null else cond)
+}
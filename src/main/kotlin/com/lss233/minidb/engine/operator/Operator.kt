@@ -0,0 +1,83 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.schema.Column
+import miniDB.parser.ast.expression.primary.Identifier
+
+/**
+ * 物理算子
+ * 查询计划是由算子组成的树，采用火山模型执行：
+ * 上层算子调用 [next] 逐行向下层拉取数据，中间结果不需要完整地物化成 [Relation]
+ */
+abstract class Operator {
+    /**
+     * 算子输出的列
+     */
+    abstract val columns: MutableList<Column>
+
+    /**
+     * 别名，连接时用于限定列名
+     */
+    var alias: String? = null
+
+    /**
+     * 准备开始输出数据
+     */
+    abstract fun open()
+
+    /**
+     * 拉取下一行
+     * @return 下一行数据，没有更多数据时返回 null
+     */
+    abstract fun next(): Array<Any>?
+
+    /**
+     * 释放算子占用的资源
+     */
+    abstract fun close()
+
+    /**
+     * 估计输出的行数
+     */
+    abstract fun estimatedRows(): Long
+
+    /**
+     * 输出是否按这一列升序排列，NULL 视为最小
+     * 归并连接据此判断输入是否已经有序，不确定时返回 false
+     */
+    open fun orderedBy(slot: Int): Boolean = false
+
+    /**
+     * 在打开之前接收上层连接下推的运行时过滤器，之后可以不输出这一列的值不能通过过滤器的行
+     * 能交给最终读取这一列的表扫描时返回 true，不支持时返回 false，此时照常输出所有行
+     */
+    open fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = false
+
+    /**
+     * 在打开之前接收上层的行数上限，上层每次打开后最多只需要这么多行，之后可以在输出这么多行后提前结束
+     * 表扫描和连接据此少读数据、少提交预先执行的任务，不支持时忽略
+     */
+    open fun pushLimit(rows: Long) {}
+
+    /**
+     * 在输出列中查找标识符对应的列下标
+     * 找不到或匹配到多个列时返回 -1
+     */
+    fun indexOf(identifier: Identifier): Int = Relation.indexOf(columns, identifier)
+
+    /**
+     * 执行算子并把全部结果收集为关系
+     */
+    fun toRelation(): Relation {
+        val rows = ArrayList<Array<Any>>()
+        open()
+        try {
+            while (true) {
+                rows.add(next() ?: break)
+            }
+        } finally {
+            close()
+        }
+        return Relation(columns, rows)
+    }
+}
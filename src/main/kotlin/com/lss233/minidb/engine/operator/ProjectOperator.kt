@@ -0,0 +1,32 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 投影算子
+ * @param indexes 输出的每一列在下层算子中的列下标
+ * @param columns 输出的列
+ */
+class ProjectOperator(
+    private val child: Operator,
+    private val indexes: IntArray,
+    override val columns: MutableList<Column>
+) : Operator() {
+
+    override fun open() = child.open()
+
+    override fun next(): Array<Any>? {
+        val row = child.next() ?: return null
+        return Array(indexes.size) { index -> row[indexes[index]] }
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(indexes[slot])
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = child.pushRuntimeFilter(indexes[slot], filter)
+
+    override fun pushLimit(rows: Long) = child.pushLimit(rows)
+}
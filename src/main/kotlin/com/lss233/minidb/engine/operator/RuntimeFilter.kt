@@ -0,0 +1,112 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+
+/**
+ * 运行时连接过滤器
+ * 哈希连接读完建表一侧后，按建表一侧某个连接键的全部取值构造，下推到探测一侧的表扫描，
+ * 让连接键不可能匹配的行在扫描时就被丢掉，不再经过中间的过滤和连接。
+ * 键全是整数时先按最小值和最大值检查范围，再用布隆过滤器检查；两种检查都只会误放行，不会误丢弃。
+ * NULL 不与任何值相等，总是不能通过
+ * @param source 构造过滤器的连接，同一个连接再次打开时用新的过滤器替换旧的
+ * @param bits 布隆过滤器的位图，键太多时为 null，只检查范围
+ * @param integral 建表一侧的键是否全是整数
+ */
+class RuntimeFilter private constructor(
+    val source: Operator,
+    private val bits: LongArray?,
+    private val integral: Boolean,
+    private val min: Long,
+    private val max: Long
+) {
+    private val mask = bits?.let { it.size * 64 - 1 } ?: 0
+
+    /**
+     * 这个值是否可能出现在建表一侧
+     */
+    fun mightContain(value: Any?): Boolean =
+        when (val key = HashJoinOperator.normalizeKey(value)) {
+            null -> false
+            is Long -> mightContain(key)
+            // 归一化后的整数与其它类型的值不会相等
+            else -> !integral && mightContainHash(key.hashCode())
+        }
+
+    /**
+     * 整数是否可能出现在建表一侧，整数列的批量扫描直接用这个方法，不必装箱
+     */
+    fun mightContain(value: Long): Boolean =
+        (!integral || value in min..max) && mightContainHash(java.lang.Long.hashCode(value))
+
+    private fun mightContainHash(hash: Int): Boolean {
+        val bits = bits ?: return true
+        val first = hash * HASH_MULTIPLIER
+        val step = (first ushr 16) or 1
+        for (probe in 0 until HASH_COUNT) {
+            val bit = (first + probe * step) and mask
+            if (bits[bit ushr 6] and (1L shl bit) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    companion object {
+        /**
+         * 布隆过滤器中平均每个键占用的位数
+         */
+        private const val BITS_PER_KEY = 8
+
+        /**
+         * 每个键在布隆过滤器中置位的个数
+         */
+        private const val HASH_COUNT = 3
+
+        /**
+         * 用于打散哈希值的乘数
+         */
+        private const val HASH_MULTIPLIER = -0x61c88647
+
+        /**
+         * 按建表一侧的键构造过滤器
+         * @param keys 按 [HashJoinOperator.normalizeKey] 归一化后的非 NULL 键，可以有重复
+         * @param count 键的个数，用于确定布隆过滤器的大小
+         */
+        fun of(source: Operator, keys: Sequence<Any>, count: Int): RuntimeFilter {
+            var size = 64
+            while (size < count.toLong() * BITS_PER_KEY) {
+                size = size shl 1
+            }
+            val bits = if (count <= ExecutionConfig.RUNTIME_FILTER_MAX_KEYS) LongArray(size / 64) else null
+            val mask = size - 1
+            var integral = true
+            var min = Long.MAX_VALUE
+            var max = Long.MIN_VALUE
+            for (key in keys) {
+                if (key is Long) {
+                    min = minOf(min, key)
+                    max = maxOf(max, key)
+                } else {
+                    integral = false
+                }
+                if (bits != null) {
+                    val first = key.hashCode() * HASH_MULTIPLIER
+                    val step = (first ushr 16) or 1
+                    for (probe in 0 until HASH_COUNT) {
+                        val bit = (first + probe * step) and mask
+                        bits[bit ushr 6] = bits[bit ushr 6] or (1L shl bit)
+                    }
+                }
+            }
+            return RuntimeFilter(source, bits, integral, min, max)
+        }
+
+        /**
+         * 把过滤器加入算子持有的过滤器列表，替换同一个连接在同一列上之前下推的过滤器
+         */
+        fun install(filters: MutableList<Pair<Int, RuntimeFilter>>, slot: Int, filter: RuntimeFilter) {
+            filters.removeIf { it.first == slot && it.second.source === filter.source }
+            filters.add(Pair(slot, filter))
+        }
+    }
+}
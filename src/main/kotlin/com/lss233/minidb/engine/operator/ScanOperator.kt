@@ -0,0 +1,29 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 扫描算子
+ * 逐行输出关系中的数据
+ */
+class ScanOperator(val relation: Relation) : Operator() {
+    override val columns: MutableList<Column> = relation.columns
+    private var cursor = 0
+
+    init {
+        alias = relation.alias
+    }
+
+    override fun open() {
+        cursor = 0
+    }
+
+    override fun next(): Array<Any>? =
+        if (cursor < relation.rows.size) relation.rows[cursor++] else null
+
+    override fun close() {
+    }
+
+    override fun estimatedRows(): Long = relation.rows.size.toLong()
+}
@@ -0,0 +1,204 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.expression.ColumnEvaluator
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.schema.Column
+import java.util.PriorityQueue
+
+/**
+ * 排序算子
+ * 排序键在每行读入时求值一次，NULL 排在升序的最前面、降序的最后面，键相同的行保持输入顺序。
+ * 只需要前 limit 行时用大小为 limit 的堆保留当前最小的若干行，不必缓存全部输入；
+ * 否则在内存中缓存并排序，缓存超过 memoryLimit 或向 [MemoryManager] 申请不到内存时把排好序的一段写到临时文件，
+ * 最后多路归并各段；堆中要保留的行申请不到内存时也改为这样排序
+ * @param keys 排序键
+ * @param descending 每个排序键是否降序
+ * @param limit 最多需要输出的行数，小于 0 表示不限
+ * @param memoryLimit 内存中缓存的数据量上限（估算的字节数）
+ */
+class SortOperator(
+    private val child: Operator,
+    private val keys: List<Evaluator>,
+    private val descending: BooleanArray,
+    private val limit: Long = -1,
+    private val memoryLimit: Long = ExecutionConfig.SORT_BUFFER_SIZE
+) : Operator() {
+    override val columns: MutableList<Column> = child.columns
+
+    /**
+     * 读入的一行和它的排序键，sequence 是读入的顺序
+     */
+    private class Entry(val keys: Array<Any?>, val row: Array<Any>, val sequence: Long)
+
+    private val comparator = Comparator<Entry> { left, right ->
+        for (index in keys.indices) {
+            val result = compareKeys(left.keys[index], right.keys[index])
+            if (result != 0) {
+                return@Comparator if (descending[index]) -result else result
+            }
+        }
+        left.sequence.compareTo(right.sequence)
+    }
+
+    private val runs = ArrayList<SpillFile>()
+    private var sorted: Iterator<Entry>? = null
+    private var merger: Merger? = null
+    private var memory: MemoryReservation? = null
+    private var emitted = 0L
+
+    override fun open() {
+        close()
+        val memory = MemoryManager.reserve().also { this.memory = it }
+        emitted = 0
+        var sequence = 0L
+        child.open()
+        try {
+            val buffer = ArrayList<Entry>()
+            var bytes = 0L
+            if (limit in 0..Int.MAX_VALUE) {
+                // 堆顶是当前保留的行中最大的一行，新行比它小时替换掉它
+                val heap = PriorityQueue(maxOf(limit.toInt(), 1), comparator.reversed())
+                while (limit > 0) {
+                    val row = child.next() ?: break
+                    val entry = Entry(keysOf(row), row, sequence++)
+                    if (heap.size < limit) {
+                        heap.add(entry)
+                        bytes += SpillFile.estimateSize(row)
+                        if (!memory.reserve(bytes)) {
+                            // 要保留的行太多、内存申请不到时改为外部排序，此时还没有行被换出堆
+                            buffer.addAll(heap)
+                            spill(buffer)
+                            bytes = 0
+                            memory.release()
+                            break
+                        }
+                    } else if (comparator.compare(entry, heap.peek()) < 0) {
+                        heap.poll()
+                        heap.add(entry)
+                    }
+                }
+                if (runs.isEmpty()) {
+                    sorted = heap.sortedWith(comparator).iterator()
+                    return
+                }
+            }
+            while (true) {
+                val row = child.next() ?: break
+                buffer.add(Entry(keysOf(row), row, sequence++))
+                bytes += SpillFile.estimateSize(row)
+                if (bytes > memoryLimit || !memory.reserve(bytes)) {
+                    spill(buffer)
+                    bytes = 0
+                    memory.release()
+                }
+            }
+            buffer.sortWith(comparator)
+            if (runs.isEmpty()) {
+                sorted = buffer.iterator()
+            } else {
+                merger = Merger(buffer)
+            }
+        } finally {
+            child.close()
+        }
+    }
+
+    override fun next(): Array<Any>? {
+        sorted?.let { return if (it.hasNext()) it.next().row else null }
+        // 从堆改为外部排序时归并出的行不止 limit 行
+        if (limit in 0..emitted) {
+            return null
+        }
+        emitted++
+        return merger?.next()
+    }
+
+    override fun close() {
+        merger?.close()
+        merger = null
+        sorted = null
+        for (run in runs) {
+            run.close()
+        }
+        runs.clear()
+        memory?.close()
+        memory = null
+    }
+
+    override fun estimatedRows(): Long = if (limit >= 0) minOf(limit, child.estimatedRows()) else child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean =
+        keys.isNotEmpty() && !descending[0] && (keys[0] as? ColumnEvaluator)?.slot == slot
+
+    private fun keysOf(row: Array<Any>): Array<Any?> = Array(keys.size) { keys[it].evaluate(row) }
+
+    /**
+     * 把缓存排序后写成临时文件中的一段
+     */
+    private fun spill(buffer: ArrayList<Entry>) {
+        buffer.sortWith(comparator)
+        val run = SpillFile("sort")
+        runs.add(run)
+        for (entry in buffer) {
+            run.write(entry.row)
+        }
+        run.seal()
+        buffer.clear()
+    }
+
+    /**
+     * 多路归并各段有序数据
+     * 从临时文件读回的行重新计算排序键，段的编号代替读入顺序，保证键相同的行仍按输入顺序输出
+     * @param tail 最后留在内存中的一段
+     */
+    private inner class Merger(tail: List<Entry>) {
+        private val readers = runs.map { it.reader() }
+        private val memory = tail.iterator()
+        private val heap = PriorityQueue<Pair<Entry, Int>>(runs.size + 1) { left, right -> comparator.compare(left.first, right.first) }
+
+        init {
+            for (source in 0..readers.size) {
+                advance(source)
+            }
+        }
+
+        fun next(): Array<Any>? {
+            val (entry, source) = heap.poll() ?: return null
+            advance(source)
+            return entry.row
+        }
+
+        private fun advance(source: Int) {
+            val entry = if (source < readers.size) {
+                readers[source].next()?.let { Entry(keysOf(it), it, source.toLong()) }
+            } else if (memory.hasNext()) {
+                memory.next().let { Entry(it.keys, it.row, source.toLong()) }
+            } else {
+                null
+            }
+            entry?.let { heap.add(Pair(it, source)) }
+        }
+
+        fun close() {
+            for (reader in readers) {
+                reader.close()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * 比较两个排序键，NULL 最小
+         */
+        fun compareKeys(left: Any?, right: Any?): Int =
+            when {
+                left == null -> if (right == null) 0 else -1
+                right == null -> 1
+                left is Long && right is Long -> left.compareTo(right)
+                left is String && right is String -> left.compareTo(right)
+                else -> ExpressionCompiler.compareValues(left, right)
+            }
+    }
+}
@@ -0,0 +1,170 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Cell
+import com.lss233.minidb.engine.config.DBConfig
+import java.io.*
+import java.math.BigDecimal
+import java.math.BigInteger
+
+/**
+ * 溢出到磁盘的临时文件
+ * 内存放不下的中间结果按行顺序写入，之后再按写入的顺序读回。文件放在数据目录下的 [DBConfig.TEMP_FILE]，
+ * 这个目录不能创建时放在系统的临时目录。
+ * 每个值前有一个字节的类型标记，常见类型按二进制写入，其余可序列化的值用 Java 序列化保存
+ */
+class SpillFile(prefix: String) : Closeable {
+    private val file: File = File.createTempFile("minidb-$prefix-", ".tmp", directory).also { it.deleteOnExit() }
+    private var output: DataOutputStream? = DataOutputStream(BufferedOutputStream(FileOutputStream(file), BUFFER_SIZE))
+
+    /**
+     * 写入的行数
+     */
+    var rows = 0L
+        private set
+
+    /**
+     * 写入一行
+     */
+    fun write(row: Array<Any>) {
+        val output = output ?: throw IllegalStateException("Spill file has been sealed.")
+        output.writeInt(row.size)
+        for (value in row) {
+            writeValue(output, value as Any?)
+        }
+        rows++
+    }
+
+    /**
+     * 结束写入，之后只能读取
+     */
+    fun seal() {
+        output?.close()
+        output = null
+    }
+
+    /**
+     * 从头开始按写入的顺序读取
+     */
+    fun reader(): Reader {
+        seal()
+        return Reader(DataInputStream(BufferedInputStream(FileInputStream(file), BUFFER_SIZE)))
+    }
+
+    override fun close() {
+        output?.close()
+        output = null
+        file.delete()
+    }
+
+    /**
+     * 顺序读取临时文件中的行
+     */
+    inner class Reader(private val input: DataInputStream) : Closeable {
+        private var remaining = rows
+
+        /**
+         * 读取下一行，读完时返回 null
+         */
+        @Suppress("UNCHECKED_CAST")
+        fun next(): Array<Any>? {
+            if (remaining == 0L) {
+                return null
+            }
+            remaining--
+            val row = arrayOfNulls<Any>(input.readInt())
+            for (index in row.indices) {
+                row[index] = readValue(input)
+            }
+            return row as Array<Any>
+        }
+
+        override fun close() = input.close()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+
+        /**
+         * 临时文件所在的目录，为 null 时使用系统的临时目录
+         */
+        private val directory: File? by lazy { File(DBConfig.TEMP_FILE).takeIf { it.isDirectory || it.mkdirs() } }
+
+        private const val NULL: Int = 0
+        private const val INT: Int = 1
+        private const val LONG: Int = 2
+        private const val DOUBLE: Int = 3
+        private const val STRING: Int = 4
+        private const val BOOLEAN: Int = 5
+        private const val FLOAT: Int = 6
+        private const val SHORT: Int = 7
+        private const val BYTE: Int = 8
+        private const val DECIMAL: Int = 9
+        private const val BIG_INTEGER: Int = 10
+        private const val SERIALIZED: Int = 11
+
+        private fun writeValue(output: DataOutputStream, value: Any?) {
+            when (value) {
+                null -> output.writeByte(NULL)
+                // 单元格只写出其中的值，读回时不再包装
+                is Cell<*> -> writeValue(output, value.value)
+                is Int -> { output.writeByte(INT); output.writeInt(value) }
+                is Long -> { output.writeByte(LONG); output.writeLong(value) }
+                is Double -> { output.writeByte(DOUBLE); output.writeDouble(value) }
+                is String -> {
+                    val bytes = value.toByteArray(Charsets.UTF_8)
+                    output.writeByte(STRING)
+                    output.writeInt(bytes.size)
+                    output.write(bytes)
+                }
+                is Boolean -> { output.writeByte(BOOLEAN); output.writeBoolean(value) }
+                is Float -> { output.writeByte(FLOAT); output.writeFloat(value) }
+                is Short -> { output.writeByte(SHORT); output.writeShort(value.toInt()) }
+                is Byte -> { output.writeByte(BYTE); output.writeByte(value.toInt()) }
+                is BigDecimal -> { output.writeByte(DECIMAL); output.writeUTF(value.toString()) }
+                is BigInteger -> { output.writeByte(BIG_INTEGER); output.writeUTF(value.toString()) }
+                is Serializable -> {
+                    val bytes = ByteArrayOutputStream().also { ObjectOutputStream(it).use { stream -> stream.writeObject(value) } }.toByteArray()
+                    output.writeByte(SERIALIZED)
+                    output.writeInt(bytes.size)
+                    output.write(bytes)
+                }
+                else -> throw RuntimeException("Value of type ${value.javaClass.name} cannot be spilled to disk.")
+            }
+        }
+
+        private fun readValue(input: DataInputStream): Any? =
+            when (val tag = input.readByte().toInt()) {
+                NULL -> null
+                INT -> input.readInt()
+                LONG -> input.readLong()
+                DOUBLE -> input.readDouble()
+                STRING -> ByteArray(input.readInt()).also { input.readFully(it) }.toString(Charsets.UTF_8)
+                BOOLEAN -> input.readBoolean()
+                FLOAT -> input.readFloat()
+                SHORT -> input.readShort()
+                BYTE -> input.readByte()
+                DECIMAL -> BigDecimal(input.readUTF())
+                BIG_INTEGER -> BigInteger(input.readUTF())
+                SERIALIZED -> {
+                    val bytes = ByteArray(input.readInt()).also { input.readFully(it) }
+                    ObjectInputStream(ByteArrayInputStream(bytes)).use { it.readObject() }
+                }
+                else -> throw RuntimeException("Corrupted spill file, unknown value tag $tag.")
+            }
+
+        /**
+         * 估算一行在内存中占用的字节数，用于判断是否超出内存预算
+         */
+        fun estimateSize(row: Array<Any>): Long {
+            var size = 16L + 8L * row.size
+            for (value in row as Array<Any?>) {
+                size += when (value) {
+                    null -> 0
+                    is String -> 40L + value.length
+                    else -> 16
+                }
+            }
+            return size
+        }
+    }
+}
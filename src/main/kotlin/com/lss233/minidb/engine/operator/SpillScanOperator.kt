@@ -0,0 +1,26 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 临时文件扫描算子
+ * 按写入的顺序读出溢出到磁盘的行，使溢出的分区可以重新交给其它算子处理。
+ * 关闭时不删除文件，由写入文件的算子负责
+ */
+class SpillScanOperator(private val file: SpillFile, override val columns: MutableList<Column>) : Operator() {
+    private var reader: SpillFile.Reader? = null
+
+    override fun open() {
+        reader?.close()
+        reader = file.reader()
+    }
+
+    override fun next(): Array<Any>? = reader?.next()
+
+    override fun close() {
+        reader?.close()
+        reader = null
+    }
+
+    override fun estimatedRows(): Long = file.rows
+}
@@ -0,0 +1,54 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.memory.TableSnapshot
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 表扫描算子
+ * 逐行读取表的快照，只有被读到的行才会取出成数组；有运行时过滤器时先只读出过滤的列检查，通过后才取出整行
+ * @param fields 每一列在快照中的列下标，[TableSnapshot.ROW_ID] 表示输出行号；默认输出快照的全部列
+ */
+class TableScanOperator(
+    val snapshot: TableSnapshot,
+    override val columns: MutableList<Column>,
+    val fields: IntArray = IntArray(columns.size) { it }
+) : Operator() {
+    private var cursor = 0
+    private val runtimeFilters = ArrayList<Pair<Int, RuntimeFilter>>()
+
+    override fun open() {
+        cursor = 0
+    }
+
+    override fun next(): Array<Any>? {
+        while (cursor < snapshot.size) {
+            val index = cursor++
+            if (runtimeFilters.isEmpty() || accepts(index)) {
+                return snapshot.row(index, fields)
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+    }
+
+    override fun estimatedRows(): Long = snapshot.size.toLong()
+
+    override fun orderedBy(slot: Int): Boolean = snapshot.isOrdered(fields[slot])
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean {
+        RuntimeFilter.install(runtimeFilters, slot, filter)
+        return true
+    }
+
+    private fun accepts(index: Int): Boolean {
+        for ((slot, filter) in runtimeFilters) {
+            val field = fields[slot]
+            if (!filter.mightContain(if (field == TableSnapshot.ROW_ID) index.toLong() else snapshot.get(index, field))) {
+                return false
+            }
+        }
+        return true
+    }
+}
@@ -0,0 +1,49 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 并集算子
+ * 依次输出每个子查询的结果，同一时刻只打开一个子算子
+ */
+class UnionOperator(private val children: List<Operator>) : Operator() {
+    override val columns: MutableList<Column> = children[0].columns
+    private var current = -1
+
+    init {
+        if (children.any { it.columns.size != columns.size }) {
+            throw RuntimeException("每一个 UNION 查询必须有相同的字段个数")
+        }
+    }
+
+    override fun open() {
+        current = 0
+        children[current].open()
+    }
+
+    override fun next(): Array<Any>? {
+        while (current < children.size) {
+            children[current].next()?.let { return it }
+            children[current].close()
+            current++
+            if (current < children.size) {
+                children[current].open()
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+        if (current in children.indices) {
+            children[current].close()
+        }
+        current = children.size
+    }
+
+    override fun estimatedRows(): Long = children.sumOf { it.estimatedRows() }
+
+    /**
+     * 每个子查询都最多只需要输出这么多行，前面的子查询输出足够后后面的不会被打开
+     */
+    override fun pushLimit(rows: Long) = children.forEach { it.pushLimit(rows) }
+}
@@ -0,0 +1,20 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.memory.Engine
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * 查询内并行执行使用的共享线程池
+ * 线程数为 [ExecutionConfig.PARALLEL_DEGREE]，所有查询的并行任务都提交到这里，由工作窃取平衡负载
+ */
+object WorkerPool {
+    val pool: ForkJoinPool by lazy { ForkJoinPool(ExecutionConfig.PARALLEL_DEGREE) }
+
+    /**
+     * 当前会话的并行度，会话没有设置时使用 [ExecutionConfig.PARALLEL_DEGREE]
+     */
+    fun degree(): Int =
+        Engine.session.get()?.properties?.get(ExecutionConfig.PARALLEL_DEGREE_VARIABLE)?.toIntOrNull()?.coerceAtLeast(1)
+            ?: ExecutionConfig.PARALLEL_DEGREE
+}
@@ -0,0 +1,137 @@
+package com.lss233.minidb.engine.optimizer
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+
+/**
+ * 连接谓词
+ * @param relations 谓词引用的关系的位集合，第 i 位表示第 i 个关系
+ * @param selectivity 估计的选择率
+ */
+class JoinPredicate(val relations: Long, val selectivity: Double)
+
+/**
+ * 连接顺序枚举
+ * 为参与连接的关系选出代价最小的左深连接顺序，代价是每一次连接估计输出的行数之和。
+ * 关系不多时用动态规划枚举所有子集，否则用贪心算法每一步连接使结果行数最少的关系。
+ * 外连接中补 NULL 的一侧只能在它的 ON 条件引用的关系都连接之后加入，加入后的行数不少于加入前
+ * @param rows 每个关系的估计行数
+ * @param predicates 各个谓词，引用的关系都已连接时生效
+ * @param required 每个关系加入前必须已经连接的关系的位集合
+ * @param outer 每个关系是否是外连接中补 NULL 的一侧
+ */
+class JoinEnumerator(
+    private val rows: DoubleArray,
+    private val predicates: List<JoinPredicate>,
+    private val required: LongArray,
+    private val outer: BooleanArray
+) {
+
+    /**
+     * 连接顺序，依次是各个关系的下标
+     */
+    fun order(): IntArray {
+        val count = rows.size
+        if (count > MAX_RELATIONS) {
+            return IntArray(count) { it }
+        }
+        return if (count <= ExecutionConfig.JOIN_REORDER_DP_LIMIT) dynamicProgramming() else greedy()
+    }
+
+    private fun dynamicProgramming(): IntArray {
+        val count = rows.size
+        val cost = DoubleArray(1 shl count) { Double.POSITIVE_INFINITY }
+        val cardinality = DoubleArray(1 shl count)
+        val last = IntArray(1 shl count) { -1 }
+        for (relation in 0 until count) {
+            if (canStart(relation)) {
+                cost[1 shl relation] = 0.0
+                cardinality[1 shl relation] = rows[relation]
+                last[1 shl relation] = relation
+            }
+        }
+        for (set in 1 until (1 shl count)) {
+            if (cost[set] == Double.POSITIVE_INFINITY) {
+                continue
+            }
+            for (relation in 0 until count) {
+                if (!canJoin(set.toLong(), relation)) {
+                    continue
+                }
+                val next = set or (1 shl relation)
+                val rows = cardinalityOf(set.toLong(), relation, cardinality[set])
+                if (cost[set] + rows < cost[next]) {
+                    cost[next] = cost[set] + rows
+                    cardinality[next] = rows
+                    last[next] = relation
+                }
+            }
+        }
+        var set = (1 shl count) - 1
+        if (last[set] < 0) {
+            return IntArray(count) { it }
+        }
+        val order = IntArray(count)
+        for (position in count - 1 downTo 0) {
+            order[position] = last[set]
+            set = set and (1 shl last[set]).inv()
+        }
+        return order
+    }
+
+    private fun greedy(): IntArray {
+        val count = rows.size
+        val order = IntArray(count)
+        var set = 0L
+        var cardinality = 0.0
+        for (position in 0 until count) {
+            var best = -1
+            var bestRows = Double.POSITIVE_INFINITY
+            for (relation in 0 until count) {
+                val eligible = if (position == 0) canStart(relation) else canJoin(set, relation)
+                if (!eligible) {
+                    continue
+                }
+                val rows = if (position == 0) rows[relation] else cardinalityOf(set, relation, cardinality)
+                if (rows < bestRows) {
+                    best = relation
+                    bestRows = rows
+                }
+            }
+            if (best < 0) {
+                return IntArray(count) { it }
+            }
+            order[position] = best
+            set = set or (1L shl best)
+            cardinality = bestRows
+        }
+        return order
+    }
+
+    private fun canStart(relation: Int): Boolean = !outer[relation] && required[relation] == 0L
+
+    private fun canJoin(set: Long, relation: Int): Boolean =
+        set and (1L shl relation) == 0L && required[relation] and set.inv() == 0L
+
+    /**
+     * 估计已连接的关系 [set] 再连接 [relation] 后的行数
+     * @param base 已连接部分的估计行数
+     */
+    private fun cardinalityOf(set: Long, relation: Int, base: Double): Double {
+        val bit = 1L shl relation
+        val next = set or bit
+        var result = base * rows[relation]
+        for (predicate in predicates) {
+            if (predicate.relations and bit != 0L && predicate.relations and next.inv() == 0L) {
+                result *= predicate.selectivity
+            }
+        }
+        return if (outer[relation]) maxOf(result, base) else maxOf(result, 1.0)
+    }
+
+    companion object {
+        /**
+         * 位集合能表示的关系数量上限，超过时保持原来的顺序
+         */
+        const val MAX_RELATIONS = 63
+    }
+}
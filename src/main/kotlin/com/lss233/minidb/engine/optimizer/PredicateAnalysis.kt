@@ -0,0 +1,96 @@
+package com.lss233.minidb.engine.optimizer
+
+import miniDB.parser.ast.expression.BinaryOperatorExpression
+import miniDB.parser.ast.expression.Expression
+import miniDB.parser.ast.expression.arithmeic.ArithmeticBinaryOperatorExpression
+import miniDB.parser.ast.expression.arithmeic.MinusExpression
+import miniDB.parser.ast.expression.comparison.*
+import miniDB.parser.ast.expression.logical.LogicalAndExpression
+import miniDB.parser.ast.expression.logical.LogicalOrExpression
+import miniDB.parser.ast.expression.primary.Identifier
+import miniDB.parser.ast.expression.string.LikeExpression
+
+/**
+ * 谓词的静态分析，供连接顺序选择使用
+ */
+object PredicateAnalysis {
+    private const val EQUALITY_SELECTIVITY = 0.1
+    private const val RANGE_SELECTIVITY = 1.0 / 3
+    private const val LIKE_SELECTIVITY = 0.25
+    private const val DEFAULT_SELECTIVITY = 0.5
+
+    /**
+     * 估计谓词的选择率
+     * 两列之间的等值比较假设其中一列是键，选择率为两侧行数较大者的倒数；其余谓词使用固定的经验值
+     * @param rowsOf 列所属关系的估计行数，不是列时返回 null
+     */
+    fun selectivityOf(expression: Expression, rowsOf: (Expression) -> Double?): Double =
+        when (expression) {
+            is LogicalAndExpression -> (0 until expression.arity).fold(1.0) { result, index ->
+                result * selectivityOf(expression.getOperand(index), rowsOf)
+            }
+            is LogicalOrExpression -> (0 until expression.arity).fold(0.0) { result, index ->
+                val selectivity = selectivityOf(expression.getOperand(index), rowsOf)
+                result + selectivity - result * selectivity
+            }
+            is ComparisionEqualsExpression, is ComparisionNullSafeEqualsExpression -> {
+                expression as BinaryOperatorExpression
+                val left = rowsOf(expression.leftOprand)
+                val right = rowsOf(expression.rightOprand)
+                if (left != null && right != null) 1.0 / maxOf(left, right, 1.0) else EQUALITY_SELECTIVITY
+            }
+            is ComparisionNotEqualsExpression, is ComparisionLessOrGreaterThanExpression -> 1 - EQUALITY_SELECTIVITY
+            is ComparisionGreaterThanExpression, is ComparisionGreaterThanOrEqualsExpression,
+            is ComparisionLessThanExpression, is ComparisionLessThanOrEqualsExpression,
+            is BetweenAndExpression -> RANGE_SELECTIVITY
+            is ComparisionIsExpression -> when (expression.mode) {
+                ComparisionIsExpression.IS_NULL -> EQUALITY_SELECTIVITY
+                ComparisionIsExpression.IS_NOT_NULL -> 1 - EQUALITY_SELECTIVITY
+                else -> DEFAULT_SELECTIVITY
+            }
+            is InExpression -> expression.inExpressionList
+                ?.let { minOf(DEFAULT_SELECTIVITY, EQUALITY_SELECTIVITY * it.list.size) }
+                ?.let { if (expression.isNot) 1 - it else it }
+                ?: DEFAULT_SELECTIVITY
+            is LikeExpression -> LIKE_SELECTIVITY
+            else -> DEFAULT_SELECTIVITY
+        }
+
+    /**
+     * 判断谓词在某个关系的列全部为 NULL 时是否一定不成立
+     * WHERE 中这样的谓词会过滤掉外连接为这个关系补 NULL 的行，外连接因此可以改为内连接
+     * @param belongs 列是否属于这个关系
+     */
+    fun rejectsNull(expression: Expression, belongs: (Identifier) -> Boolean): Boolean =
+        when (expression) {
+            is LogicalAndExpression -> (0 until expression.arity).any { rejectsNull(expression.getOperand(it), belongs) }
+            is LogicalOrExpression -> (0 until expression.arity).all { rejectsNull(expression.getOperand(it), belongs) }
+            is ComparisionIsExpression -> when (expression.mode) {
+                ComparisionIsExpression.IS_NOT_NULL, ComparisionIsExpression.IS_TRUE, ComparisionIsExpression.IS_FALSE ->
+                    isStrict(expression.operand, belongs)
+                else -> false
+            }
+            is InExpression -> isStrict(expression.leftOprand, belongs)
+            is ComparisionEqualsExpression, is ComparisionNotEqualsExpression, is ComparisionLessOrGreaterThanExpression,
+            is ComparisionGreaterThanExpression, is ComparisionGreaterThanOrEqualsExpression,
+            is ComparisionLessThanExpression, is ComparisionLessThanOrEqualsExpression -> {
+                expression as BinaryOperatorExpression
+                isStrict(expression.leftOprand, belongs) || isStrict(expression.rightOprand, belongs)
+            }
+            is BetweenAndExpression -> isStrict(expression.first, belongs) ||
+                isStrict(expression.second, belongs) || isStrict(expression.third, belongs)
+            is LikeExpression -> isStrict(expression.first, belongs) || isStrict(expression.second, belongs)
+            else -> false
+        }
+
+    /**
+     * 判断表达式在某个关系的列全部为 NULL 时是否一定为 NULL
+     */
+    private fun isStrict(expression: Expression, belongs: (Identifier) -> Boolean): Boolean =
+        when (expression) {
+            is Identifier -> belongs(expression)
+            is ArithmeticBinaryOperatorExpression -> isStrict(expression.leftOprand, belongs) || isStrict(expression.rightOprand, belongs)
+            is MinusExpression -> isStrict(expression.operand, belongs)
+            else -> false
+        }
+}
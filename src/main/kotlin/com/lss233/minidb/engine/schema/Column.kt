@@ -88,6 +88,24 @@ class Column {
         return name.hashCode()
     }
 
+    /**
+     * 列的声明类型，没有列定义时为 null
+     */
+    val dataType: DataTypeName?
+        get() = if (::definition.isInitialized) definition.dataType.typeName else null
+
+    /**
+     * 用表名（或别名）重新限定列名，保留列定义
+     * @param table 表名
+     */
+    fun qualified(table: String): Column {
+        val column = Column(Identifier(Identifier(null, table), name))
+        if (::definition.isInitialized) {
+            column.definition = definition
+        }
+        return column
+    }
+
     fun getFullName(): String {
         return identifier.idTextWithParent;
     }
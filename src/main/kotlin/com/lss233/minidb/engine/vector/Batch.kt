@@ -0,0 +1,63 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.expression.ValueType
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 列批
+ * 批量执行时算子之间传递的数据单位，由每一列的列向量和一个选择向量组成。
+ * 过滤只改写选择向量，被选中的行是 selection[0 until selectedCount]
+ * @param vectors 每一列的列向量
+ * @param selection 选择向量，按行号升序存放被选中的行
+ */
+class Batch(
+    val columns: List<Column>,
+    val vectors: Array<ColumnVector>,
+    val selection: IntArray = IntArray(CAPACITY)
+) {
+    /**
+     * 批中实际装入的行数
+     */
+    var size = 0
+
+    /**
+     * 被选中的行数
+     */
+    var selectedCount = 0
+
+    /**
+     * 把一行取出到给定的数组中
+     * @param index 行号
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun fill(index: Int, row: Array<Any?>): Array<Any> {
+        for (column in vectors.indices) {
+            row[column] = vectors[column].get(index)
+        }
+        return row as Array<Any>
+    }
+
+    /**
+     * 把一行取出为新数组
+     * @param index 行号
+     */
+    fun row(index: Int): Array<Any> = fill(index, arrayOfNulls(vectors.size))
+
+    companion object {
+        /**
+         * 每批的行数
+         */
+        const val CAPACITY = 1024
+
+        /**
+         * 按列的声明类型创建列向量
+         */
+        fun vectorOf(column: Column): ColumnVector =
+            when (ValueType.of(column.dataType)) {
+                ValueType.LONG -> LongVector(CAPACITY)
+                ValueType.DOUBLE -> DoubleVector(CAPACITY)
+                ValueType.STRING -> DictionaryVector(CAPACITY)
+                else -> ObjectVector(CAPACITY)
+            }
+    }
+}
@@ -0,0 +1,33 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 批量选择算子
+ * 在列向量上计算条件，只改写选择向量，不复制数据
+ */
+class BatchFilterOperator(private val child: BatchOperator, private val cond: Evaluator) : BatchOperator() {
+    override val columns: MutableList<Column> = child.columns
+
+    override fun open() = child.open()
+
+    override fun nextBatch(): Batch? {
+        while (true) {
+            val batch = child.nextBatch() ?: return null
+            batch.selectedCount = cond.select(batch, batch.selection, batch.selectedCount)
+            if (batch.selectedCount > 0) {
+                return batch
+            }
+        }
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(slot)
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = child.pushRuntimeFilter(slot, filter)
+}
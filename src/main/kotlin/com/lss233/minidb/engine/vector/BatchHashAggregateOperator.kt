@@ -0,0 +1,79 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.aggregate.Aggregator
+import com.lss233.minidb.engine.expression.ColumnEvaluator
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.operator.AggregateOperator
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 按批输入的哈希聚合算子
+ * 先为一批中被选中的每一行求出分组编号，再让每个聚合函数在整批上累加；
+ * 分组键和聚合参数是整数或浮点数列时，全程直接读取列向量中的基本类型数组
+ */
+class BatchHashAggregateOperator(
+    private val child: BatchOperator,
+    keys: List<Evaluator>,
+    aggregators: List<Aggregator>,
+    columns: MutableList<Column>
+) : AggregateOperator(keys, aggregators, columns) {
+
+    override fun consume() {
+        val groups = IntArray(Batch.CAPACITY)
+        val key = keys.singleOrNull()
+        child.open()
+        try {
+            while (true) {
+                val batch = child.nextBatch() ?: break
+                val count = batch.selectedCount
+                if (count == 0) {
+                    continue
+                }
+                val selection = batch.selection
+                val vector = if (longKey && key is ColumnEvaluator) batch.vectors[key.slot] else null
+                if (keys.isEmpty()) {
+                    groups.fill(singleGroup(), 0, count)
+                } else if (vector is LongVector) {
+                    val values = vector.values
+                    for (position in 0 until count) {
+                        val index = selection[position]
+                        groups[position] = if (vector.isNull(index)) groupOfNull() else groupOfLong(values[index])
+                    }
+                } else {
+                    val row = arrayOfNulls<Any>(batch.vectors.size)
+                    for (position in 0 until count) {
+                        groups[position] = groupOf(batch.fill(selection[position], row))
+                    }
+                }
+                // 分组表停止增长后，新分组的行写入分区，其余的行照常累加
+                val kept = if (spilling) keep(batch, groups, count) else count
+                for (aggregator in aggregators) {
+                    aggregator.addBatch(batch, groups, kept)
+                }
+            }
+        } finally {
+            child.close()
+        }
+    }
+
+    /**
+     * 把分组编号为 -1 的行写入分区，从选择向量中去掉
+     * @return 留下的行数
+     */
+    private fun keep(batch: Batch, groups: IntArray, count: Int): Int {
+        val selection = batch.selection
+        var kept = 0
+        for (position in 0 until count) {
+            if (groups[position] < 0) {
+                spill(batch.row(selection[position]))
+            } else {
+                groups[kept] = groups[position]
+                selection[kept++] = selection[position]
+            }
+        }
+        batch.selectedCount = kept
+        return kept
+    }
+
+    override fun estimatedRows(): Long = if (keys.isEmpty()) 1 else child.estimatedRows()
+}
@@ -0,0 +1,47 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 批量执行的物理算子
+ * 与 [com.lss233.minidb.engine.operator.Operator] 一样是拉取式的，但每次拉取一个 [Batch]，
+ * 过滤和投影可以在列向量上以紧凑的循环完成
+ */
+abstract class BatchOperator {
+    /**
+     * 算子输出的列
+     */
+    abstract val columns: MutableList<Column>
+
+    /**
+     * 准备开始输出数据
+     */
+    abstract fun open()
+
+    /**
+     * 拉取下一批
+     * 返回的批在下一次调用之前有效，没有更多数据时返回 null
+     */
+    abstract fun nextBatch(): Batch?
+
+    /**
+     * 释放算子占用的资源
+     */
+    abstract fun close()
+
+    /**
+     * 估计输出的行数
+     */
+    abstract fun estimatedRows(): Long
+
+    /**
+     * 输出是否按这一列升序排列，NULL 视为最小，不确定时返回 false
+     */
+    open fun orderedBy(slot: Int): Boolean = false
+
+    /**
+     * 与 [com.lss233.minidb.engine.operator.Operator.pushRuntimeFilter] 相同
+     */
+    open fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = false
+}
@@ -0,0 +1,34 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 批量投影算子
+ * 只重新排列列向量的引用，与下层共用数据和选择向量
+ * @param indexes 输出的每一列在下层算子中的列下标
+ */
+class BatchProjectOperator(
+    private val child: BatchOperator,
+    private val indexes: IntArray,
+    override val columns: MutableList<Column>
+) : BatchOperator() {
+
+    override fun open() = child.open()
+
+    override fun nextBatch(): Batch? {
+        val batch = child.nextBatch() ?: return null
+        val projected = Batch(columns, Array(indexes.size) { batch.vectors[indexes[it]] }, batch.selection)
+        projected.size = batch.size
+        projected.selectedCount = batch.selectedCount
+        return projected
+    }
+
+    override fun close() = child.close()
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(indexes[slot])
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = child.pushRuntimeFilter(indexes[slot], filter)
+}
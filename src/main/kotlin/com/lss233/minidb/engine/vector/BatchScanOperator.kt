@@ -0,0 +1,50 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 批量扫描算子
+ * 每次把关系中的最多 [Batch.CAPACITY] 行转置进列向量，列向量在各批之间复用
+ */
+class BatchScanOperator(private val relation: Relation) : BatchOperator() {
+    override val columns: MutableList<Column> = relation.columns
+    private var cursor = 0
+    private lateinit var batch: Batch
+
+    override fun open() {
+        cursor = 0
+        batch = Batch(columns, Array(columns.size) { Batch.vectorOf(columns[it]) })
+    }
+
+    override fun nextBatch(): Batch? {
+        val rows = relation.rows
+        if (cursor >= rows.size) {
+            return null
+        }
+        val count = minOf(Batch.CAPACITY, rows.size - cursor)
+        val vectors = batch.vectors
+        for (column in vectors.indices) {
+            vectors[column].reset()
+            for (index in 0 until count) {
+                if (!vectors[column].set(index, rows[cursor + index][column])) {
+                    // 实际的值与声明类型不符时，这一列退回到对象向量
+                    vectors[column] = ColumnVector.toObjectVector(vectors[column], index)
+                    vectors[column].set(index, rows[cursor + index][column])
+                }
+            }
+        }
+        for (index in 0 until count) {
+            batch.selection[index] = index
+        }
+        batch.size = count
+        batch.selectedCount = count
+        cursor += count
+        return batch
+    }
+
+    override fun close() {
+    }
+
+    override fun estimatedRows(): Long = relation.rows.size.toLong()
+}
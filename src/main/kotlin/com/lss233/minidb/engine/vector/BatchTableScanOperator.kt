@@ -0,0 +1,149 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.memory.*
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 批量表扫描算子
+ * 表快照的每个分段正好是一批，基本类型的列直接从列存储复制进列向量，不需要经过行数组；
+ * 运行时过滤器在装入后直接改写选择向量，整批都被过滤掉时继续读下一个分段
+ * @param fields 每一列在快照中的列下标，[TableSnapshot.ROW_ID] 表示输出行号
+ * @param firstSegment 扫描的第一个分段
+ * @param endSegment 扫描到这个分段之前为止
+ */
+class BatchTableScanOperator(
+    private val snapshot: TableSnapshot,
+    override val columns: MutableList<Column>,
+    private val fields: IntArray = IntArray(columns.size) { it },
+    private val firstSegment: Int = 0,
+    private val endSegment: Int = snapshot.segmentCount
+) : BatchOperator() {
+    private var segment = firstSegment
+    private lateinit var batch: Batch
+    private val runtimeFilters = ArrayList<Pair<Int, RuntimeFilter>>()
+
+    override fun open() {
+        segment = firstSegment
+        batch = Batch(columns, Array(columns.size) {
+            if (fields[it] == TableSnapshot.ROW_ID) LongVector(Batch.CAPACITY) else Batch.vectorOf(columns[it])
+        })
+    }
+
+    override fun nextBatch(): Batch? {
+        while (segment < endSegment) {
+            load()
+            for ((slot, filter) in runtimeFilters) {
+                batch.selectedCount = select(filter, batch.vectors[slot], batch.selection, batch.selectedCount)
+            }
+            if (batch.selectedCount > 0) {
+                return batch
+            }
+        }
+        return null
+    }
+
+    /**
+     * 把当前分段装入批中，然后移到下一个分段
+     */
+    private fun load() {
+        val count = snapshot.segmentSize(segment)
+        val stores = snapshot.segment(segment).stores
+        val vectors = batch.vectors
+        for (column in vectors.indices) {
+            vectors[column].reset()
+            val field = fields[column]
+            if (field == TableSnapshot.ROW_ID) {
+                val values = (vectors[column] as LongVector).values
+                val base = segment.toLong() * Segment.CAPACITY
+                for (index in 0 until count) {
+                    values[index] = base + index
+                }
+            } else {
+                vectors[column] = fill(stores[field], vectors[column], count)
+            }
+        }
+        for (index in 0 until count) {
+            batch.selection[index] = index
+        }
+        batch.size = count
+        batch.selectedCount = count
+        segment++
+    }
+
+    override fun close() {
+    }
+
+    override fun estimatedRows(): Long =
+        (minOf(endSegment.toLong() * Segment.CAPACITY, snapshot.size.toLong()) - firstSegment.toLong() * Segment.CAPACITY).coerceAtLeast(0)
+
+    override fun orderedBy(slot: Int): Boolean = snapshot.isOrdered(fields[slot])
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean {
+        RuntimeFilter.install(runtimeFilters, slot, filter)
+        return true
+    }
+
+    /**
+     * 在选择向量中只保留能通过运行时过滤器的行，整数列不装箱
+     * @return 保留的行数
+     */
+    private fun select(filter: RuntimeFilter, vector: ColumnVector, selection: IntArray, count: Int): Int {
+        var selected = 0
+        if (vector is LongVector) {
+            val values = vector.values
+            for (position in 0 until count) {
+                val index = selection[position]
+                if (!vector.isNull(index) && filter.mightContain(values[index])) {
+                    selection[selected++] = index
+                }
+            }
+        } else {
+            for (position in 0 until count) {
+                val index = selection[position]
+                if (filter.mightContain(vector.get(index))) {
+                    selection[selected++] = index
+                }
+            }
+        }
+        return selected
+    }
+
+    /**
+     * 把一段列存储装入列向量
+     * @return 装好数据的列向量，类型不符时会换成对象向量
+     */
+    private fun fill(store: ColumnStore, vector: ColumnVector, count: Int): ColumnVector {
+        when {
+            store is IntColumnStore && vector is LongVector -> {
+                val source = store.values
+                val target = vector.values
+                for (index in 0 until count) {
+                    target[index] = source[index].toLong()
+                }
+            }
+            store is LongColumnStore && vector is LongVector ->
+                System.arraycopy(store.values, 0, vector.values, 0, count)
+            store is DoubleColumnStore && vector is DoubleVector ->
+                System.arraycopy(store.values, 0, vector.values, 0, count)
+            else -> {
+                var target = vector
+                for (index in 0 until count) {
+                    if (!target.set(index, store.get(index))) {
+                        target = ColumnVector.toObjectVector(target, index)
+                        target.set(index, store.get(index))
+                    }
+                }
+                return target
+            }
+        }
+        if (store.hasNulls) {
+            for (index in 0 until count) {
+                if (store.isNull(index)) {
+                    vector.set(index, null)
+                }
+            }
+        }
+        return vector
+    }
+}
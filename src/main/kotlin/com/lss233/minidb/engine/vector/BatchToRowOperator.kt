@@ -0,0 +1,41 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.schema.Column
+
+/**
+ * 把批量执行的结果逐行交给上层的行算子
+ */
+class BatchToRowOperator(private val child: BatchOperator) : Operator() {
+    override val columns: MutableList<Column> = child.columns
+    private var batch: Batch? = null
+    private var cursor = 0
+
+    override fun open() {
+        batch = null
+        cursor = 0
+        child.open()
+    }
+
+    override fun next(): Array<Any>? {
+        var current = batch
+        while (current == null || cursor >= current.selectedCount) {
+            current = child.nextBatch() ?: return null
+            batch = current
+            cursor = 0
+        }
+        return current.row(current.selection[cursor++])
+    }
+
+    override fun close() {
+        batch = null
+        child.close()
+    }
+
+    override fun estimatedRows(): Long = child.estimatedRows()
+
+    override fun orderedBy(slot: Int): Boolean = child.orderedBy(slot)
+
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean = child.pushRuntimeFilter(slot, filter)
+}
@@ -0,0 +1,152 @@
+package com.lss233.minidb.engine.vector
+
+/**
+ * 列向量
+ * 批中一列的数据，按列类型存放在基本类型数组中，NULL 记录在位图里
+ * @param capacity 最多能存放的行数
+ */
+abstract class ColumnVector(val capacity: Int) {
+    private val nulls = LongArray((capacity + 63) ushr 6)
+
+    /**
+     * 是否含有 NULL，不含时可以跳过位图检查
+     */
+    var hasNulls = false
+        private set
+
+    fun isNull(index: Int): Boolean =
+        hasNulls && (nulls[index ushr 6] ushr (index and 63)) and 1L != 0L
+
+    protected fun setNull(index: Int) {
+        nulls[index ushr 6] = nulls[index ushr 6] or (1L shl index)
+        hasNulls = true
+    }
+
+    /**
+     * 写入一个值
+     * @return 值不能用这种向量表示时返回 false
+     */
+    abstract fun set(index: Int, value: Any?): Boolean
+
+    /**
+     * 读出一个值，NULL 返回 null
+     */
+    abstract fun get(index: Int): Any?
+
+    /**
+     * 清空，准备装入下一批数据
+     */
+    open fun reset() {
+        if (hasNulls) {
+            nulls.fill(0L)
+            hasNulls = false
+        }
+    }
+
+    companion object {
+        /**
+         * 实际的值与向量类型不符时，把已经装入的数据转存到对象向量中
+         * @param filled 已经装入的行数
+         */
+        fun toObjectVector(vector: ColumnVector, filled: Int): ColumnVector {
+            val objects = ObjectVector(vector.capacity)
+            for (index in 0 until filled) {
+                objects.set(index, vector.get(index))
+            }
+            return objects
+        }
+    }
+}
+
+/**
+ * 整数列向量
+ */
+class LongVector(capacity: Int) : ColumnVector(capacity) {
+    val values = LongArray(capacity)
+
+    override fun set(index: Int, value: Any?): Boolean {
+        when (value) {
+            null -> setNull(index)
+            is Long -> values[index] = value
+            is Int -> values[index] = value.toLong()
+            is Short -> values[index] = value.toLong()
+            is Byte -> values[index] = value.toLong()
+            else -> return false
+        }
+        return true
+    }
+
+    override fun get(index: Int): Any? = if (isNull(index)) null else values[index]
+}
+
+/**
+ * 浮点数列向量
+ */
+class DoubleVector(capacity: Int) : ColumnVector(capacity) {
+    val values = DoubleArray(capacity)
+
+    override fun set(index: Int, value: Any?): Boolean {
+        when (value) {
+            null -> setNull(index)
+            is Double -> values[index] = value
+            is Float -> values[index] = value.toDouble()
+            else -> return false
+        }
+        return true
+    }
+
+    override fun get(index: Int): Any? = if (isNull(index)) null else values[index]
+}
+
+/**
+ * 字典编码的列向量
+ * 每个不同的值只在字典中存一份，行中只保存字典下标；
+ * 对常量的比较可以先在字典上算一遍，再按下标查结果
+ */
+class DictionaryVector(capacity: Int) : ColumnVector(capacity) {
+    val codes = IntArray(capacity)
+    val dictionary = ArrayList<Any>()
+    private val lookup = HashMap<Any, Int>()
+
+    override fun set(index: Int, value: Any?): Boolean {
+        if (value == null) {
+            setNull(index)
+        } else {
+            codes[index] = lookup.getOrPut(value) {
+                dictionary.add(value)
+                dictionary.size - 1
+            }
+        }
+        return true
+    }
+
+    override fun get(index: Int): Any? = if (isNull(index)) null else dictionary[codes[index]]
+
+    override fun reset() {
+        super.reset()
+        dictionary.clear()
+        lookup.clear()
+    }
+}
+
+/**
+ * 不能用基本类型表示的列，直接存放对象
+ */
+class ObjectVector(capacity: Int) : ColumnVector(capacity) {
+    val values = arrayOfNulls<Any>(capacity)
+
+    override fun set(index: Int, value: Any?): Boolean {
+        if (value == null) {
+            setNull(index)
+        }
+        values[index] = value
+        return true
+    }
+
+    override fun get(index: Int): Any? = values[index]
+
+    override fun reset() {
+        super.reset()
+        values.fill(null)
+    }
+}
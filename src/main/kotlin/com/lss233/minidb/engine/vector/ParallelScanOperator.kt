@@ -0,0 +1,207 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.expression.Evaluator
+import com.lss233.minidb.engine.memory.Segment
+import com.lss233.minidb.engine.memory.TableSnapshot
+import com.lss233.minidb.engine.operator.MemoryManager
+import com.lss233.minidb.engine.operator.MemoryReservation
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.RuntimeFilter
+import com.lss233.minidb.engine.operator.SpillFile
+import com.lss233.minidb.engine.operator.WorkerPool
+import com.lss233.minidb.engine.schema.Column
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinTask
+
+/**
+ * 并行表扫描算子
+ * 把表快照按 [ExecutionConfig.MORSEL_SEGMENTS] 个分段切成一块，交给共享的工作窃取线程池，
+ * 每块独立完成批量扫描、过滤和投影。同时执行的块数不超过并行度，
+ * 输出时按块的顺序合并，结果的顺序与顺序扫描相同。
+ * 上层下推了行数上限时只提交凑够这么多行所需的块，带过滤条件时每取走一块再逐步增加同时执行的块数。
+ * 取走的一块和同时执行的块的结果都缓存在内存中，按块结果的估算大小向 [MemoryManager] 预留，
+ * 预留不到时减少同时执行的块数，最少只执行一块
+ * @param scanColumns 表扫描输出的列
+ * @param fields 表扫描输出的每一列在快照中的列下标
+ * @param cond 过滤条件，没有则为 null
+ * @param indexes 投影的每一列在扫描输出中的下标，不投影时为 null
+ * @param columns 输出的列
+ * @param degree 并行度
+ */
+class ParallelScanOperator(
+    private val snapshot: TableSnapshot,
+    private val scanColumns: MutableList<Column>,
+    private val fields: IntArray,
+    private val cond: Evaluator?,
+    private val indexes: IntArray?,
+    override val columns: MutableList<Column>,
+    private val degree: Int
+) : Operator() {
+    private val morselCount = (snapshot.segmentCount + ExecutionConfig.MORSEL_SEGMENTS - 1) / ExecutionConfig.MORSEL_SEGMENTS
+    /**
+     * 正在执行的块，结果是块中满足条件的行和这些行的估算字节数
+     */
+    private val running = ArrayDeque<ForkJoinTask<Pair<List<Array<Any>>, Long>>>()
+    private var nextMorsel = 0
+    private var rows: List<Array<Any>> = emptyList()
+    private var cursor = 0
+    private val runtimeFilters = ArrayList<Pair<Int, RuntimeFilter>>()
+    private var rowLimit = Long.MAX_VALUE
+    private var emitted = 0L
+
+    /**
+     * 同时执行的块数
+     */
+    private var inFlight = degree
+
+    /**
+     * 已经取走的块中结果最大的估算字节数，还没有取走任何一块时按每一行都满足条件估算
+     */
+    private var morselBytes = 0L
+    private var measured = false
+    private var memory: MemoryReservation? = null
+
+    override fun open() {
+        close()
+        memory = MemoryManager.reserve()
+        nextMorsel = 0
+        emitted = 0
+        // 每一行都满足条件时凑够上限所需的块数
+        inFlight = minOf(degree.toLong(), (rowLimit + MORSEL_ROWS - 1) / MORSEL_ROWS).toInt().coerceAtLeast(1)
+        morselBytes = MORSEL_ROWS * (ROW_OVERHEAD + VALUE_SIZE * columns.size)
+        measured = false
+        reserve(0)
+        repeat(inFlight) { submit() }
+    }
+
+    override fun next(): Array<Any>? {
+        if (emitted >= rowLimit) {
+            return null
+        }
+        while (cursor >= rows.size) {
+            val task = running.removeFirstOrNull() ?: return null
+            val (result, bytes) = task.join()
+            rows = result
+            cursor = 0
+            morselBytes = if (measured) maxOf(morselBytes, bytes) else bytes
+            measured = true
+            if (cond != null && inFlight < degree) {
+                inFlight = minOf(degree, inFlight * 2)
+            }
+            reserve(bytes)
+            repeat(inFlight - running.size) { submit() }
+        }
+        emitted++
+        return rows[cursor++]
+    }
+
+    override fun close() {
+        for (task in running) {
+            task.cancel(false)
+        }
+        running.clear()
+        rows = emptyList()
+        cursor = 0
+        memory?.close()
+        memory = null
+    }
+
+    override fun estimatedRows(): Long = snapshot.size.toLong()
+
+    /**
+     * 各块按顺序合并，输出保持表中的顺序
+     */
+    override fun orderedBy(slot: Int): Boolean = snapshot.isOrdered(fields[indexes?.get(slot) ?: slot])
+
+    /**
+     * 运行时过滤器按表扫描输出的列记下，每块的批量扫描各自检查
+     */
+    override fun pushRuntimeFilter(slot: Int, filter: RuntimeFilter): Boolean {
+        RuntimeFilter.install(runtimeFilters, indexes?.get(slot) ?: slot, filter)
+        return true
+    }
+
+    override fun pushLimit(rows: Long) {
+        rowLimit = minOf(rowLimit, rows)
+    }
+
+    /**
+     * 为取走的一块和同时执行的各块预留内存，预留不到时减少同时执行的块数
+     * @param current 取走的一块的估算字节数
+     */
+    private fun reserve(current: Long) {
+        val memory = memory ?: return
+        while (inFlight > 1 && !memory.reserve(current + morselBytes * inFlight)) {
+            inFlight--
+        }
+    }
+
+    private fun submit() {
+        if (nextMorsel >= morselCount) {
+            return
+        }
+        val first = nextMorsel++ * ExecutionConfig.MORSEL_SEGMENTS
+        val end = minOf(first + ExecutionConfig.MORSEL_SEGMENTS, snapshot.segmentCount)
+        val filters = runtimeFilters.toList()
+        val limit = rowLimit
+        running.addLast(WorkerPool.pool.submit(Callable { scan(first, end, filters, limit) }))
+    }
+
+    /**
+     * 扫描一块，返回其中满足条件的行，最多 limit 行，以及这些行的估算字节数
+     */
+    private fun scan(first: Int, end: Int, filters: List<Pair<Int, RuntimeFilter>>, limit: Long): Pair<List<Array<Any>>, Long> {
+        var operator: BatchOperator = BatchTableScanOperator(snapshot, scanColumns, fields, first, end)
+        filters.forEach { (slot, filter) -> operator.pushRuntimeFilter(slot, filter) }
+        cond?.let { operator = BatchFilterOperator(operator, it) }
+        indexes?.let { operator = BatchProjectOperator(operator, it, columns) }
+        val result = ArrayList<Array<Any>>()
+        var bytes = 0L
+        operator.open()
+        try {
+            while (result.size < limit) {
+                val batch = operator.nextBatch() ?: break
+                for (position in 0 until minOf(batch.selectedCount.toLong(), limit - result.size).toInt()) {
+                    val row = batch.row(batch.selection[position])
+                    bytes += SpillFile.estimateSize(row)
+                    result.add(row)
+                }
+            }
+        } finally {
+            operator.close()
+        }
+        return Pair(result, bytes)
+    }
+
+    companion object {
+        /**
+         * 每块最多包含的行数
+         */
+        private const val MORSEL_ROWS = ExecutionConfig.MORSEL_SEGMENTS.toLong() * Segment.CAPACITY
+
+        /**
+         * 还没有取走任何一块时估算一行的大小用到的行数组开销和每个值的大小，与 [SpillFile.estimateSize] 的估算相同量级
+         */
+        private const val ROW_OVERHEAD = 16L
+        private const val VALUE_SIZE = 24L
+
+        /**
+         * 表足够大且并行度大于 1 时创建并行扫描，否则返回 null
+         */
+        fun of(
+            snapshot: TableSnapshot,
+            scanColumns: MutableList<Column>,
+            fields: IntArray,
+            cond: Evaluator?,
+            indexes: IntArray?,
+            columns: MutableList<Column>
+        ): ParallelScanOperator? {
+            if (snapshot.size < ExecutionConfig.PARALLEL_SCAN_THRESHOLD) {
+                return null
+            }
+            val degree = WorkerPool.degree()
+            return if (degree > 1) ParallelScanOperator(snapshot, scanColumns, fields, cond, indexes, columns, degree) else null
+        }
+    }
+}
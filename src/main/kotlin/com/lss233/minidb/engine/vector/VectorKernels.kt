@@ -0,0 +1,129 @@
+package com.lss233.minidb.engine.vector
+
+import com.lss233.minidb.engine.expression.CompareOp
+
+/**
+ * 列向量上的过滤内核
+ * 运算符在进入循环之前分派，每种运算符都展开成一个独立的循环，循环体内没有虚调用和装箱
+ */
+object VectorKernels {
+
+    /**
+     * 按条件就地压缩选择向量
+     * @return 压缩后被选中的行数
+     */
+    inline fun selectWhere(selection: IntArray, count: Int, predicate: (Int) -> Boolean): Int {
+        var selected = 0
+        for (position in 0 until count) {
+            val index = selection[position]
+            if (predicate(index)) {
+                selection[selected++] = index
+            }
+        }
+        return selected
+    }
+
+    /**
+     * 整数列与常量比较
+     */
+    fun compare(op: CompareOp, vector: LongVector, constant: Long, selection: IntArray, count: Int): Int {
+        val values = vector.values
+        return if (vector.hasNulls) {
+            when (op) {
+                CompareOp.EQ -> selectWhere(selection, count) { !vector.isNull(it) && values[it] == constant }
+                CompareOp.NE -> selectWhere(selection, count) { !vector.isNull(it) && values[it] != constant }
+                CompareOp.GT -> selectWhere(selection, count) { !vector.isNull(it) && values[it] > constant }
+                CompareOp.GE -> selectWhere(selection, count) { !vector.isNull(it) && values[it] >= constant }
+                CompareOp.LT -> selectWhere(selection, count) { !vector.isNull(it) && values[it] < constant }
+                CompareOp.LE -> selectWhere(selection, count) { !vector.isNull(it) && values[it] <= constant }
+            }
+        } else {
+            when (op) {
+                CompareOp.EQ -> selectWhere(selection, count) { values[it] == constant }
+                CompareOp.NE -> selectWhere(selection, count) { values[it] != constant }
+                CompareOp.GT -> selectWhere(selection, count) { values[it] > constant }
+                CompareOp.GE -> selectWhere(selection, count) { values[it] >= constant }
+                CompareOp.LT -> selectWhere(selection, count) { values[it] < constant }
+                CompareOp.LE -> selectWhere(selection, count) { values[it] <= constant }
+            }
+        }
+    }
+
+    /**
+     * 两个整数列比较
+     */
+    fun compare(op: CompareOp, left: LongVector, right: LongVector, selection: IntArray, count: Int): Int {
+        val a = left.values
+        val b = right.values
+        val remaining = if (left.hasNulls || right.hasNulls) {
+            selectWhere(selection, count) { !left.isNull(it) && !right.isNull(it) }
+        } else {
+            count
+        }
+        return when (op) {
+            CompareOp.EQ -> selectWhere(selection, remaining) { a[it] == b[it] }
+            CompareOp.NE -> selectWhere(selection, remaining) { a[it] != b[it] }
+            CompareOp.GT -> selectWhere(selection, remaining) { a[it] > b[it] }
+            CompareOp.GE -> selectWhere(selection, remaining) { a[it] >= b[it] }
+            CompareOp.LT -> selectWhere(selection, remaining) { a[it] < b[it] }
+            CompareOp.LE -> selectWhere(selection, remaining) { a[it] <= b[it] }
+        }
+    }
+
+    /**
+     * 浮点数列与常量比较
+     */
+    fun compare(op: CompareOp, vector: DoubleVector, constant: Double, selection: IntArray, count: Int): Int {
+        val values = vector.values
+        val remaining = if (vector.hasNulls) selectWhere(selection, count) { !vector.isNull(it) } else count
+        return when (op) {
+            CompareOp.EQ -> selectWhere(selection, remaining) { values[it] == constant }
+            CompareOp.NE -> selectWhere(selection, remaining) { values[it] != constant }
+            CompareOp.GT -> selectWhere(selection, remaining) { values[it] > constant }
+            CompareOp.GE -> selectWhere(selection, remaining) { values[it] >= constant }
+            CompareOp.LT -> selectWhere(selection, remaining) { values[it] < constant }
+            CompareOp.LE -> selectWhere(selection, remaining) { values[it] <= constant }
+        }
+    }
+
+    /**
+     * 整数列与浮点常量比较
+     */
+    fun compare(op: CompareOp, vector: LongVector, constant: Double, selection: IntArray, count: Int): Int {
+        val values = vector.values
+        val remaining = if (vector.hasNulls) selectWhere(selection, count) { !vector.isNull(it) } else count
+        return when (op) {
+            CompareOp.EQ -> selectWhere(selection, remaining) { values[it].toDouble() == constant }
+            CompareOp.NE -> selectWhere(selection, remaining) { values[it].toDouble() != constant }
+            CompareOp.GT -> selectWhere(selection, remaining) { values[it].toDouble() > constant }
+            CompareOp.GE -> selectWhere(selection, remaining) { values[it].toDouble() >= constant }
+            CompareOp.LT -> selectWhere(selection, remaining) { values[it].toDouble() < constant }
+            CompareOp.LE -> selectWhere(selection, remaining) { values[it].toDouble() <= constant }
+        }
+    }
+
+    /**
+     * 字典编码列按字典项的结果过滤
+     * @param matched 每个字典项是否满足条件
+     */
+    fun selectCodes(vector: DictionaryVector, matched: BooleanArray, selection: IntArray, count: Int): Int {
+        val codes = vector.codes
+        return if (vector.hasNulls) {
+            selectWhere(selection, count) { !vector.isNull(it) && matched[codes[it]] }
+        } else {
+            selectWhere(selection, count) { matched[codes[it]] }
+        }
+    }
+
+    /**
+     * IS NULL / IS NOT NULL
+     */
+    fun selectNulls(vector: ColumnVector, not: Boolean, selection: IntArray, count: Int): Int =
+        if (!vector.hasNulls) {
+            if (not) count else 0
+        } else if (not) {
+            selectWhere(selection, count) { !vector.isNull(it) }
+        } else {
+            selectWhere(selection, count) { vector.isNull(it) }
+        }
+}
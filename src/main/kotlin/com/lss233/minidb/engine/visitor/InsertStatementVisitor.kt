@@ -21,7 +21,7 @@ class InsertStatementVisitor: Visitor() {
 
     override fun visit(node: DMLInsertStatement) {
         val table = Engine[node.table];
-        val columns = node.columnNameList?.map { identifier -> Column(identifier) } ?: table.getRelation().columns
+        val columns = node.columnNameList?.map { identifier -> Column(identifier) } ?: (table as? Table)?.columns ?: table.getRelation().columns
         node.rowList.forEach { row -> run {
             affects++
             table.insert(NTuple.from(
@@ -1,64 +1,168 @@
 package com.lss233.minidb.engine.visitor
 
-import com.lss233.minidb.engine.Cell
-import com.lss233.minidb.engine.NTuple
+import com.lss233.minidb.engine.JoinType
 import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.aggregate.*
+import com.lss233.minidb.engine.expression.*
 import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.memory.Table
+import com.lss233.minidb.engine.memory.TableSnapshot
+import com.lss233.minidb.engine.memory.View
+import com.lss233.minidb.engine.optimizer.JoinEnumerator
+import com.lss233.minidb.engine.optimizer.JoinPredicate
+import com.lss233.minidb.engine.optimizer.PredicateAnalysis
+import com.lss233.minidb.engine.operator.*
+import com.lss233.minidb.engine.vector.*
 import com.lss233.minidb.engine.schema.Column
 import hu.webarticum.treeprinter.SimpleTreeNode
-import miniDB.parser.ast.expression.comparison.ComparisionEqualsExpression
-import miniDB.parser.ast.expression.comparison.ComparisionGreaterThanExpression
-import miniDB.parser.ast.expression.comparison.ComparisionIsExpression
-import miniDB.parser.ast.expression.comparison.ComparisionLessOrGreaterThanExpression
+import miniDB.parser.ast.expression.BinaryOperatorExpression
+import miniDB.parser.ast.expression.Expression
+import miniDB.parser.ast.expression.PolyadicOperatorExpression
+import miniDB.parser.ast.expression.TernaryOperatorExpression
+import miniDB.parser.ast.expression.UnaryOperatorExpression
+import miniDB.parser.ast.expression.arithmeic.*
+import miniDB.parser.ast.expression.comparison.*
 import miniDB.parser.ast.expression.logical.LogicalAndExpression
+import miniDB.parser.ast.expression.logical.LogicalNotExpression
 import miniDB.parser.ast.expression.logical.LogicalOrExpression
+import miniDB.parser.ast.expression.misc.QueryExpression
+import miniDB.parser.ast.expression.misc.SubqueryAllExpression
+import miniDB.parser.ast.expression.misc.SubqueryAnyExpression
+import miniDB.parser.ast.expression.primary.ExistsPrimary
 import miniDB.parser.ast.expression.primary.Identifier
+import miniDB.parser.ast.expression.primary.ParamMarker
+import miniDB.parser.ast.expression.primary.Wildcard
 import miniDB.parser.ast.expression.primary.function.FunctionExpression
 import miniDB.parser.ast.expression.primary.function.cast.Cast
+import miniDB.parser.ast.expression.primary.function.groupby.*
+import miniDB.parser.ast.expression.primary.literal.Literal
+import miniDB.parser.ast.expression.primary.literal.LiteralBoolean
+import miniDB.parser.ast.expression.primary.literal.LiteralNull
 import miniDB.parser.ast.expression.primary.literal.LiteralNumber
 import miniDB.parser.ast.expression.primary.literal.LiteralString
+import miniDB.parser.ast.fragment.Limit
+import miniDB.parser.ast.fragment.OrderBy
+import miniDB.parser.ast.fragment.SortOrder
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
 import miniDB.parser.ast.fragment.tableref.InnerJoin
 import miniDB.parser.ast.fragment.tableref.OuterJoin
 import miniDB.parser.ast.fragment.tableref.TableRefFactor
+import miniDB.parser.ast.fragment.tableref.TableReference
 import miniDB.parser.ast.fragment.tableref.TableReferences
 import miniDB.parser.ast.stmt.dml.DMLSelectStatement
 import miniDB.parser.ast.stmt.dml.DMLSelectUnionStatement
+import miniDB.parser.visitor.OutputVisitor
 import miniDB.parser.visitor.Visitor
 import java.util.*
 import java.util.function.Predicate
 
 
 open class SelectStatementVisitor: Visitor() {
-    protected var selectedRelation: HashMap<String, Relation> = HashMap();
+    protected var selectedRelation: HashMap<String, Operator> = HashMap();
     protected val stack = Stack<Any>()
     var rootNode = SimpleTreeNode("DMLSelectStatement")
-    var relation: Relation? = null
+
+    /**
+     * 当前条件表达式可以引用的列
+     * 访问条件表达式之前设置，表达式中的列名会被绑定成这里的列下标
+     */
+    protected var scope: List<Column> = emptyList()
+
+    /**
+     * 已经由聚合算子算出的聚合函数在 [scope] 中的列下标
+     */
+    private val aggregateSlots = IdentityHashMap<Expression, Int>()
+
+    /**
+     * 下推条件时列名按这里的列解析，得到的下标再减去 [bindingOffset]，即目标算子在其中的起始下标
+     */
+    private var bindingScope: List<Column>? = null
+    private var bindingOffset = 0
+
+    /**
+     * 查询计划的根算子
+     * 网络层应直接从这里逐行拉取结果
+     */
+    var plan: Operator? = null
+
+    /**
+     * 语句中参数占位符的值，第 n 个占位符的值在第 n - 1 个位置
+     * 由 [com.lss233.minidb.engine.PlanCache] 参数化的语句在执行前设置
+     */
+    var parameters: List<Any?> = emptyList()
+
+    /**
+     * 查询读取的表和视图，以及开始读取时表的版本，视图没有版本，记为 -1
+     * 查询结果缓存据此判断缓存的结果是否过期
+     */
+    val reads = ArrayList<Pair<View, Long>>()
+
+    /**
+     * 执行查询计划并收集全部结果
+     */
+    val relation: Relation?
+        get() = plan?.toRelation()
     val constantRelation = Relation(mutableListOf(Column("version")), mutableListOf(arrayOf("1.0.0-MINIDB")))
     override fun visit(node: DMLSelectUnionStatement) {
-        var result: Relation? = null
+        val children = ArrayList<Operator>()
         for (dmlSelectStatement in node.selectStmtList) {
             dmlSelectStatement.accept(this)
-            val relation = stack.pop() as Relation
-            if(result == null) {
-                result = relation
-            } else {
-                result = result.union(relation)
-            }
+            children.add(stack.pop() as Operator)
         }
+        // 最后一个 UNION DISTINCT 及之前的查询合并后一起去重，之后的 UNION ALL 直接拼接
+        val distinct = node.firstDistinctIndex
+        var result = if (distinct > 0) {
+            val deduplicated = DistinctOperator(UnionOperator(children.subList(0, distinct + 1)))
+            if (distinct + 1 == children.size) deduplicated else UnionOperator(listOf(deduplicated) + children.subList(distinct + 1, children.size))
+        } else if (children.size == 1) {
+            children[0]
+        } else {
+            UnionOperator(children)
+        }
+        scope = result.columns
+        result = limit(orderBy(node.orderBy, null, result, node.limit), node.limit)
         stack.push(result)
-        relation = result
+        plan = result
     }
     override fun visit(node: DMLSelectStatement) {
-        var result = constantRelation.clone()
+        var result: Operator = ScanOperator(constantRelation.clone())
+        // IN、EXISTS 等子查询条件改写成半连接，在 FROM 子句和其余的条件之后执行
+        val (subqueries, rest) = conjunctsOf(node.where).partition { isSubqueryPredicate(it) }
+        var where = if (subqueries.isEmpty()) node.where else andOf(rest)
         node.tables?.let { tables -> run {
-            node.tables.accept(this)
-            result = stack.pop() as Relation
-        } }
-        node.where?.let { where -> run {
-            where.accept(this)
-            val cond = stack.pop() as Predicate<NTuple>
-            result = result.select(cond)
+            val parentNode = rootNode
+            rootNode = SimpleTreeNode("* tables")
+            val leaves = ArrayList<JoinLeaf>()
+            val conjuncts = ArrayList<Expression>()
+            flatten(tables, leaves, conjuncts)
+            parentNode.addChild(rootNode)
+            rootNode = parentNode
+            val needed = referencedColumns(node, where, subqueries, leaves, conjuncts)
+            result = leaves.singleOrNull()?.let { leaf ->
+                needed?.let { prune(leaf, it, null) }
+                leaf.operator
+            } ?: run {
+                // 多表查询重新选择连接顺序，WHERE 条件一起下推到连接树中，不再留到连接之后过滤
+                conjuncts.addAll(conjunctsOf(where))
+                where = null
+                simplify(leaves, conjuncts)
+                joinTree(leaves, conjuncts, needed)
+            }
         } }
+        if (subqueries.isNotEmpty()) {
+            result = pushDown(result, conjunctsOf(where))
+            where = null
+            result = subqueries.fold(result) { input, subquery -> semiJoin(input, subquery) }
+        }
+        scope = result.columns
+        var cond = where?.let { operandOf(it) }
+        if (cond is ConstantEvaluator) {
+            // 条件恒真时不再逐行检查，恒假或为 NULL 时不必扫描
+            if (!ExpressionCompiler.isTrue(cond.value)) {
+                result = emptyOf(result)
+            }
+            cond = null
+        }
 
         val parentNode = rootNode
         rootNode = SimpleTreeNode("* select")
@@ -75,25 +179,279 @@ open class SelectStatementVisitor: Visitor() {
         parentNode.addChild(rootNode)
         rootNode = parentNode
 
-        result = if (condProjection != null) result.projection(condProjection) else result.projection { true }
-        result = Relation(result.columns.map { column ->
-            Column(node.selectExprList.firstOrNull { column.identifier == it.key }?.value ?: column.name)
-        }.toMutableList(),
-        result.rows)
+        val aggregates = ArrayList<FunctionExpression>()
+        node.selectExprList.forEach { aggregatesOf(it.key, aggregates) }
+        aggregatesOf(node.having, aggregates)
+        if (node.group != null || aggregates.isNotEmpty()) {
+            result = aggregate(node, result, cond, aggregates)
+        } else {
+            val columns = result.columns
+            val projectIndexes = columns.indices.filter { condProjection?.test(columns[it]) ?: true }.toIntArray()
+            val projectColumns = projectIndexes.map { index ->
+                val column = columns[index]
+                Column(node.selectExprList.firstOrNull { column.identifier == it.key }?.value ?: column.name)
+            }.toMutableList()
+
+            val source = result
+            val scan = batchScanOf(source)
+            result = if (node.order != null) {
+                // 排序键可能引用不在查询列表中的列，先排序再投影
+                val filtered = parallelScanOf(source, cond, null, source.columns)
+                    ?: scan?.let { BatchToRowOperator(cond?.let { BatchFilterOperator(scan, it) } ?: scan) }
+                    ?: cond?.let { FilterOperator(source, it) } ?: source
+                ProjectOperator(orderBy(node.order, node.selectExprList, filtered, sortLimitOf(node)), projectIndexes, projectColumns)
+            } else if (scan != null) {
+                // 单表查询按批执行，过滤和投影直接在列向量上完成，大表按块并行执行
+                parallelScanOf(source, cond, projectIndexes, projectColumns) ?: run {
+                    var batch: BatchOperator = scan
+                    cond?.let { batch = BatchFilterOperator(batch, it) }
+                    BatchToRowOperator(BatchProjectOperator(batch, projectIndexes, projectColumns))
+                }
+            } else {
+                ProjectOperator(cond?.let { FilterOperator(source, it) } ?: source, projectIndexes, projectColumns)
+            }
+        }
+        if (isDistinct(node)) {
+            // 已经排好序的结果去重时保持顺序
+            result = DistinctOperator(result, preserveOrder = node.order != null)
+        }
+        result = limit(result, node.limit)
+
+        // 带括号的查询后面的 ORDER BY 和 LIMIT 作用在查询结果上
+        node.outermostOrderBy?.let {
+            scope = result.columns
+            result = orderBy(it, null, result, node.outermostLimit)
+        }
+        result = limit(result, node.outermostLimit)
         stack.push(result)
-        relation = result
+        plan = result
+
+    }
+    /**
+     * 单表扫描对应的批量扫描算子，其它算子返回 null
+     */
+    private fun batchScanOf(source: Operator): BatchOperator? =
+        when (source) {
+            is TableScanOperator -> BatchTableScanOperator(source.snapshot, source.columns, source.fields)
+            is ScanOperator -> BatchScanOperator(source.relation)
+            else -> null
+        }
+
+    /**
+     * 大表的扫描、过滤和投影按块并行执行，其它情况返回 null
+     * @param indexes 投影的列下标，不投影时为 null
+     * @param columns 输出的列
+     */
+    private fun parallelScanOf(source: Operator, cond: Evaluator?, indexes: IntArray?, columns: MutableList<Column>): Operator? =
+        (source as? TableScanOperator)?.let { ParallelScanOperator.of(it.snapshot, it.columns, it.fields, cond, indexes, columns) }
+
+    /**
+     * 生成聚合查询的计划
+     * 先按 GROUP BY 分组计算 [functions] 中的聚合函数，再用 HAVING 过滤分组，最后按查询列表投影。
+     * 聚合算子输出的列依次是分组键和各个聚合函数，之后的表达式中的聚合函数都绑定到这些列上
+     * @param source FROM 子句的算子
+     * @param cond WHERE 条件
+     * @param functions 查询列表和 HAVING 中出现的聚合函数
+     */
+    private fun aggregate(node: DMLSelectStatement, source: Operator, cond: Evaluator?, functions: List<FunctionExpression>): Operator {
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("* group by")
+
+        val groupBy = node.group?.orderByList?.map { it.key } ?: emptyList()
+        val keys = groupBy.map { operandOf(it) }
+        val keyColumns = groupBy.mapIndexed { index, expression ->
+            val key = keys[index]
+            if (expression is Identifier && key is ColumnEvaluator) scope[key.slot] else columnOf(textOf(expression), key.type)
+        }
+        val aggregators = functions.map { aggregatorOf(it) }
+        val columns = keyColumns.toMutableList()
+        functions.forEachIndexed { index, function ->
+            val alias = node.selectExprList.firstOrNull { it.key === function }?.value
+            columns.add(columnOf(alias ?: textOf(function), aggregators[index].type))
+        }
+
+        var result: Operator = batchScanOf(source)?.let { scan ->
+            var batch: BatchOperator = scan
+            cond?.let { batch = BatchFilterOperator(batch, it) }
+            BatchHashAggregateOperator(batch, keys, aggregators, columns)
+        } ?: HashAggregateOperator(cond?.let { FilterOperator(source, it) } ?: source, keys, aggregators, columns)
+
+        scope = columns
+        functions.forEachIndexed { index, function -> aggregateSlots[function] = keys.size + index }
+        node.having?.let { result = FilterOperator(result, operandOf(it)) }
+
+        val projectIndexes = ArrayList<Int>()
+        val projectColumns = ArrayList<Column>()
+        for (item in node.selectExprList) {
+            val expression = item.key
+            val alias = item.value
+            val slots = when {
+                expression is Wildcard -> keys.indices.toList()
+                aggregateSlots.containsKey(expression) -> listOf(aggregateSlots[expression]!!)
+                expression is Identifier -> listOf(slotOf(expression).takeIf { it >= 0 }
+                    ?: throw RuntimeException("No such column named $expression"))
+                else -> throw RuntimeException("Unsupported select expression ${textOf(expression)}")
+            }
+            for (slot in slots) {
+                projectIndexes.add(slot)
+                projectColumns.add(Column(alias ?: columns[slot].name))
+            }
+        }
+        result = orderBy(node.order, node.selectExprList, result, sortLimitOf(node))
+        aggregateSlots.clear()
 
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+        return ProjectOperator(result, projectIndexes.toIntArray(), projectColumns)
     }
+
+    /**
+     * 按 ORDER BY 排序
+     * 排序键在当前作用域中绑定；查询列表的别名和序号（如 ORDER BY 2）先换成查询列表中对应的表达式，
+     * 没有查询列表时序号指当前作用域中的列
+     * @param selectExprList 查询列表，为 null 时排序键只能引用当前作用域中的列
+     * @param limit 排序之后的 LIMIT，只需要前若干行时排序算子只保留这么多行
+     */
+    private fun orderBy(order: OrderBy?, selectExprList: List<miniDB.parser.util.Pair<Expression, String>>?, input: Operator, limit: Limit?): Operator {
+        order ?: return input
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("* order by")
+
+        val keys = ArrayList<Evaluator>()
+        val descending = BooleanArray(order.orderByList.size)
+        order.orderByList.forEachIndexed { index, item ->
+            val expression = item.key
+            keys.add(if (expression is LiteralNumber) {
+                val position = expression.number.toInt() - 1
+                if (selectExprList != null) {
+                    val selected = selectExprList.getOrNull(position)?.key
+                    if (selected == null || selected is Wildcard) {
+                        throw RuntimeException("Unknown column '${expression.number}' in 'order clause'")
+                    }
+                    operandOf(selected)
+                } else {
+                    scope.getOrNull(position)?.let { ExpressionCompiler.column(position, it) }
+                        ?: throw RuntimeException("Unknown column '${expression.number}' in 'order clause'")
+                }
+            } else {
+                val aliased = if (expression is Identifier && expression.parent == null) {
+                    selectExprList?.firstOrNull { it.value != null && it.value.equals(expression.idText, true) }?.key
+                } else {
+                    null
+                }
+                operandOf(aliased ?: expression)
+            })
+            descending[index] = item.value == SortOrder.DESC
+        }
+
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+        return SortOperator(input, keys, descending, limitOf(limit)?.let { (offset, size) ->
+            if (size == Long.MAX_VALUE) -1 else offset + size
+        } ?: -1)
+    }
+
+    private fun isDistinct(node: DMLSelectStatement): Boolean =
+        node.option.resultDup != DMLSelectStatement.SelectDuplicationStrategy.ALL
+
+    /**
+     * 排序时可以只保留的行数对应的 LIMIT，DISTINCT 要在排序之后去重，排序时不能只保留前几行
+     */
+    private fun sortLimitOf(node: DMLSelectStatement): Limit? = if (isDistinct(node)) null else node.limit
+
+    /**
+     * 按 LIMIT 截取结果，没有 LIMIT 时原样返回
+     */
+    private fun limit(input: Operator, limit: Limit?): Operator =
+        limitOf(limit)?.let { (offset, size) -> LimitOperator(input, offset, size) } ?: input
+
+    /**
+     * LIMIT 的偏移量和行数
+     */
+    private fun limitOf(limit: Limit?): Pair<Long, Long>? =
+        limit?.let {
+            Pair((it.offset as? Number)?.toLong() ?: 0, (it.size as? Number)?.toLong() ?: Long.MAX_VALUE)
+        }
+
+    /**
+     * 收集表达式中出现的聚合函数，聚合函数的参数中不再查找
+     */
+    private fun aggregatesOf(expression: Expression?, into: MutableList<FunctionExpression>) {
+        if (expression is FunctionExpression && isAggregate(expression)) {
+            into.add(expression)
+        } else {
+            expression?.let { childrenOf(it) }?.forEach { aggregatesOf(it, into) }
+        }
+    }
+
+    private fun isAggregate(function: FunctionExpression): Boolean =
+        when (function) {
+            is Count, is Sum, is Avg, is Max, is Min, is GroupConcat,
+            is Std, is Stddev, is StddevPop, is StddevSamp, is Variance, is VarPop, is VarSamp,
+            is BitAnd, is BitOr, is BitXor -> true
+            else -> false
+        }
+
+    /**
+     * 把聚合函数编译成聚合器，参数按当前作用域（聚合之前的列）绑定
+     */
+    private fun aggregatorOf(function: FunctionExpression): Aggregator {
+        val arguments = function.arguments.filter { it !is Wildcard }.map { operandOf(it) }
+        return when (function) {
+            // COUNT(*) 和 COUNT(1) 一样只需要数行数
+            is Count -> CountAggregator(
+                if (function.isDistinct || arguments.any { it !is ConstantEvaluator || it.value == null }) arguments else emptyList(),
+                function.isDistinct
+            )
+            is Sum -> SumAggregator(arguments, function.isDistinct)
+            is Avg -> AvgAggregator(arguments, function.isDistinct)
+            is Max -> ExtremeAggregator(arguments, function.isDistinct, true)
+            is Min -> ExtremeAggregator(arguments, function.isDistinct, false)
+            is Std, is Stddev, is StddevPop -> VarianceAggregator(arguments, false, sample = false, root = true)
+            is StddevSamp -> VarianceAggregator(arguments, false, sample = true, root = true)
+            is Variance, is VarPop -> VarianceAggregator(arguments, false, sample = false, root = false)
+            is VarSamp -> VarianceAggregator(arguments, false, sample = true, root = false)
+            is BitAnd -> BitAggregator(arguments, BitAggregator.BitOp.AND)
+            is BitOr -> BitAggregator(arguments, BitAggregator.BitOp.OR)
+            is BitXor -> BitAggregator(arguments, BitAggregator.BitOp.XOR)
+            is GroupConcat -> GroupConcatAggregator(
+                arguments,
+                function.isDistinct,
+                (listOfNotNull(function.orderBy) + function.appendedColumnNames).map { operandOf(it) },
+                function.isDesc,
+                function.separator
+            )
+            else -> throw RuntimeException("Unsupported aggregate function ${function.functionName}")
+        }
+    }
+
+    /**
+     * 按值类型创建结果列，使之后的表达式能选用对应类型的求值器
+     */
+    private fun columnOf(name: String, type: ValueType): Column =
+        when (type) {
+            ValueType.LONG -> Column(name, DataTypeName.BIGINT)
+            ValueType.DOUBLE -> Column(name, DataTypeName.DOUBLE)
+            ValueType.STRING -> Column(name, DataTypeName.VARCHAR)
+            else -> Column(name)
+        }
+
+    /**
+     * 表达式的 SQL 文本，用作没有别名的结果列的列名
+     */
+    private fun textOf(expression: Expression): String =
+        StringBuilder().also { expression.accept(OutputVisitor(it)) }.toString()
+
     override fun visit(node: TableReferences) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("* tables")
-        var relation: Relation? = null
+        var relation: Operator? = null
         for (tableReference in node.tableReferenceList) {
             tableReference.accept(this)
             relation = if(relation == null) {
-                stack.pop() as Relation
+                stack.pop() as Operator
             } else {
-                relation.outerJoin(stack.pop() as Relation, true, Predicate { true })
+                NestedLoopJoinOperator(relation, stack.pop() as Operator, JoinType.INNER, JoinOperator.ALWAYS)
             }
         }
         stack.push(relation)
@@ -105,18 +463,14 @@ open class SelectStatementVisitor: Visitor() {
         rootNode = SimpleTreeNode("InnerJoin")
 
         node.leftTableRef.accept(this)
-        val leftTable = stack.pop() as Relation
+        val leftTable = stack.pop() as Operator
         leftTable.alias?.let { run { selectedRelation[it] = leftTable }}
 
         node.rightTableRef.accept(this)
-        val rightTable = stack.pop() as Relation
+        val rightTable = stack.pop() as Operator
         rightTable.alias?.let { run { selectedRelation[it] = rightTable }}
 
-//        stack.push(node)  // Pass innerJoin parameters.
-        node.onCond.accept(this)
-        val cond = stack.pop() as Predicate<NTuple>
-
-        val result = leftTable.innerJoin(rightTable, cond)
+        val result = join(leftTable, rightTable, conjunctsOf(node.onCond), JoinType.INNER)
         stack.push(result)
 
         parentNode.addChild(rootNode)
@@ -133,24 +487,20 @@ open class SelectStatementVisitor: Visitor() {
 
         // 访问左表
         node.leftTableRef.accept(this)
-        // 得到左表对象
-        val leftTable = stack.pop() as Relation
+        // 得到左表算子
+        val leftTable = stack.pop() as Operator
         // 保存别名
         leftTable.alias?.let { run { selectedRelation[it] = leftTable }}
 
         // 访问右表
         node.rightTableRef.accept(this)
-        // 得到右表对象
-        val rightTable = stack.pop() as Relation
+        // 得到右表算子
+        val rightTable = stack.pop() as Operator
         // 保存别名
         rightTable.alias?.let { run { selectedRelation[it] = rightTable }}
 
-        // 访问条件
-        node.onCond.accept(this)
-        // 得到条件 Predicate
-        val cond = stack.pop() as Predicate<NTuple>
-        // 对左表进行外连接操作
-        val result = leftTable.outerJoin(rightTable, node.isLeftJoin, cond)
+        // 根据条件对左表进行外连接操作
+        val result = join(leftTable, rightTable, conjunctsOf(node.onCond), if (node.isLeftJoin) JoinType.LEFT else JoinType.RIGHT)
         node.alias?.let {
             run {
             selectedRelation[it.idText] = result
@@ -162,13 +512,671 @@ open class SelectStatementVisitor: Visitor() {
         rootNode = parentNode
     }
 
+    /**
+     * FROM 子句中参与连接顺序选择的一个关系
+     * @param outer 是否是外连接中补 NULL 的一侧
+     * @param onCond 作为外连接补 NULL 的一侧时，外连接 ON 条件的合取项
+     */
+    private class JoinLeaf(var operator: Operator, var outer: Boolean, var onCond: List<Expression>) {
+        /**
+         * 连接之后才读取的列，没有则为 null
+         */
+        var late: LateColumns? = null
+    }
+
+    /**
+     * 一个关系中延迟到连接之后按行号读取的列
+     * @param columns 读取之后这个关系输出的列
+     * @param slots 每一列在表扫描输出中的下标，延迟读取的列是行号所在的下标
+     * @param fields 延迟读取的列在快照中的列下标，其余为 [TableSnapshot.ROW_ID]
+     */
+    private class LateColumns(val snapshot: TableSnapshot, val columns: List<Column>, val slots: IntArray, val fields: IntArray)
+
+    /**
+     * 收集查询中引用的列，用来裁剪表扫描输出的列
+     * @return 有通配符或者无法分析的表达式时返回 null，表示需要全部的列
+     */
+    private fun referencedColumns(
+        node: DMLSelectStatement,
+        where: Expression?,
+        subqueries: List<Expression>,
+        leaves: List<JoinLeaf>,
+        conjuncts: List<Expression>
+    ): List<Identifier>? {
+        val expressions = ArrayList<Expression>()
+        node.selectExprList.mapTo(expressions) { it.key }
+        where?.let { expressions.add(it) }
+        node.having?.let { expressions.add(it) }
+        node.group?.orderByList?.mapTo(expressions) { it.key }
+        node.order?.orderByList?.mapTo(expressions) { it.key }
+        expressions.addAll(conjuncts)
+        leaves.flatMapTo(expressions) { it.onCond }
+        val identifiers = ArrayList<Identifier>()
+        // 子查询中的列名不区分内外层，全部保留，多保留的列不影响结果
+        subqueries.forEach { subquery ->
+            subquery.accept(object : Visitor() {
+                override fun visit(node: Identifier) {
+                    identifiers.add(node)
+                }
+            })
+        }
+        return identifiers.takeIf { expressions.all { columnsOf(it, identifiers) } }
+    }
+
+    /**
+     * 把表扫描换成只输出 [needed] 引用到的列的扫描，其它算子保持不变
+     * 给出 [early] 时，不被其中的列引用的宽列（字符串等非定长的列）改为输出行号，
+     * 在过滤和连接完成之后再读取，被过滤掉的行不必取出这些值
+     * @param early 过滤和连接中用到的列，为 null 时不延迟读取
+     */
+    private fun prune(leaf: JoinLeaf, needed: List<Identifier>, early: List<Identifier>?) {
+        val scan = leaf.operator as? TableScanOperator ?: return
+        val columns = scan.columns
+        val refers = { column: Column, identifiers: List<Identifier> ->
+            // 查询列表按 Identifier.equals 匹配列，比绑定时宽松，两种都算作引用
+            identifiers.any { Relation.matches(column, it) || column.identifier == it }
+        }
+        val kept = columns.indices.filter { refers(columns[it], needed) }
+        val late = early?.let { kept.filter { index -> isWide(columns[index]) && !refers(columns[index], it) } } ?: emptyList()
+        if (kept.size == columns.size && late.isEmpty()) {
+            return
+        }
+        val scanned = kept.filter { it !in late }
+        val scanColumns = scanned.map { columns[it] }.toMutableList()
+        val fields = scanned.map { scan.fields[it] }.toMutableList()
+        if (late.isNotEmpty()) {
+            val rowId = scanColumns.size
+            scanColumns.add(Column(Identifier(scan.alias?.let { Identifier(null, it) }, ROW_ID_COLUMN)))
+            fields.add(TableSnapshot.ROW_ID)
+            leaf.late = LateColumns(
+                scan.snapshot,
+                kept.map { columns[it] },
+                kept.map { if (it in late) rowId else scanned.indexOf(it) }.toIntArray(),
+                kept.map { if (it in late) scan.fields[it] else TableSnapshot.ROW_ID }.toIntArray()
+            )
+        }
+        leaf.operator = TableScanOperator(scan.snapshot, scanColumns, fields.toIntArray()).also { it.alias = scan.alias }
+    }
+
+    /**
+     * 去掉恒真的条件；WHERE 或内连接条件中有恒假的合取项时结果为空，各关系都换成没有行的输入，不再扫描。
+     * 外连接 ON 条件中恒假的合取项只让补 NULL 的一侧没有匹配的行
+     * @param conjuncts WHERE 和内连接 ON 条件的合取项
+     */
+    private fun simplify(leaves: List<JoinLeaf>, conjuncts: MutableList<Expression>) {
+        val truths = conjuncts.map { constantTruthOf(it) }
+        val kept = conjuncts.filterIndexed { index, _ -> truths[index] != true }
+        conjuncts.clear()
+        conjuncts.addAll(kept)
+        val empty = false in truths
+        for (leaf in leaves) {
+            val onTruths = leaf.onCond.map { constantTruthOf(it) }
+            leaf.onCond = leaf.onCond.filterIndexed { index, _ -> onTruths[index] != true }
+            if (empty || (leaf.outer && false in onTruths)) {
+                leaf.operator = emptyOf(leaf.operator)
+            }
+        }
+    }
+
+    /**
+     * 不引用任何列的条件在计划阶段就能求出的真值，结果为 NULL 时视为不成立；不是常量条件时返回 null
+     */
+    private fun constantTruthOf(expression: Expression): Boolean? {
+        val identifiers = ArrayList<Identifier>()
+        val aggregates = ArrayList<FunctionExpression>()
+        aggregatesOf(expression, aggregates)
+        if (!columnsOf(expression, identifiers) || identifiers.isNotEmpty() || aggregates.isNotEmpty()) {
+            return null
+        }
+        val cond = operandOf(expression) as? ConstantEvaluator ?: return null
+        return ExpressionCompiler.isTrue(cond.value)
+    }
+
+    /**
+     * 输出的列与 [operator] 相同但没有行的输入
+     */
+    private fun emptyOf(operator: Operator): Operator =
+        ScanOperator(Relation(operator.columns, mutableListOf())).also { it.alias = operator.alias }
+
+    private fun isWide(column: Column): Boolean =
+        when (ValueType.of(column.dataType)) {
+            ValueType.LONG, ValueType.DOUBLE, ValueType.BOOLEAN -> false
+            else -> true
+        }
+
+    /**
+     * 把 FROM 子句展开成参与连接的关系和内连接条件
+     * 逗号连接和内连接的两侧都继续展开；外连接只展开保留的一侧，补 NULL 的一侧整体作为一个关系。
+     * 其余的表引用直接生成算子，作为一个关系
+     * @param conjuncts 收集内连接 ON 条件的合取项
+     */
+    private fun flatten(tableReference: TableReference, leaves: MutableList<JoinLeaf>, conjuncts: MutableList<Expression>) {
+        when {
+            tableReference is TableReferences -> tableReference.tableReferenceList.forEach { flatten(it, leaves, conjuncts) }
+            tableReference is InnerJoin && tableReference.using.isNullOrEmpty() -> {
+                val parentNode = rootNode
+                rootNode = SimpleTreeNode("InnerJoin")
+                flatten(tableReference.leftTableRef, leaves, conjuncts)
+                flatten(tableReference.rightTableRef, leaves, conjuncts)
+                conjuncts.addAll(conjunctsOf(tableReference.onCond))
+                parentNode.addChild(rootNode)
+                rootNode = parentNode
+            }
+            tableReference is OuterJoin && tableReference.using.isNullOrEmpty() && tableReference.alias == null -> {
+                val parentNode = rootNode
+                rootNode = SimpleTreeNode("OuterJoin(leftJoin=${tableReference.isLeftJoin})")
+                val onCond = conjunctsOf(tableReference.onCond)
+                if (tableReference.isLeftJoin) {
+                    flatten(tableReference.leftTableRef, leaves, conjuncts)
+                    leaves.add(JoinLeaf(operatorOf(tableReference.rightTableRef), true, onCond))
+                } else {
+                    leaves.add(JoinLeaf(operatorOf(tableReference.leftTableRef), true, onCond))
+                    flatten(tableReference.rightTableRef, leaves, conjuncts)
+                }
+                parentNode.addChild(rootNode)
+                rootNode = parentNode
+            }
+            else -> leaves.add(JoinLeaf(operatorOf(tableReference), false, emptyList()))
+        }
+    }
+
+    private fun operatorOf(tableReference: TableReference): Operator {
+        tableReference.accept(this)
+        return (stack.pop() as Operator).also { operator -> operator.alias?.let { selectedRelation[it] = operator } }
+    }
+
+    /**
+     * 按估计代价选择连接顺序，生成连接树并下推条件
+     * WHERE 和内连接中的条件若在某个外连接补 NULL 的一侧全为 NULL 时不成立，这个外连接等价于内连接，
+     * 先改为内连接再参与排序；其余外连接在 ON 条件引用的关系都连接之后才加入。
+     * 输出的列仍按 FROM 子句中书写的顺序排列。
+     * 各表扫描只输出查询引用到的列，只在结果中用到的宽列在连接完成之后才按行号读取
+     * @param conjuncts WHERE 和内连接 ON 条件的合取项
+     * @param needed 查询引用的列，为 null 时不裁剪
+     */
+    private fun joinTree(leaves: List<JoinLeaf>, conjuncts: MutableList<Expression>, needed: List<Identifier>?): Operator {
+        needed?.let {
+            val early = ArrayList<Identifier>()
+            conjuncts.forEach { conjunct -> columnsOf(conjunct, early) }
+            leaves.forEach { leaf -> leaf.onCond.forEach { conjunct -> columnsOf(conjunct, early) } }
+            leaves.forEach { leaf -> prune(leaf, it, early) }
+        }
+        val columns = leaves.map { leaf -> leaf.operator.columns.map { column -> leaf.operator.alias?.let { column.qualified(it) } ?: column } }
+        val offsets = IntArray(leaves.size)
+        for (index in 1 until leaves.size) {
+            offsets[index] = offsets[index - 1] + columns[index - 1].size
+        }
+        val scope = columns.flatten()
+        val leafOf = { identifier: Identifier ->
+            val slot = scope.indexOfFirst { Relation.matches(it, identifier) }
+            if (slot < 0) -1 else offsets.indexOfLast { it <= slot }
+        }
+        val relationsOf = { expression: Expression ->
+            val identifiers = ArrayList<Identifier>()
+            if (columnsOf(expression, identifiers)) {
+                identifiers.fold(0L) { relations, identifier ->
+                    val leaf = leafOf(identifier)
+                    if (leaf < 0 || relations < 0) -1L else relations or (1L shl leaf)
+                }
+            } else {
+                -1L
+            }
+        }
+
+        var changed = true
+        while (changed) {
+            changed = false
+            for ((index, leaf) in leaves.withIndex()) {
+                if (leaf.outer && conjuncts.any { conjunct -> PredicateAnalysis.rejectsNull(conjunct) { leafOf(it) == index } }) {
+                    leaf.outer = false
+                    conjuncts.addAll(leaf.onCond)
+                    changed = true
+                }
+            }
+        }
+
+        val order = if (leaves.size > JoinEnumerator.MAX_RELATIONS) {
+            IntArray(leaves.size) { it }
+        } else {
+            val base = DoubleArray(leaves.size) { leaves[it].operator.estimatedRows().toDouble() }
+            val rowsOf = { expression: Expression ->
+                (expression as? Identifier)?.let { leafOf(it) }?.takeIf { it >= 0 }?.let { base[it] }
+            }
+            val rows = base.copyOf()
+            val predicates = ArrayList<JoinPredicate>()
+            val required = LongArray(leaves.size)
+            for (conjunct in conjuncts) {
+                val relations = relationsOf(conjunct)
+                val selectivity = PredicateAnalysis.selectivityOf(conjunct, rowsOf)
+                if (relations > 0 && relations.countOneBits() == 1 && !leaves[relations.countTrailingZeroBits()].outer) {
+                    // 只涉及一个关系的条件会下推到它的扫描上
+                    rows[relations.countTrailingZeroBits()] *= selectivity
+                } else if (relations > 0) {
+                    predicates.add(JoinPredicate(relations, selectivity))
+                }
+            }
+            for ((index, leaf) in leaves.withIndex()) {
+                if (!leaf.outer) {
+                    continue
+                }
+                for (conjunct in leaf.onCond) {
+                    // 无法分析的 ON 条件要求之前书写的关系都已连接，保持外连接原来的位置
+                    val relations = relationsOf(conjunct).takeIf { it >= 0 } ?: ((1L shl index) - 1)
+                    required[index] = required[index] or relations
+                    predicates.add(JoinPredicate(relations or (1L shl index), PredicateAnalysis.selectivityOf(conjunct, rowsOf)))
+                }
+                required[index] = required[index] and (1L shl index).inv()
+            }
+            JoinEnumerator(rows, predicates, required, BooleanArray(leaves.size) { leaves[it].outer }).order()
+        }
+
+        var result = leaves[order[0]].operator
+        for (index in 1 until order.size) {
+            val leaf = leaves[order[index]]
+            result = if (leaf.outer) {
+                join(result, leaf.operator, leaf.onCond, JoinType.LEFT)
+            } else {
+                NestedLoopJoinOperator(result, leaf.operator, JoinType.INNER, JoinOperator.ALWAYS)
+            }
+        }
+        result = pushDown(result, conjuncts)
+        val late = leaves.any { it.late != null }
+        if (!late && order.withIndex().all { it.index == it.value }) {
+            return result
+        }
+        // 恢复 FROM 子句中的列顺序
+        val positions = IntArray(leaves.size)
+        var position = 0
+        for (leaf in order) {
+            positions[leaf] = position
+            position += columns[leaf].size
+        }
+        if (!late) {
+            val indexes = leaves.indices.flatMap { leaf -> columns[leaf].indices.map { positions[leaf] + it } }.toIntArray()
+            return ProjectOperator(result, indexes, scope.toMutableList())
+        }
+        val indexes = ArrayList<Int>()
+        val snapshots = ArrayList<TableSnapshot?>()
+        val fields = ArrayList<Int>()
+        val outputColumns = ArrayList<Column>()
+        for ((index, leaf) in leaves.withIndex()) {
+            val lateColumns = leaf.late
+            if (lateColumns == null) {
+                columns[index].indices.mapTo(indexes) { positions[index] + it }
+                repeat(columns[index].size) {
+                    snapshots.add(null)
+                    fields.add(TableSnapshot.ROW_ID)
+                }
+                outputColumns.addAll(columns[index])
+                continue
+            }
+            for (column in lateColumns.columns.indices) {
+                val field = lateColumns.fields[column]
+                indexes.add(positions[index] + lateColumns.slots[column])
+                snapshots.add(if (field == TableSnapshot.ROW_ID) null else lateColumns.snapshot)
+                fields.add(field)
+            }
+            outputColumns.addAll(lateColumns.columns)
+        }
+        return LateMaterializeOperator(result, indexes.toIntArray(), snapshots.toTypedArray(), fields.toIntArray(), outputColumns)
+    }
+
+    /**
+     * 根据连接条件选择连接算法
+     * ON 条件中含有左右两表列之间的等值比较时使用等值连接（哈希连接、归并连接，右表是大表时按索引查找），其余条件作为剩余条件在匹配后检查；
+     * 不含等值比较时退回嵌套循环连接
+     */
+    private fun join(leftTable: Operator, rightTable: Operator, onCond: List<Expression>, joinType: JoinType): Operator {
+        val leftKeys = ArrayList<Int>()
+        val rightKeys = ArrayList<Int>()
+        val residual = ArrayList<Evaluator>()
+        scope = JoinOperator.joinedColumns(leftTable, rightTable)
+        for (conjunct in onCond) {
+            val cond = operandOf(conjunct)
+            val keys = equiJoinKeys(conjunct, leftTable, rightTable)
+            if (keys != null) {
+                leftKeys.add(keys.first)
+                rightKeys.add(keys.second)
+            } else {
+                residual.add(cond)
+            }
+        }
+        if (leftKeys.isEmpty()) {
+            return NestedLoopJoinOperator(leftTable, rightTable, joinType, if (residual.isEmpty()) JoinOperator.ALWAYS else ExpressionCompiler.and(residual))
+        }
+        return IndexNestedLoopJoinOperator.of(
+            leftTable, rightTable, rightTable as? TableScanOperator, null,
+            leftKeys.toIntArray(), rightKeys.toIntArray(), joinType, if (residual.isEmpty()) null else ExpressionCompiler.and(residual)
+        )
+    }
+
+    /**
+     * 是否是可以改写成半连接的子查询条件：
+     * [NOT] EXISTS (...)、x [NOT] IN (...)、x = ANY (...)、x <> ALL (...)，以及它们前面加上 NOT
+     */
+    private fun isSubqueryPredicate(expression: Expression): Boolean =
+        when (expression) {
+            is LogicalNotExpression -> isSubqueryPredicate(expression.operand)
+            is ExistsPrimary -> true
+            is InExpression -> expression.queryExpression != null
+            is ComparisionEqualsExpression -> expression.rightOprand is SubqueryAnyExpression
+            is ComparisionNotEqualsExpression, is ComparisionLessOrGreaterThanExpression ->
+                (expression as BinaryOperatorExpression).rightOprand is SubqueryAllExpression
+            else -> false
+        }
+
+    /**
+     * 用 AND 连接合取项，没有合取项时返回 null
+     */
+    private fun andOf(conjuncts: List<Expression>): Expression? =
+        when (conjuncts.size) {
+            0 -> null
+            1 -> conjuncts[0]
+            else -> LogicalAndExpression().also { and -> conjuncts.forEach { and.appendOperand(it) } }
+        }
+
+    /**
+     * 子查询改写成半连接时的右侧
+     * @param operator 子查询的算子，只输出满足子查询自身条件的行
+     * @param keys 在子查询的行上求值的连接键：先是各个关联条件中子查询的一侧，IN 的最后再加上子查询输出的值
+     * @param outerKeys 关联条件中外层查询的一侧，与 keys 的前几个一一对应
+     */
+    private class Subquery(val operator: Operator, val keys: List<Evaluator>, val outerKeys: List<Expression>)
+
+    /**
+     * 把 WHERE 中的一个子查询条件改写成哈希半连接或反连接，外层的每一行不再重新执行子查询
+     * NOT IN 和 <> ALL 生成按三值逻辑处理 NULL 的反连接；NOT EXISTS 生成普通的反连接
+     * @param input FROM 子句和其余条件过滤后的算子
+     */
+    private fun semiJoin(input: Operator, expression: Expression): Operator {
+        var predicate = expression
+        var not = false
+        while (predicate is LogicalNotExpression) {
+            predicate = predicate.operand
+            not = !not
+        }
+        val (operand, query) = when (predicate) {
+            is ExistsPrimary -> Pair(null, predicate.subquery)
+            is InExpression -> {
+                not = not != predicate.isNot
+                Pair(predicate.leftOprand, predicate.queryExpression)
+            }
+            is ComparisionEqualsExpression -> Pair(predicate.leftOprand, (predicate.rightOprand as SubqueryAnyExpression).operand)
+            else -> {
+                // x <> ALL (...) 即 x NOT IN (...)
+                not = !not
+                val comparison = predicate as BinaryOperatorExpression
+                Pair(comparison.leftOprand, (comparison.rightOprand as SubqueryAllExpression).operand)
+            }
+        }
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("SemiJoin(anti=$not)")
+        val visitor = SelectStatementVisitor()
+        visitor.parameters = parameters
+        val subquery = visitor.subqueryOf(query as QueryExpression, input.columns, operand != null)
+        reads.addAll(visitor.reads)
+        rootNode.addChild(visitor.rootNode)
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+
+        scope = input.columns
+        val leftKeys = (subquery.outerKeys + listOfNotNull(operand)).map { operandOf(it) }
+        return HashSemiJoinOperator(
+            input, subquery.operator, leftKeys.toTypedArray(), subquery.keys.toTypedArray(), not, not && operand != null
+        )
+    }
+
+    /**
+     * 在子查询自己的访问器中生成子查询的算子
+     * 子查询的 WHERE 中引用了外层列的合取项必须是“子查询中的表达式 = 外层的列”，作为关联条件并入连接键，
+     * 其余合取项照常下推到子查询的 FROM 子句中。
+     * 带 GROUP BY、HAVING、聚合函数或 UNION 的子查询按原样执行，不能引用外层的列
+     * @param outer 外层查询的列
+     * @param value 是否需要子查询输出的值，即 IN 和 ANY、ALL；EXISTS 不需要
+     */
+    private fun subqueryOf(query: QueryExpression, outer: List<Column>, value: Boolean): Subquery {
+        val statement = query as? DMLSelectStatement
+        val tables = statement?.tables
+        val aggregates = ArrayList<FunctionExpression>()
+        statement?.selectExprList?.forEach { aggregatesOf(it.key, aggregates) }
+        // EXISTS 子查询的 LIMIT 只要不跳过行、至少保留一行就不影响结果
+        val limit = limitOf(statement?.limit)
+        val limited = limit != null && (value || limit.first != 0L || limit.second <= 0)
+        if (statement == null || tables == null || statement.group != null || statement.having != null ||
+            aggregates.isNotEmpty() || limited || (value && statement.selectExprList.size != 1)) {
+            query.accept(this)
+            val operator = stack.pop() as Operator
+            if (value && operator.columns.size != 1) {
+                throw RuntimeException("Operand should contain 1 column(s)")
+            }
+            return Subquery(operator, if (value) listOf(ExpressionCompiler.column(0, operator.columns[0])) else emptyList(), emptyList())
+        }
+
+        val leaves = ArrayList<JoinLeaf>()
+        val conjuncts = ArrayList<Expression>()
+        flatten(tables, leaves, conjuncts)
+        val columns = leaves.flatMap { leaf -> leaf.operator.columns.map { column -> leaf.operator.alias?.let { column.qualified(it) } ?: column } }
+        // 列名优先在子查询的 FROM 子句中解析，解析不到而外层有这一列时才引用外层
+        val isOuter = { identifier: Identifier ->
+            columns.none { Relation.matches(it, identifier) } && outer.any { Relation.matches(it, identifier) }
+        }
+        val innerKeys = ArrayList<Expression>()
+        val outerKeys = ArrayList<Expression>()
+        for (conjunct in conjunctsOf(statement.where)) {
+            val identifiers = ArrayList<Identifier>()
+            if (!columnsOf(conjunct, identifiers) || identifiers.none(isOuter)) {
+                conjuncts.add(conjunct)
+                continue
+            }
+            val sides = (conjunct as? ComparisionEqualsExpression)?.let { listOf(it.leftOprand, it.rightOprand) }
+            val correlated = sides?.indices?.firstOrNull { index ->
+                val inner = ArrayList<Identifier>()
+                val other = sides[1 - index]
+                other is Identifier && isOuter(other) && columnsOf(sides[index], inner) && inner.none(isOuter)
+            } ?: throw RuntimeException("Unsupported correlated subquery condition ${textOf(conjunct)}")
+            innerKeys.add(sides[correlated])
+            outerKeys.add(sides[1 - correlated])
+        }
+        val operator = if (leaves.size == 1) {
+            pushDown(leaves[0].operator, conjuncts)
+        } else {
+            simplify(leaves, conjuncts)
+            joinTree(leaves, conjuncts, null)
+        }
+        scope = operator.columns
+        val values = if (value) listOf(statement.selectExprList[0].key) else emptyList()
+        return Subquery(operator, (innerKeys + values).map { operandOf(it) }, outerKeys)
+    }
+
+    /**
+     * WHERE 条件中的一个合取项
+     * @param slots 引用的各列在当前算子输出中的下标，无法确定时为 null
+     */
+    private class Conjunct(val expression: Expression, val slots: IntArray?)
+
+    /**
+     * 把条件的合取项逐个下推到连接树中能提供其全部列的最低一层算子之上
+     * 列名按整个连接树的列解析，下推不会改变列名绑定到的列
+     */
+    private fun pushDown(source: Operator, where: List<Expression>): Operator {
+        val columns = source.columns
+        val conjuncts = where.map { conjunct ->
+            val identifiers = ArrayList<Identifier>()
+            val slots = if (columnsOf(conjunct, identifiers)) {
+                identifiers.map { identifier -> columns.indexOfFirst { Relation.matches(it, identifier) } }
+                    .takeIf { slots -> slots.all { it >= 0 } }?.toIntArray()
+            } else {
+                null
+            }
+            Conjunct(conjunct, slots)
+        }
+        bindingScope = columns
+        try {
+            return pushDown(source, conjuncts, 0)
+        } finally {
+            bindingScope = null
+            bindingOffset = 0
+            scope = columns
+        }
+    }
+
+    /**
+     * 把合取项下推到算子中
+     * 只涉及一侧的合取项下推到该侧，但不会推入外连接中补 NULL 的一侧；
+     * 内连接两侧列之间的等值比较并入连接键，其余留在本层过滤
+     * @param offset 算子的第一列在整个 FROM 子句中的下标
+     */
+    private fun pushDown(operator: Operator, conjuncts: List<Conjunct>, offset: Int): Operator {
+        if (conjuncts.isEmpty()) {
+            return operator
+        }
+        if (operator !is JoinOperator) {
+            return filter(operator, conjuncts, offset)
+        }
+        val width = operator.left.columns.size
+        val toLeft = ArrayList<Conjunct>()
+        val toRight = ArrayList<Conjunct>()
+        val remaining = ArrayList<Conjunct>()
+        val leftKeys = ArrayList<Int>()
+        val rightKeys = ArrayList<Int>()
+        for (conjunct in conjuncts) {
+            val slots = conjunct.slots
+            when {
+                slots == null -> remaining.add(conjunct)
+                slots.all { it < width } && operator.joinType != JoinType.RIGHT -> toLeft.add(conjunct)
+                slots.all { it >= width } && operator.joinType != JoinType.LEFT ->
+                    toRight.add(Conjunct(conjunct.expression, IntArray(slots.size) { slots[it] - width }))
+                operator.joinType == JoinType.INNER && conjunct.expression is ComparisionEqualsExpression &&
+                    conjunct.expression.leftOprand is Identifier && conjunct.expression.rightOprand is Identifier &&
+                    slots.size == 2 && (slots[0] < width) != (slots[1] < width) &&
+                    keyCompatible(operator.columns[slots[0]], operator.columns[slots[1]]) -> {
+                    leftKeys.add(minOf(slots[0], slots[1]))
+                    rightKeys.add(maxOf(slots[0], slots[1]) - width)
+                }
+                else -> remaining.add(conjunct)
+            }
+        }
+        val left = pushDown(operator.left, toLeft, offset)
+        val right = pushDown(operator.right, toRight, offset + width)
+        val scan = operator.right as? TableScanOperator
+        val joined = when {
+            leftKeys.isNotEmpty() && scan != null -> {
+                // 右侧是表扫描时，下推到它上面的条件另外编译一份，供查索引取出的行使用
+                val filter = if (toRight.isEmpty()) null else {
+                    scope = scan.columns
+                    bindingOffset = offset + width
+                    ExpressionCompiler.and(toRight.map { operandOf(it.expression) })
+                }
+                operator.withIndexKeys(left, right, scan, filter, leftKeys.toIntArray(), rightKeys.toIntArray())
+            }
+            leftKeys.isNotEmpty() -> operator.withEquiKeys(left, right, leftKeys.toIntArray(), rightKeys.toIntArray())
+            left !== operator.left || right !== operator.right -> operator.withChildren(left, right)
+            else -> operator
+        }
+        joined.alias = operator.alias
+        return filter(joined, remaining, offset)
+    }
+
+    /**
+     * 在算子之上按合取项过滤，表扫描直接换成带过滤的批量扫描
+     * @param offset 算子的第一列在整个 FROM 子句中的下标
+     */
+    private fun filter(operator: Operator, conjuncts: List<Conjunct>, offset: Int): Operator {
+        if (conjuncts.isEmpty()) {
+            return operator
+        }
+        scope = operator.columns
+        bindingOffset = offset
+        val cond = ExpressionCompiler.and(conjuncts.map { operandOf(it.expression) })
+        val filtered = parallelScanOf(operator, cond, null, operator.columns)
+            ?: batchScanOf(operator)?.let { scan -> BatchToRowOperator(BatchFilterOperator(scan, cond)) }
+            ?: return FilterOperator(operator, cond)
+        return filtered.also { it.alias = operator.alias }
+    }
+
+    /**
+     * 收集表达式引用的列
+     * @return 表达式中有无法分析的部分时返回 false
+     */
+    private fun columnsOf(expression: Expression, into: MutableList<Identifier>): Boolean {
+        if (expression is Identifier) {
+            if (expression is Wildcard) {
+                return false
+            }
+            into.add(expression)
+            return true
+        }
+        val children = childrenOf(expression) ?: return false
+        return children.all { columnsOf(it, into) }
+    }
+
+    /**
+     * 表达式的直接子表达式，不认识的表达式返回 null
+     */
+    private fun childrenOf(expression: Expression): List<Expression>? =
+        when (expression) {
+            is Identifier, is Literal, is ParamMarker -> emptyList()
+            // COUNT(*) 不引用任何列
+            is Count -> expression.arguments.filter { it !is Wildcard }
+            is FunctionExpression -> expression.arguments ?: emptyList()
+            is InExpression -> expression.inExpressionList?.let { listOf(expression.leftOprand) + it.list }
+            is BinaryOperatorExpression -> listOf(expression.leftOprand, expression.rightOprand)
+            is UnaryOperatorExpression -> listOf(expression.operand)
+            is PolyadicOperatorExpression -> (0 until expression.arity).map { expression.getOperand(it) }
+            is TernaryOperatorExpression -> listOf(expression.first, expression.second, expression.third)
+            is ComparisionIsExpression -> listOf(expression.operand)
+            else -> null
+        }
+
+    /**
+     * 把 AND 连接的条件拆分成独立的合取项
+     */
+    private fun conjunctsOf(expression: Expression?): List<Expression> =
+        when (expression) {
+            null -> emptyList()
+            is LogicalAndExpression -> (0 until expression.arity).flatMap { conjunctsOf(expression.getOperand(it)) }
+            else -> listOf(expression)
+        }
+
+    /**
+     * 若条件是左表列与右表列的等值比较，且两列的类型可以按连接键比较，返回 (左表列下标, 右表列下标)
+     */
+    private fun equiJoinKeys(expression: Expression, leftTable: Operator, rightTable: Operator): Pair<Int, Int>? {
+        if (expression !is ComparisionEqualsExpression) {
+            return null
+        }
+        val leftOprand = expression.leftOprand as? Identifier ?: return null
+        val rightOprand = expression.rightOprand as? Identifier ?: return null
+        val leftInLeft = leftTable.indexOf(leftOprand)
+        val leftInRight = rightTable.indexOf(leftOprand)
+        val rightInLeft = leftTable.indexOf(rightOprand)
+        val rightInRight = rightTable.indexOf(rightOprand)
+        val keys = if (leftInLeft >= 0 && leftInRight < 0 && rightInRight >= 0 && rightInLeft < 0) {
+            Pair(leftInLeft, rightInRight)
+        } else if (rightInLeft >= 0 && rightInRight < 0 && leftInRight >= 0 && leftInLeft < 0) {
+            Pair(rightInLeft, leftInRight)
+        } else {
+            return null
+        }
+        return keys.takeIf { keyCompatible(leftTable.columns[it.first], rightTable.columns[it.second]) }
+    }
+
+    /**
+     * 两列之间的等值比较能否作为连接键，不能时留作剩余条件逐行比较，见 [ValueType.keyCompatible]
+     */
+    private fun keyCompatible(left: Column, right: Column): Boolean =
+        ValueType.keyCompatible(ValueType.of(left.dataType), ValueType.of(right.dataType))
+
     override fun visit(node: TableRefFactor) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Table(${node.table.idText}, alias=${node.alias})")
 
         node.table.accept(this)
         stack.pop()
-        val table = Engine[node.table].getRelation(node.alias ?: node.table.idText) ?: throw RuntimeException("ERROR 20001: No such table ${node.table}")
+        val view = Engine[node.table]
+        // 先记下版本再取快照，这之间的修改只会让缓存的结果被当作过期
+        reads.add(Pair(view, (view as? Table)?.version ?: -1L))
+        val table = view.scan(node.alias ?: node.table.idText)
 //        table.alias = node.alias ?: node.table.idText
         table.alias?.let { run { selectedRelation[it] = table }}
         stack.push(table)
@@ -179,17 +1187,8 @@ open class SelectStatementVisitor: Visitor() {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Expression(operator='${node.operator}')")
 
-        var cond: Predicate<NTuple>? = null
-        for (i in 0 until node.arity) {
-            node.getOperand(i).accept(this)
-            val oprand = stack.pop() as Predicate<NTuple>
-            cond = if(cond == null) {
-                oprand
-            } else {
-                cond.and(oprand)
-            }
-        }
-        stack.push(cond)
+        stack.push(ExpressionCompiler.and((0 until node.arity).map { operandOf(node.getOperand(it)) }))
+
         parentNode.addChild(rootNode)
         rootNode = parentNode
     }
@@ -197,58 +1196,78 @@ open class SelectStatementVisitor: Visitor() {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Expression(operator='${node.operator}')")
 
-        var cond: Predicate<NTuple>? = null
-        for (i in 0 until node.arity) {
-            node.getOperand(i).accept(this)
-            val oprand = stack.pop() as Predicate<NTuple>
-            cond = if(cond == null) {
-                oprand
-            } else {
-                cond.or(oprand)
-            }
-        }
-        stack.push(cond)
+        stack.push(ExpressionCompiler.or((0 until node.arity).map { operandOf(node.getOperand(it)) }))
+
         parentNode.addChild(rootNode)
         rootNode = parentNode
     }
 
-    override fun visit(node: ComparisionEqualsExpression) {
+    /**
+     * NOT 与取负
+     */
+    override fun visit(node: UnaryOperatorExpression) {
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("Expression(operator='${node.operator}')")
+
+        val operand = operandOf(node.operand)
+        stack.push(when(node) {
+            is LogicalNotExpression -> ExpressionCompiler.not(operand)
+            is MinusExpression -> ExpressionCompiler.negate(operand)
+            else -> throw RuntimeException("Unsupported operator ${node.operator}")
+        })
+
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+    }
+
+    /**
+     * 算术运算
+     */
+    override fun visit(node: BinaryOperatorExpression) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Expression(operator='${node.operator}', leftCombine=${node.isLeftCombine})")
 
-        // 为了保证访问一致性，都得 visit
-        node.leftOprand.accept(this)
-        val leftIdentifier = when(node.leftOprand) {
-            is Identifier ->
-                stack.pop() as String
-            is FunctionExpression ->
-                stack.pop()
-            else ->
-                node.leftOprand
+        val op = when(node) {
+            is ArithmeticAddExpression -> ArithmeticOp.ADD
+            is ArithmeticSubtractExpression -> ArithmeticOp.SUB
+            is ArithmeticMultiplyExpression -> ArithmeticOp.MUL
+            is ArithmeticDivideExpression -> ArithmeticOp.DIV
+            is ArithmeticIntegerDivideExpression -> ArithmeticOp.INT_DIV
+            is ArithmeticModExpression -> ArithmeticOp.MOD
+            else -> throw RuntimeException("Unsupported operator ${node.operator}")
         }
+        val leftValue = operandOf(node.leftOprand)
+        val rightValue = operandOf(node.rightOprand)
+        stack.push(ExpressionCompiler.arithmetic(op, leftValue, rightValue))
 
-        node.rightOprand.accept(this)
-        val rightIdentifier = when(node.rightOprand) {
-            is Identifier ->
-                stack.pop() as String
-            is FunctionExpression ->
-                stack.pop()
-            else ->
-                node.rightOprand
-        }
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+    }
 
-        stack.push(Predicate<NTuple> { t: NTuple ->
-            val leftValue = if(leftIdentifier is String) {
-                t[node.leftOprand as Identifier]
-            } else {
-                leftIdentifier
-            }
-            val rightValue = if(rightIdentifier is String) {
-                t[node.rightOprand as Identifier]
-            } else {
-                rightIdentifier
-            }
-            leftValue == rightValue
+    override fun visit(node: ComparisionEqualsExpression) = comparison(node, CompareOp.EQ)
+    override fun visit(node: ComparisionNotEqualsExpression) = comparison(node, CompareOp.NE)
+    override fun visit(node: ComparisionLessOrGreaterThanExpression) = comparison(node, CompareOp.NE)
+    override fun visit(node: ComparisionGreaterThanExpression) = comparison(node, CompareOp.GT)
+    override fun visit(node: ComparisionGreaterThanOrEqualsExpression) = comparison(node, CompareOp.GE)
+    override fun visit(node: ComparisionLessThanExpression) = comparison(node, CompareOp.LT)
+    override fun visit(node: ComparisionLessThanOrEqualsExpression) = comparison(node, CompareOp.LE)
+    override fun visit(node: ComparisionNullSafeEqualsExpression) = comparison(node, null)
+
+    /**
+     * 比较运算
+     * @param op 比较运算符，为 null 时表示 NULL 安全的等于
+     */
+    private fun comparison(node: BinaryOperatorExpression, op: CompareOp?) {
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("Expression(operator='${node.operator}', leftCombine=${node.isLeftCombine})")
+
+        // 为了保证访问一致性，都得 visit
+        val leftValue = operandOf(node.leftOprand)
+        val rightValue = operandOf(node.rightOprand)
+        stack.push(if (op == null) {
+            ExpressionCompiler.nullSafeEquals(leftValue, rightValue)
+        } else {
+            ExpressionCompiler.compare(op, leftValue, rightValue)
         })
 
         parentNode.addChild(rootNode)
@@ -257,114 +1276,95 @@ open class SelectStatementVisitor: Visitor() {
     override fun visit(node: ComparisionIsExpression) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Expression(operator='IS', mode=${node.mode})")
-        node.operand.accept(this)
-        val operand = when(node.operand) {
-            is Identifier ->
-                stack.pop() as String
-            else ->
-                node.operand
-        }
+        val operand = operandOf(node.operand)
 
-        stack.push(Predicate<NTuple> { t: NTuple ->
-            val operandVal = if(operand is String) {
-                (t[node.operand as Identifier] as Cell<*>).value
-            } else {
-                operand
-            }
-            operandVal != null
+        stack.push(when(node.mode) {
+            ComparisionIsExpression.IS_NULL, ComparisionIsExpression.IS_UNKNOWN -> ExpressionCompiler.isNull(operand, false)
+            ComparisionIsExpression.IS_NOT_NULL, ComparisionIsExpression.IS_NOT_UNKNOWN -> ExpressionCompiler.isNull(operand, true)
+            ComparisionIsExpression.IS_TRUE -> ExpressionCompiler.isTruth(operand, true, false)
+            ComparisionIsExpression.IS_NOT_TRUE -> ExpressionCompiler.isTruth(operand, true, true)
+            ComparisionIsExpression.IS_FALSE -> ExpressionCompiler.isTruth(operand, false, false)
+            else -> ExpressionCompiler.isTruth(operand, false, true)
         })
 
         parentNode.addChild(rootNode)
         rootNode = parentNode
     }
-    override fun visit(node: ComparisionLessOrGreaterThanExpression) {
+    override fun visit(node: BetweenAndExpression) {
         val parentNode = rootNode
-        rootNode = SimpleTreeNode("Expression(operator='${node.operator}', leftCombine=${node.isLeftCombine})")
+        rootNode = SimpleTreeNode("Expression(operator='${if (node.isNot) "NOT BETWEEN" else "BETWEEN"}')")
 
-        // 为了保证访问一致性，都得 visit
-        node.leftOprand.accept(this)
-        val leftIdentifier = when(node.leftOprand) {
-            is Identifier ->
-                stack.pop() as String
-            else ->
-                node.leftOprand
-        }
-
-        node.rightOprand.accept(this)
-        val rightIdentifier = when(node.rightOprand) {
-            is Identifier ->
-                stack.pop() as String
-            else ->
-                node.rightOprand
-        }
-
-        stack.push(Predicate<NTuple> { t: NTuple ->
-            val leftValue = if(leftIdentifier is String) {
-                (t[node.leftOprand as Identifier] as Cell<*>).value
-            } else {
-                leftIdentifier
-            }
-            val rightValue = if(rightIdentifier is String) {
-                (t[node.rightOprand as Identifier] as Cell<*>).value
-            } else {
-                rightIdentifier
-            }
-
-            leftValue != rightValue
-        })
+        val operand = operandOf(node.first)
+        val low = operandOf(node.second)
+        val high = operandOf(node.third)
+        stack.push(ExpressionCompiler.between(operand, low, high, node.isNot))
 
         parentNode.addChild(rootNode)
         rootNode = parentNode
     }
-    override fun visit(node: ComparisionGreaterThanExpression) {
+    override fun visit(node: InExpression) {
         val parentNode = rootNode
-        rootNode = SimpleTreeNode("Expression(operator='${node.operator}', leftCombine=${node.isLeftCombine})")
+        rootNode = SimpleTreeNode("Expression(operator='${node.operator}')")
 
-        // 为了保证访问一致性，都得 visit
-        node.leftOprand.accept(this)
-        val leftIdentifier = when(node.leftOprand) {
-            is Identifier ->
-                stack.pop() as String
-            else ->
-                node.leftOprand
-        }
+        val operand = operandOf(node.leftOprand)
+        val list = node.inExpressionList ?: throw RuntimeException("Subquery in IN is not supported.")
+        stack.push(ExpressionCompiler.inList(operand, list.list.map { operandOf(it) }, node.isNot))
 
-        node.rightOprand.accept(this)
-        val rightIdentifier = when(node.rightOprand) {
-            is Identifier ->
-                stack.pop() as String
-            else ->
-                node.rightOprand
-        }
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+    }
 
-        stack.push(Predicate<NTuple> { t: NTuple ->
-            val leftValue = if(leftIdentifier is String) {
-                (t[node.leftOprand as Identifier] as Cell<*>).value
-            } else {
-                leftIdentifier
-            }
-            val rightValue = if(rightIdentifier is String) {
-                (t[node.rightOprand as Identifier] as Cell<*>).value
-            } else {
-                rightIdentifier
+    /**
+     * 访问操作数并编译成求值器
+     * 列名在这里一次性解析成 [scope] 中的列下标，并按列的声明类型选择求值器；
+     * 常量则提前转换成对应的值
+     */
+    protected fun operandOf(expression: Expression): Evaluator {
+        aggregateSlots[expression]?.let { return ExpressionCompiler.column(it, scope[it]) }
+        val depth = stack.size
+        expression.accept(this)
+        return when(expression) {
+            is Identifier -> {
+                stack.pop()
+                val slot = slotOf(expression)
+                if (slot < 0) {
+                    // 和之前逐行查找时一样，只有真正读到这一列时才报错
+                    ErrorEvaluator("No such column named $expression")
+                } else {
+                    ExpressionCompiler.column(slot, scope[slot])
+                }
             }
-
-            if(leftValue is LiteralNumber && rightValue is LiteralNumber) {
-                leftValue > rightValue
-            } else if(leftValue is LiteralNumber && rightValue is Cell<*>) {
-                leftValue > rightValue
-            } else if(leftValue is Cell<*> && rightValue is LiteralNumber) {
-                leftValue > rightValue
-            } else if(leftValue is Cell<*> && rightValue is Cell<*>) {
-                leftValue > rightValue
-            } else {
-                throw RuntimeException("Expression cannot be compared.")
+            is LiteralString -> ExpressionCompiler.constant(expression.unescapedString)
+            is LiteralNumber -> ExpressionCompiler.constant(expression.number)
+            is LiteralBoolean -> ExpressionCompiler.constant(expression.isTrue)
+            is LiteralNull -> ExpressionCompiler.constant(null)
+            is ParamMarker -> ExpressionCompiler.constant(parameters[expression.paramIndex - 1])
+            is FunctionExpression -> {
+                val value = if (stack.size > depth) stack.pop() else null
+                while (stack.size > depth) {
+                    stack.pop()
+                }
+                when(value) {
+                    null -> ErrorEvaluator("Unsupported function ${expression.functionName}")
+                    is LiteralString -> ExpressionCompiler.constant(value.unescapedString)
+                    is LiteralNumber -> ExpressionCompiler.constant(value.number)
+                    else -> ExpressionCompiler.constant(value)
+                }
             }
-        })
+            else -> stack.pop() as Evaluator
+        }
+    }
 
-        parentNode.addChild(rootNode)
-        rootNode = parentNode
+    /**
+     * 在当前作用域中查找标识符对应的列下标，与 NTuple 一样取第一个匹配的列
+     * 找不到时返回 -1
+     */
+    protected fun slotOf(identifier: Identifier): Int {
+        val columns = bindingScope ?: return scope.indexOfFirst { column -> Relation.matches(column, identifier) }
+        val slot = columns.indexOfFirst { column -> Relation.matches(column, identifier) }
+        return if (slot < 0) slot else slot - bindingOffset
     }
+
     override fun visit(node: Identifier) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Identifier(${node.idText})")
@@ -394,6 +1394,20 @@ open class SelectStatementVisitor: Visitor() {
         rootNode = parentNode
     }
 
+    override fun visit(node: ParamMarker) {
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("ParamMarker(${parameters.getOrNull(node.paramIndex - 1)})")
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+    }
+
+    override fun visit(node: LiteralNull) {
+        val parentNode = rootNode
+        rootNode = SimpleTreeNode("LiteralNull")
+        parentNode.addChild(rootNode)
+        rootNode = parentNode
+    }
+
     override fun visit(node: Cast) {
         val parentNode = rootNode
         rootNode = SimpleTreeNode("Cast(typeName=${node.typeName})")
@@ -405,7 +1419,10 @@ open class SelectStatementVisitor: Visitor() {
         rootNode = parentNode
     }
 
-
-
-
-}
\ No newline at end of file
+    companion object {
+        /**
+         * 延迟读取时表扫描输出的行号列的列名，不会与用户的列名冲突
+         */
+        private const val ROW_ID_COLUMN = "#rowid"
+    }
+}
@@ -1,20 +1,22 @@
 package com.lss233.minidb.engine.visitor
 
 import com.lss233.minidb.engine.Cell
-import com.lss233.minidb.engine.NTuple
+import com.lss233.minidb.engine.memory.Engine
 import com.lss233.minidb.engine.memory.Table
 import com.lss233.minidb.engine.schema.Column
+import miniDB.parser.ast.fragment.tableref.TableRefFactor
 import miniDB.parser.ast.stmt.dml.DMLUpdateStatement
-import java.util.function.Predicate
 
 class UpdateStatementVisitor: SelectStatementVisitor() {
     var affects = 0
     override fun visit(node: DMLUpdateStatement) {
-        node.tableRefs.accept(this)
-        val table = stack.pop() as Table
-        node.where.accept(this)
-        val cond = stack.pop() as Predicate<NTuple>
+        val factor = node.tableRefs.tableReferenceList.singleOrNull() as? TableRefFactor
+            ?: throw RuntimeException("UPDATE 只支持单表")
+        val table = Engine[factor.table] as? Table
+            ?: throw RuntimeException("${factor.table.idText} 不是一张表")
+        scope = table.columns
+        val cond = operandOf(node.where)
         val updated = node.values.map { Cell(Column(it.key), it.value) }.toTypedArray()
-        affects =  table.update(cond, updated)
+        affects = table.update(cond, updated)
     }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.lss233.minidb.networking
 
 import com.lss233.minidb.networking.codec.MySQLDecoder
 import com.lss233.minidb.networking.codec.MySQLEncoder
+import com.lss233.minidb.networking.codec.OperatorToMySQLEncoder
 import com.lss233.minidb.networking.codec.RelationToMySQLEncoder
 import com.lss233.minidb.networking.handler.mysql.command.ChangeDatabaseHandler
 import com.lss233.minidb.networking.handler.mysql.command.QueryHandler
@@ -21,6 +22,7 @@ class MySQLProtocolInitializer() : ChannelInitializer<SocketChannel>() {
         val pipeline = ch.pipeline()
         pipeline.addLast(MySQLDecoder(session), MySQLEncoder(session))
         pipeline.addLast(RelationToMySQLEncoder(session))
+        pipeline.addLast(OperatorToMySQLEncoder(session))
         pipeline.addLast(InitialHandshakeHandler(session))
         pipeline.addLast(QueryHandler(session))
         pipeline.addLast(ChangeDatabaseHandler(session))
@@ -1,11 +1,18 @@
 package com.lss233.minidb.networking
 
+import com.lss233.minidb.engine.operator.QueryMemory
+
 open class Session {
     var state = State.Startup
     var user: String? = null
     var database: String? = null
     val properties = HashMap<String, String>()
     var packetSequenceId = -1
+
+    /**
+     * 正在执行的查询预留的内存
+     */
+    val memory = QueryMemory()
     enum class State {
         Startup, Authenticating, Query, Terminated
     }
@@ -1,6 +1,8 @@
 package com.lss233.minidb.networking.codec
 
 import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.schema.Column
 import com.lss233.minidb.networking.packets.mysql.*
 import com.lss233.minidb.networking.protocol.mysql.CapabilitiesFlags
 import com.lss233.minidb.networking.protocol.mysql.MySQLSession
@@ -37,45 +39,77 @@ class RelationToMySQLEncoder(private val session: MySQLSession) : MessageToByteE
 
     override fun encode(ctx: ChannelHandlerContext?, msg: Relation?, out: ByteBuf?) {
         msg?.let { relation: Relation -> run {
-            val metadataFollows = true
-            ctx?.write(
-                TextResultsetIndicator(
-                    metadataFollows = metadataFollows,
-                    columnCount = relation.columns.size)
-            )!!
-            if(metadataFollows ||
-                !CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_OPTIONAL_RESULTSET_METADATA)
-            ) {
-                for (column in relation.columns) {
-                    ctx.write(ColumnDefinition(column))
-                }
-            }
-//            ctx.write(EOFPacket())
+            writeResultset(ctx!!, session, relation.columns, relation.rows.iterator())
+        } }
 
-            if(!CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_DEPRECATE_EOF)) {
-                ctx.write(EOFPacket())
-            }
+    }
 
-            for(row in relation.rows) {
-                ctx.write(TextResultsetRow(row))
-            }
-            // If error_process encountered, handle it in caughtException
-            if(CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_DEPRECATE_EOF)) {
-                ctx.write(OKPacket(
-                    affectedRows = 0,
-                    lastInsertId = 0,
-                    statusFlag = 0x0022,
-                    warnings = 0,
-                    info = "",
-                    sessionStateInfo = "",
-                    isEOF = true
-                ))
-            } else {
-                ctx.write(EOFPacket())
+}
+
+/**
+ * 从查询计划中逐行拉取数据，以 Text Resultset 的形式输出
+ */
+class OperatorToMySQLEncoder(private val session: MySQLSession) : MessageToByteEncoder<Operator>() {
+
+    override fun encode(ctx: ChannelHandlerContext?, msg: Operator?, out: ByteBuf?) {
+        msg?.let { plan: Operator -> run {
+            try {
+                // 打开时就可能出错，也要关闭已经打开的部分，归还预留的内存并删除临时文件
+                plan.open()
+                writeResultset(ctx!!, session, plan.columns, generateSequence { plan.next() }.iterator())
+            } finally {
+                plan.close()
             }
-            ctx.flush()
         } }
+    }
+
+}
+
+/**
+ * 每输出多少行刷新一次网络缓冲区
+ */
+private const val FLUSH_BATCH_SIZE = 256
 
+private fun writeResultset(ctx: ChannelHandlerContext, session: MySQLSession, columns: List<Column>, rows: Iterator<Array<Any>>) {
+    val metadataFollows = true
+    ctx.write(
+        TextResultsetIndicator(
+            metadataFollows = metadataFollows,
+            columnCount = columns.size)
+    )
+    if(metadataFollows ||
+        !CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_OPTIONAL_RESULTSET_METADATA)
+    ) {
+        for (column in columns) {
+            ctx.write(ColumnDefinition(column))
+        }
     }
+//    ctx.write(EOFPacket())
 
+    if(!CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_DEPRECATE_EOF)) {
+        ctx.write(EOFPacket())
+    }
+
+    var rowCount = 0
+    for(row in rows) {
+        ctx.write(TextResultsetRow(row))
+        if (++rowCount % FLUSH_BATCH_SIZE == 0) {
+            ctx.flush()
+        }
+    }
+    // If error_process encountered, handle it in caughtException
+    if(CapabilitiesFlags.hasCapability(session.clientFlags, CapabilitiesFlags.CLIENT_DEPRECATE_EOF)) {
+        ctx.write(OKPacket(
+            affectedRows = 0,
+            lastInsertId = 0,
+            statusFlag = 0x0022,
+            warnings = 0,
+            info = "",
+            sessionStateInfo = "",
+            isEOF = true
+        ))
+    } else {
+        ctx.write(EOFPacket())
+    }
+    ctx.flush()
 }
@@ -1,9 +1,12 @@
 package com.lss233.minidb.networking.handler.mysql.command
 
 import com.lss233.minidb.engine.Relation
-import com.lss233.minidb.engine.SQLParser
+import com.lss233.minidb.engine.PlanCache
+import com.lss233.minidb.engine.QueryCache
 import com.lss233.minidb.engine.StringUtils
 import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.ScanOperator
 import com.lss233.minidb.engine.schema.Column
 import com.lss233.minidb.engine.visitor.CreateTableStatementVisitor
 import com.lss233.minidb.engine.visitor.InsertStatementVisitor
@@ -36,9 +39,10 @@ class QueryHandler(val session: MySQLSession): SimpleChannelInboundHandler<Reque
                 if(queryString.isBlank()) {
                     continue
                 }
-                // 交给词法解析器
+                // 交给词法解析器，形状相同的查询语句直接从缓存中取
                 println("  Q: $queryString")
-                val ast = SQLParser.parse(queryString)
+                val prepared = PlanCache.prepare(queryString)
+                val ast = prepared.statement
                 println("  Q(${ast.javaClass.simpleName}): $queryString")
 
                 // 分析解析后的 SQL 语句，作出不同的反应
@@ -89,20 +93,24 @@ class QueryHandler(val session: MySQLSession): SimpleChannelInboundHandler<Reque
 //                        ctx?.writeAndFlush(CommandComplete("DELETE 1"))?.sync()
                     }
                     is DMLQueryStatement -> {
-                        val relation: Relation? = if(queryString.lowercase() == "select version()") {
-                            Relation(mutableListOf(Column("version")), mutableListOf(arrayOf("1.0.0")))
+                        val plan: Operator? = if(queryString.lowercase() == "select version()") {
+                            ScanOperator(Relation(mutableListOf(Column("version")), mutableListOf(arrayOf("1.0.0"))))
                         } else {
-                            val visitor = SelectStatementVisitor()
-                            try {
-                                ast.accept(visitor)
-                            } finally {
-                                TraditionalTreePrinter().print(visitor.rootNode)
+                            // 缓存中有这条查询的结果时不再生成查询计划
+                            QueryCache.get(prepared) ?: run {
+                                val visitor = SelectStatementVisitor()
+                                visitor.parameters = prepared.parameters
+                                try {
+                                    ast.accept(visitor)
+                                } finally {
+                                    TraditionalTreePrinter().print(visitor.rootNode)
+                                }
+                                QueryCache.record(prepared, visitor)
                             }
-                            visitor.relation
                         }
 
-                        println(relation)
-                        ctx?.writeAndFlush(relation)?.sync()
+                        // 结果由 OperatorToMySQLEncoder 从查询计划中逐行拉取并输出
+                        ctx?.writeAndFlush(plan)?.sync()
                     }
                     is ShowVariables -> {
                         // 查下环境变量
@@ -118,6 +126,28 @@ class QueryHandler(val session: MySQLSession): SimpleChannelInboundHandler<Reque
                         println(relation)
                         ctx?.writeAndFlush(relation)?.sync()
                     }
+                    is ShowStatus -> {
+                        // 服务器的状态计数
+                        val status = linkedMapOf<String, Any>(
+                            "Plan_cache_hits" to PlanCache.hits,
+                            "Plan_cache_misses" to PlanCache.misses,
+                            "Plan_cache_entries" to PlanCache.size,
+                            "Qcache_hits" to QueryCache.hits,
+                            "Qcache_inserts" to QueryCache.inserts,
+                            "Qcache_queries_in_cache" to QueryCache.size,
+                            "Qcache_used_memory" to QueryCache.usedBytes
+                        )
+                        val relation = Relation(mutableListOf(
+                            Column("Variable_name"),
+                            Column("Value")
+                        ), status
+                            .filter { (key, _) -> ast.pattern == null || StringUtils.like(key, ast.pattern.substring(1, ast.pattern.length - 1)) }
+                            .map { (key, value) -> arrayOf<Any>(key, value.toString()) }
+                            .toMutableList()
+                        )
+                        println(relation)
+                        ctx?.writeAndFlush(relation)?.sync()
+                    }
                     is ShowDatabases -> {
                         // 查数据库列表
                         val relation = Relation(mutableListOf(
@@ -1,8 +1,11 @@
 package com.lss233.minidb.networking.handler.postgres.query
 
 import com.lss233.minidb.engine.Relation
-import com.lss233.minidb.engine.SQLParser
+import com.lss233.minidb.engine.PlanCache
+import com.lss233.minidb.engine.QueryCache
 import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.operator.Operator
+import com.lss233.minidb.engine.operator.ScanOperator
 import com.lss233.minidb.engine.schema.Column
 import com.lss233.minidb.engine.visitor.CreateTableStatementVisitor
 import com.lss233.minidb.engine.visitor.InsertStatementVisitor
@@ -32,9 +35,10 @@ class QueryHandler(private val session: Session) : SimpleChannelInboundHandler<Q
                 if(queryString.isBlank()) {
                     continue
                 }
-                // 交给词法解析器
+                // 交给词法解析器，形状相同的查询语句直接从缓存中取
                 println("  Q: $queryString")
-                val ast = SQLParser.parse(queryString)
+                val prepared = PlanCache.prepare(queryString)
+                val ast = prepared.statement
                 println("  Q(${ast.javaClass.simpleName}): $queryString")
 
                 // 分析解析后的 SQL 语句，作出不同的反应
@@ -85,21 +89,23 @@ class QueryHandler(private val session: Session) : SimpleChannelInboundHandler<Q
                         ctx?.writeAndFlush(CommandComplete("DELETE 1"))?.sync()
                     }
                     is DMLQueryStatement -> {
-                        val relation: Relation? = if(queryString.lowercase() == "select version()") {
-                            Relation(mutableListOf(Column("version")), mutableListOf(arrayOf("1.0.0")))
+                        val plan: Operator? = if(queryString.lowercase() == "select version()") {
+                            ScanOperator(Relation(mutableListOf(Column("version")), mutableListOf(arrayOf("1.0.0"))))
                         } else {
-                            val visitor = SelectStatementVisitor()
-                            try {
-                                ast.accept(visitor)
-                            } finally {
-                                TraditionalTreePrinter().print(visitor.rootNode)
+                            // 缓存中有这条查询的结果时不再生成查询计划
+                            QueryCache.get(prepared) ?: run {
+                                val visitor = SelectStatementVisitor()
+                                visitor.parameters = prepared.parameters
+                                try {
+                                    ast.accept(visitor)
+                                } finally {
+                                    TraditionalTreePrinter().print(visitor.rootNode)
+                                }
+                                QueryCache.record(prepared, visitor)
                             }
-                            visitor.relation
                         }
 
-                        println(relation)
-
-                        val rowDescription = RowDescription(relation?.columns?.map {
+                        val rowDescription = RowDescription(plan?.columns?.map {
                             run {
                                 val data = RowDescription.RowData()
                                 data.name = it.name
@@ -107,15 +113,24 @@ class QueryHandler(private val session: Session) : SimpleChannelInboundHandler<Q
                             } }?.toTypedArray() ?: emptyArray())
                         // 这是一条查询语句
                         ctx?.writeAndFlush(rowDescription)?.sync()
-                        relation?.rows?.map { row -> run {
-                            DataRow(row.map { col -> run {
-                                DataRow.ColumnData(col.toString().encodeToByteArray())
-                            } }.toTypedArray())
-                        } }?.forEach { row ->
-                            ctx?.writeAndFlush(row)?.sync()
+                        // 从查询计划中逐行拉取结果，每攒够一批再刷新到客户端
+                        var rowCount = 0
+                        try {
+                            plan?.open()
+                            while (true) {
+                                val row = plan?.next() ?: break
+                                ctx?.write(DataRow(row.map { col -> run {
+                                    DataRow.ColumnData(col.toString().encodeToByteArray())
+                                } }.toTypedArray()))
+                                if (++rowCount % FLUSH_BATCH_SIZE == 0) {
+                                    ctx?.flush()
+                                }
+                            }
+                        } finally {
+                            plan?.close()
                         }
                         //  查到了 0 条结果也是一种查
-                        ctx?.writeAndFlush(CommandComplete("SELECT ${relation?.rows?.size ?: 0}"))?.sync()
+                        ctx?.writeAndFlush(CommandComplete("SELECT $rowCount"))?.sync()
                     }
                     is DALSetStatement -> {
                         // 这是一条设置语句
@@ -163,4 +178,11 @@ class QueryHandler(private val session: Session) : SimpleChannelInboundHandler<Q
         ctx?.writeAndFlush(err)?.sync()
         ctx?.writeAndFlush(ReadyForQuery())?.sync()
     }
+
+    companion object {
+        /**
+         * 每输出多少行刷新一次网络缓冲区
+         */
+        const val FLUSH_BATCH_SIZE = 256
+    }
 }
@@ -0,0 +1,203 @@
+package com.lss233.minidb.engine
+
+import miniDB.parser.ast.expression.comparison.ComparisionEqualsExpression
+import miniDB.parser.ast.expression.primary.Identifier
+import miniDB.parser.ast.expression.primary.ParamMarker
+import miniDB.parser.ast.expression.primary.literal.LiteralString
+import miniDB.parser.ast.stmt.dml.DMLSelectStatement
+import miniDB.parser.visitor.Visitor
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.sql.SQLSyntaxErrorException
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+internal class PlanCacheTest {
+
+    @BeforeTest
+    fun clear() = PlanCache.clear()
+
+    private fun normalize(sql: String): PlanCache.Normalized =
+        PlanCache.normalize(sql) ?: throw AssertionError("$sql should be normalized")
+
+    /**
+     * 语句中 `列 = 常量` 的常量经过解析器得到的值，用于和参数化之后的参数比较
+     */
+    private fun parsedString(sql: String): String =
+        (((SQLParser.parse(sql) as DMLSelectStatement).where as ComparisionEqualsExpression).rightOprand as LiteralString).unescapedString
+
+    /**
+     * 参数化之后的语句中每个 `列 = ?` 绑定到的参数
+     */
+    private fun boundParameters(prepared: PlanCache.Prepared): Map<String, Any?> {
+        val bound = HashMap<String, Any?>()
+        prepared.statement.accept(object : Visitor() {
+            override fun visit(node: ComparisionEqualsExpression) {
+                val marker = node.rightOprand as? ParamMarker
+                if (marker != null) {
+                    bound[(node.leftOprand as Identifier).idText] = prepared.parameters[marker.paramIndex - 1]
+                }
+                super.visit(node)
+            }
+        })
+        return bound
+    }
+
+    @Test
+    fun doubledQuoteEscape() {
+        val sql = "SELECT * FROM t WHERE a = 'it''s'"
+        val normalized = normalize(sql)
+        assertEquals("SELECT * FROM t WHERE a = ?", normalized.text)
+        assertEquals(listOf<Any?>("it's"), normalized.parameters)
+        assertEquals(parsedString(sql), normalized.parameters[0])
+    }
+
+    @Test
+    fun backslashEscape() {
+        val sql = "SELECT * FROM t WHERE a = 'it\\'s \\\\ \\n'"
+        val normalized = normalize(sql)
+        assertEquals("SELECT * FROM t WHERE a = ?", normalized.text)
+        assertEquals(listOf<Any?>("it's \\ \n"), normalized.parameters)
+        assertEquals(parsedString(sql), normalized.parameters[0])
+    }
+
+    @Test
+    fun quoteInsideStringDoesNotEndIt() {
+        val normalized = normalize("SELECT * FROM t WHERE a = 'x'' AND b = 1' AND c = 2")
+        assertEquals("SELECT * FROM t WHERE a = ? AND c = ?", normalized.text)
+        assertEquals(listOf<Any?>("x' AND b = 1", 2), normalized.parameters)
+    }
+
+    @Test
+    fun prefixedStringsAreKept() {
+        val sql = "SELECT * FROM t WHERE a = N'abc' AND b = x'0F' AND c = _utf8'z'"
+        val normalized = normalize(sql)
+        assertEquals(sql, normalized.text)
+        assertTrue(normalized.parameters.isEmpty())
+    }
+
+    @Test
+    fun numbersNextToIdentifiers() {
+        val normalized = normalize("SELECT * FROM t1 WHERE a1 = 1 AND t1.c2 = 2.5 AND c3=-4")
+        assertEquals("SELECT * FROM t1 WHERE a1 = ? AND t1.c2 = ? AND c3=-?", normalized.text)
+        assertEquals(listOf<Any?>(1, BigDecimal("2.5"), 4), normalized.parameters)
+    }
+
+    @Test
+    fun unusualNumbersAreKept() {
+        val sql = "SELECT * FROM t WHERE a = .5 OR b = 1e5 OR c = 0x1F OR d = 1.5e3"
+        val normalized = normalize(sql)
+        assertEquals(sql, normalized.text)
+        assertTrue(normalized.parameters.isEmpty())
+    }
+
+    @Test
+    fun largeIntegersFollowLexerTypes() {
+        // 与词法分析器相同，十位数只有不超过 2099999999 时才是 Int
+        val normalized = normalize("SELECT * FROM t WHERE a = 2099999999 AND b = 2147483647 AND c = 99999999999999999999")
+        assertEquals(listOf<Any?>(2099999999, 2147483647L, BigInteger("99999999999999999999")), normalized.parameters)
+    }
+
+    @Test
+    fun functionArgumentsAreKept() {
+        val normalized = normalize("SELECT * FROM t WHERE a = ABS(-3) AND b = CAST('1' AS CHAR) AND c = 4")
+        assertEquals("SELECT * FROM t WHERE a = ABS(-3) AND b = CAST('1' AS CHAR) AND c = ?", normalized.text)
+        assertEquals(listOf<Any?>(4), normalized.parameters)
+    }
+
+    @Test
+    fun anyArrayIsKept() {
+        val normalized = normalize("SELECT * FROM t WHERE a = ANY('{1,2}'::int[]) AND b = 5")
+        assertEquals("SELECT * FROM t WHERE a = ANY('{1,2}'::int[]) AND b = ?", normalized.text)
+        assertEquals(listOf<Any?>(5), normalized.parameters)
+    }
+
+    @Test
+    fun inListIsParameterized() {
+        val normalized = normalize("SELECT * FROM t WHERE a IN (1, 'x') AND (b = 2 OR c = 3)")
+        assertEquals("SELECT * FROM t WHERE a IN (?, ?) AND (b = ? OR c = ?)", normalized.text)
+        assertEquals(listOf<Any?>(1, "x", 2, 3), normalized.parameters)
+    }
+
+    @Test
+    fun nestedSubqueryRestoresClause() {
+        val normalized = normalize("SELECT * FROM t WHERE a IN (SELECT b FROM u WHERE c = 3 LIMIT 5) AND d = 4 LIMIT 10")
+        assertEquals("SELECT * FROM t WHERE a IN (SELECT b FROM u WHERE c = ? LIMIT 5) AND d = ? LIMIT 10", normalized.text)
+        assertEquals(listOf<Any?>(3, 4), normalized.parameters)
+    }
+
+    @Test
+    fun selectListSubqueryDoesNotLeakClause() {
+        // 查询列表中的括号里不替换常量，括号里的子查询也保持原样，括号结束后回到外层的子句
+        val normalized = normalize("SELECT (SELECT 1 FROM u WHERE c = 2), 3 FROM t WHERE d = 4")
+        assertEquals("SELECT (SELECT 1 FROM u WHERE c = 2), 3 FROM t WHERE d = ?", normalized.text)
+        assertEquals(listOf<Any?>(4), normalized.parameters)
+    }
+
+    @Test
+    fun onlyConditionClausesAreParameterized() {
+        val sql = "SELECT 1, 'a' FROM t GROUP BY 1 ORDER BY 2 LIMIT 10"
+        assertEquals(sql, normalize(sql).text)
+    }
+
+    @Test
+    fun commentsAndQuotedIdentifiersAreKept() {
+        val normalized = normalize("SELECT * FROM `t` /* 'x' 1 */ WHERE \"a\" = 1 -- 2\n AND b = 3")
+        assertEquals("SELECT * FROM `t` /* 'x' 1 */ WHERE \"a\" = ? -- 2\n AND b = ?", normalized.text)
+        assertEquals(listOf<Any?>(1, 3), normalized.parameters)
+    }
+
+    @Test
+    fun otherStatementsAreNotNormalized() {
+        assertNull(PlanCache.normalize("INSERT INTO t VALUES (1)"))
+        assertNull(PlanCache.normalize("SELECT * FROM t WHERE a = ?"))
+        assertNull(PlanCache.normalize("SELECT * FROM t WHERE a = 'unclosed"))
+    }
+
+    @Test
+    fun typedLiteralFallsBackToOriginal() {
+        val sql = "SELECT * FROM t WHERE d = DATE '2020-01-01'"
+        assertEquals("SELECT * FROM t WHERE d = DATE ?", normalize(sql).text)
+        // 参数化之后解析不了，改为解析原语句，报告的错误与直接解析原语句相同
+        val expected = assertFailsWith<SQLSyntaxErrorException> { SQLParser.parse(sql) }
+        val actual = assertFailsWith<SQLSyntaxErrorException> { PlanCache.prepare(sql) }
+        assertEquals(expected.message, actual.message)
+    }
+
+    @Test
+    fun unparsableTemplateFallsBackToOriginal() {
+        val hits = PlanCache.hits
+        for (sql in listOf("SELECT * FROM t WHERE a = _utf8 'x'", "SELECT * FROM t WHERE a = 'a' 'b'")) {
+            repeat(2) {
+                val prepared = PlanCache.prepare(sql)
+                assertEquals(sql, prepared.text)
+                assertTrue(prepared.parameters.isEmpty())
+            }
+        }
+        assertEquals(hits, PlanCache.hits)
+    }
+
+    @Test
+    fun parametersMatchMarkerIndexes() {
+        val prepared = PlanCache.prepare("SELECT * FROM t WHERE a = 'x' AND b = 2 OR c = 3.5")
+        assertEquals("SELECT * FROM t WHERE a = ? AND b = ? OR c = ?", prepared.text)
+        assertEquals(mapOf<String, Any?>("a" to "x", "b" to 2, "c" to BigDecimal("3.5")), boundParameters(prepared))
+
+        val nested = PlanCache.prepare("SELECT * FROM t WHERE a IN (SELECT b FROM u WHERE c = 3) AND d = 4")
+        assertEquals(mapOf<String, Any?>("c" to 3, "d" to 4), boundParameters(nested))
+    }
+
+    @Test
+    fun sameShapeHitsCache() {
+        val hits = PlanCache.hits
+        val first = PlanCache.prepare("SELECT * FROM t WHERE a = 1")
+        val second = PlanCache.prepare("SELECT * FROM t WHERE a = 2")
+        assertTrue(first.statement === second.statement)
+        assertEquals(hits + 1, PlanCache.hits)
+        assertEquals(mapOf<String, Any?>("a" to 2), boundParameters(second))
+    }
+}
@@ -0,0 +1,131 @@
+package com.lss233.minidb.engine.memory
+
+import com.lss233.minidb.engine.Cell
+import com.lss233.minidb.engine.schema.Column
+import miniDB.parser.ast.expression.Expression
+import miniDB.parser.ast.expression.primary.literal.LiteralNull
+import miniDB.parser.ast.expression.primary.literal.LiteralNumber
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Predicate
+import kotlin.concurrent.thread
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/**
+ * 读者持有的快照在另一个会话插入和修改之后仍看到取快照时的数据
+ * 每行是 (id, name, score)：最后一个分段只写了一部分，之后的插入会写进快照也引用着的这个分段
+ */
+internal class RowStoreTest {
+    private val columns = mutableListOf(Column("id", DataTypeName.BIGINT), Column("name", DataTypeName.VARCHAR), Column("score", DataTypeName.INT))
+
+    private val initialRows = Segment.CAPACITY * 2 + 500
+
+    @Suppress("UNCHECKED_CAST")
+    private fun row(id: Long, name: String?, score: Int?): Array<Any> = arrayOf<Any?>(id, name, score) as Array<Any>
+
+    private fun table(): Table {
+        val table = Table("t", columns)
+        for (i in 0 until initialRows) {
+            table.insert(row(i.toLong(), if (i % 10 == 0) null else "n$i", i % 100))
+        }
+        return table
+    }
+
+    private fun TableSnapshot.values(): List<List<Any?>> = rows().map { it.toList() }
+
+    private fun update(table: Table, column: Int, value: Expression, cond: (Array<Any>) -> Boolean): Int =
+        table.update(Predicate { cond(it) }, arrayOf(Cell(columns[column], value)))
+
+    /**
+     * 另一个会话的写入：
+     * 追加的行写进共享的最后一个分段，其中有 NULL，也有与列类型不符、需要把这一列换成对象存储的值；
+     * 修改既有普通的值和 NULL，也有超出 INT 范围、同样需要换掉整列存储的值
+     */
+    private fun write(table: Table) {
+        for (i in 0 until 3000) {
+            val id = (i % 700).toLong()
+            table.insert(row(id, if (i % 7 == 0) null else "m$i", if (i % 13 == 0) null else -i))
+        }
+        table.insert(arrayOf<Any>(2000L, "text", "not a number"))
+        update(table, 2, LiteralNumber(-1)) { (it[0] as Long) % 3 == 0L }
+        update(table, 1, LiteralNull()) { (it[0] as Long) % 5 == 1L }
+        update(table, 2, LiteralNumber(Long.MAX_VALUE)) { (it[0] as Long) < 10 }
+    }
+
+    @Test
+    fun snapshotIsUnaffectedByLaterWrites() {
+        val table = table()
+        val snapshot = table.snapshot()
+        val expected = snapshot.values()
+        val ordered = snapshot.isOrdered(0)
+        write(table)
+
+        assertEquals(initialRows, snapshot.size)
+        assertEquals(expected, snapshot.values())
+        assertEquals(ordered, snapshot.isOrdered(0))
+        assertEquals(expected.map { it[1] }, (0 until snapshot.size).map { snapshot.get(it, 1) })
+
+        // 新的快照看到所有的写入
+        val current = table.snapshot()
+        assertEquals(initialRows + 3001, current.size)
+        assertEquals(Long.MAX_VALUE, current.get(0, 2))
+        assertEquals(null, current.get(1, 1))
+        assertEquals(-1L, (current.get(12, 2) as Number).toLong())
+        assertEquals("not a number", current.get(current.size - 1, 2))
+        assertFalse(current.isOrdered(0))
+    }
+
+    @Test
+    fun indexLookupsStayWithinSnapshot() {
+        val table = table()
+        val snapshot = table.snapshot()
+        // 在写入之前建立 id 列的索引，之后追加的重复 id 也会加进这个索引
+        assertTrue(snapshot.index(0).rows(5L, snapshot.size).contentEquals(intArrayOf(5)))
+        write(table)
+
+        for (id in listOf(0L, 5L, 699L, initialRows - 1L)) {
+            assertTrue(snapshot.index(0).rows(id, snapshot.size).contentEquals(intArrayOf(id.toInt())), "id $id")
+        }
+        // score 列在快照之后被修改过，快照单独建立的索引仍按快照中的值查找
+        val expected = (0 until initialRows).filter { it % 100 == 42 }.toIntArray()
+        assertTrue(snapshot.index(2).rows(42, snapshot.size).contentEquals(expected))
+        assertTrue(snapshot.index(2).rows(-1, snapshot.size).isEmpty())
+    }
+
+    @Test
+    fun concurrentReaderSeesStableSnapshot() {
+        val table = table()
+        val snapshot = table.snapshot()
+        val expected = snapshot.values()
+        val failure = AtomicReference<Throwable>()
+        val done = AtomicBoolean()
+        val reader = thread {
+            try {
+                var scans = 0
+                while (!done.get() || scans == 0) {
+                    assertEquals(expected, snapshot.values())
+                    scans++
+                }
+            } catch (e: Throwable) {
+                failure.set(e)
+            }
+        }
+        val writer = thread {
+            try {
+                repeat(5) { write(table) }
+            } catch (e: Throwable) {
+                failure.compareAndSet(null, e)
+            } finally {
+                done.set(true)
+            }
+        }
+        writer.join()
+        reader.join()
+        failure.get()?.let { throw it }
+        assertEquals(expected, snapshot.values())
+    }
+}
@@ -0,0 +1,110 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.JoinType
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.schema.Column
+import com.lss233.minidb.networking.Session
+import java.util.function.Predicate
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * 分区并行的哈希连接与单线程逐行探测的结果比较
+ */
+internal class HashJoinOperatorTest {
+    private val session = Session()
+
+    @BeforeTest
+    fun setUp() {
+        Engine.session.set(session)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        Engine.session.remove()
+    }
+
+    /**
+     * 两侧都超过 [ExecutionConfig.PARALLEL_JOIN_THRESHOLD] 行，连接键中有 NULL；
+     * 键 -1 在右侧出现几千次，一行探测就能凑满不止一次输出
+     */
+    private fun left(size: Int) = Relation(
+        mutableListOf(Column("lk"), Column("lv")),
+        MutableList(size) { i -> row(if (i % 97 == 0) null else if (i < 3) -1 else i % 5000, i) }
+    )
+
+    private fun right(size: Int) = Relation(
+        mutableListOf(Column("rk"), Column("rv")),
+        MutableList(size) { i -> row(if (i % 89 == 0) null else if (i < 5000) -1 else i % 7000, i) }
+    )
+
+    @Suppress("UNCHECKED_CAST")
+    private fun row(vararg values: Any?): Array<Any> = arrayOf(*values) as Array<Any>
+
+    /**
+     * 按 lv + rv 不能被 3 整除过滤匹配的行对
+     */
+    private val residual = Predicate<Array<Any>> { ((it[1] as Int) + (it[3] as Int)) % 3 != 0 }
+
+    /**
+     * 按给定的并行度执行连接，结果排好序以便比较
+     */
+    private fun join(type: JoinType, left: Relation, right: Relation, degree: Int): List<String> {
+        session.properties[ExecutionConfig.PARALLEL_DEGREE_VARIABLE] = degree.toString()
+        val join = HashJoinOperator(ScanOperator(left), ScanOperator(right), intArrayOf(0), intArrayOf(0), type, residual)
+        return join.toRelation().rows.map { it.joinToString() }.sorted()
+    }
+
+    private fun assertParallelMatchesSerial(type: JoinType, leftSize: Int, rightSize: Int) {
+        val left = left(leftSize)
+        val right = right(rightSize)
+        val serial = join(type, left, right, 1)
+        val parallel = join(type, left, right, 4)
+        assertEquals(serial.size, parallel.size)
+        assertEquals(serial, parallel)
+    }
+
+    @Test
+    fun leftJoinBuildingLeft() = assertParallelMatchesSerial(JoinType.LEFT, 70_000, 80_000)
+
+    @Test
+    fun leftJoinBuildingRight() = assertParallelMatchesSerial(JoinType.LEFT, 80_000, 70_000)
+
+    @Test
+    fun rightJoinBuildingLeft() = assertParallelMatchesSerial(JoinType.RIGHT, 70_000, 80_000)
+
+    @Test
+    fun rightJoinBuildingRight() = assertParallelMatchesSerial(JoinType.RIGHT, 80_000, 70_000)
+
+    @Test
+    fun innerJoin() = assertParallelMatchesSerial(JoinType.INNER, 70_000, 70_000)
+
+    @Test
+    fun preservedRowsWithNullKeys() {
+        val rows = join(JoinType.LEFT, left(70_000), right(70_000), 4)
+        // 左侧连接键为 NULL 的行各输出一次，右侧补 NULL
+        assertEquals((0 until 70_000 step 97).map { "null, $it, null, null" }.sorted(), rows.filter { it.startsWith("null, ") })
+    }
+
+    @Test
+    fun spilledParallelJoinMatchesSerial() {
+        val left = left(70_000)
+        val right = right(70_000)
+        val serial = join(JoinType.LEFT, left, right, 1)
+        session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = "1"
+        assertEquals(serial, join(JoinType.LEFT, left, right, 4))
+    }
+
+    @Test
+    fun memoryIsReleasedAfterClose() {
+        val before = MemoryManager.usedBytes
+        join(JoinType.RIGHT, left(70_000), right(70_000), 4)
+        assertEquals(before, MemoryManager.usedBytes)
+        assertTrue(session.memory.usedBytes == 0L)
+    }
+}
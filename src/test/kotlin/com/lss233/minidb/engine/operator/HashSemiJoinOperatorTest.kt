@@ -0,0 +1,169 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.schema.Column
+import com.lss233.minidb.networking.Session
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * NOT IN 改写成的反连接按三值逻辑处理 NULL
+ * 左侧一列的值 v，或者分组 g 和值 v 两列；右侧（子查询）的列与左侧相同
+ */
+internal class HashSemiJoinOperatorTest {
+    private val session = Session()
+
+    @BeforeTest
+    fun setUp() {
+        Engine.session.set(session)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        Engine.session.remove()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun row(vararg values: Long?): Array<Any> = arrayOf<Any?>(*values) as Array<Any>
+
+    private fun relation(width: Int, rows: List<Array<Any>>): Relation {
+        val names = if (width == 1) listOf("v") else listOf("g", "v")
+        return Relation(names.map { Column(it, DataTypeName.BIGINT) }.toMutableList(), rows.toMutableList())
+    }
+
+    /**
+     * 执行 `左侧 WHERE (g = 子查询.g AND) v NOT IN (子查询.v)`，返回输出的行
+     */
+    private fun notIn(left: List<Array<Any>>, right: List<Array<Any>>, width: Int = 1): List<List<Any?>> {
+        val leftScan = ScanOperator(relation(width, left))
+        val rightScan = ScanOperator(relation(width, right))
+        val join = HashSemiJoinOperator(
+            leftScan, rightScan,
+            Array(width) { ExpressionCompiler.column(it, leftScan.columns[it]) },
+            Array(width) { ExpressionCompiler.column(it, rightScan.columns[it]) },
+            anti = true, nullAware = true
+        )
+        return join.toRelation().rows.map { it.toList() }
+    }
+
+    /**
+     * 逐行按定义求 NOT IN 的结果：同组的子查询行为空时为真；
+     * 否则左侧的值为 NULL，或同组中没有相等的值但有 NULL 时为 NULL，有相等的值时为假
+     */
+    private fun expectedNotIn(left: List<Array<Any>>, right: List<Array<Any>>, width: Int = 1): List<List<Any?>> =
+        left.filter { outer ->
+            val groups = (0 until width - 1).map { outer[it] as Any? }
+            if (groups.any { it == null }) {
+                return@filter true
+            }
+            val group = right.filter { inner -> (0 until width - 1).all { inner[it] == outer[it] } }
+            val value = outer[width - 1] as Any?
+            group.isEmpty() || (value != null && group.none { it[width - 1] == value } && group.none { (it[width - 1] as Any?) == null })
+        }.map { it.toList() }
+
+    @Test
+    fun subqueryWithNullRejectsEveryRow() {
+        val rows = notIn(listOf(row(1), row(2), row(null)), listOf(row(2), row(null)))
+        assertTrue(rows.isEmpty())
+    }
+
+    @Test
+    fun subqueryWithoutNullKeepsMissingValues() {
+        val rows = notIn(listOf(row(1), row(2), row(3), row(null)), listOf(row(2), row(4)))
+        assertEquals(listOf(listOf<Any?>(1L), listOf<Any?>(3L)), rows)
+    }
+
+    @Test
+    fun emptySubqueryKeepsEveryRow() {
+        val left = listOf(row(1), row(null), row(3))
+        assertEquals(left.map { it.toList() }, notIn(left, emptyList()))
+    }
+
+    @Test
+    fun nullOuterValueIsUnknown() {
+        assertTrue(notIn(listOf(row(null)), listOf(row(5))).isEmpty())
+        // 子查询只有 NULL 时同样不成立，但不是空集
+        assertTrue(notIn(listOf(row(null), row(1)), listOf(row(null))).isEmpty())
+    }
+
+    @Test
+    fun correlatedGroups() {
+        val left = listOf(
+            row(1, 10), row(1, 11), row(1, null),
+            row(2, 20), row(2, 21),
+            row(3, 30), row(3, null),
+            row(null, 40)
+        )
+        val right = listOf(
+            row(1, 10),
+            row(2, 20), row(2, null),
+            row(null, 30)
+        )
+        // 第 1 组没有 NULL，只排除相等的值和左侧的 NULL；第 2 组有 NULL，全部排除；
+        // 第 3 组在子查询中为空，关联键为 NULL 的子查询行不属于任何一组，左侧关联键为 NULL 时子查询同样为空
+        val expected = listOf(listOf<Any?>(1L, 11L), listOf<Any?>(3L, 30L), listOf<Any?>(3L, null), listOf<Any?>(null, 40L))
+        assertEquals(expected, notIn(left, right, 2))
+        assertEquals(expected, expectedNotIn(left, right, 2))
+    }
+
+    /**
+     * 有 NULL、重复值和缺失值的一组数据，行数足够写满每一层的所有分区
+     */
+    private fun data(width: Int, size: Int, seed: Int): List<Array<Any>> =
+        List(size) { i ->
+            val hash = (i * 31 + seed) * 0x9E3779B1.toInt()
+            val value = if (hash % 53 == 0) null else ((hash ushr 8) % (size * 2)).toLong()
+            if (width == 1) row(value) else row(if (hash % 61 == 0) null else ((hash ushr 4) % 97).toLong(), value)
+        }
+
+    /**
+     * 溢出时的内存预算：1 字节时读到第一行就溢出，而且每一层分区都放不下；
+     * 一块预留的大小时先在内存中放入一部分子查询，之后才溢出
+     */
+    private val budgets = listOf(1L, ExecutionConfig.MEMORY_RESERVATION_CHUNK)
+
+    @Test
+    fun spilledUncorrelatedMatchesInMemory() {
+        val left = data(1, 3000, 1)
+        // 子查询中没有 NULL，否则任何一行都不会输出
+        val right = data(1, 6000, 2).filter { (it[0] as Any?) != null }
+        val inMemory = notIn(left, right)
+        assertEquals(expectedNotIn(left, right), inMemory)
+        assertTrue(inMemory.isNotEmpty())
+        for (budget in budgets) {
+            session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = budget.toString()
+            assertEquals(inMemory.map { it.toString() }.sorted(), notIn(left, right).map { it.toString() }.sorted())
+        }
+    }
+
+    @Test
+    fun spilledSubqueryWithNull() {
+        val right = data(1, 6000, 2).filter { (it[0] as Any?) != null } + listOf(row(null))
+        for (budget in budgets) {
+            session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = budget.toString()
+            assertTrue(notIn(data(1, 3000, 1), right).isEmpty())
+            assertEquals(data(1, 100, 3).map { it.toList() }, notIn(data(1, 100, 3), emptyList()))
+        }
+    }
+
+    @Test
+    fun spilledCorrelatedMatchesInMemory() {
+        val left = data(2, 3000, 1)
+        val right = data(2, 6000, 2)
+        val expected = expectedNotIn(left, right, 2).map { it.toString() }.sorted()
+        assertTrue(expected.isNotEmpty())
+        assertEquals(expected, notIn(left, right, 2).map { it.toString() }.sorted())
+        for (budget in budgets) {
+            session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = budget.toString()
+            assertEquals(expected, notIn(left, right, 2).map { it.toString() }.sorted())
+            assertEquals(0L, session.memory.usedBytes)
+        }
+    }
+}
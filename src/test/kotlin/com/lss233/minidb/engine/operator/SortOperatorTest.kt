@@ -0,0 +1,125 @@
+package com.lss233.minidb.engine.operator
+
+import com.lss233.minidb.engine.Relation
+import com.lss233.minidb.engine.config.ExecutionConfig
+import com.lss233.minidb.engine.expression.ExpressionCompiler
+import com.lss233.minidb.engine.memory.Engine
+import com.lss233.minidb.engine.schema.Column
+import com.lss233.minidb.networking.Session
+import miniDB.parser.ast.fragment.ddl.datatype.DataType.DataTypeName
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+/**
+ * 排序的顺序、NULL 的位置和键相同时的稳定性，在内存中排序、前 N 行的堆和溢出到磁盘的归并之间应当一致
+ * 每行是 (k, s, seq)：k 是有大量重复和 NULL 的整数键，s 是有 NULL 的字符串键，seq 是输入顺序
+ */
+internal class SortOperatorTest {
+    private val session = Session()
+
+    @BeforeTest
+    fun setUp() {
+        Engine.session.set(session)
+    }
+
+    @AfterTest
+    fun tearDown() {
+        Engine.session.remove()
+    }
+
+    private val columns = mutableListOf(Column("k", DataTypeName.BIGINT), Column("s", DataTypeName.VARCHAR), Column("seq", DataTypeName.BIGINT))
+
+    @Suppress("UNCHECKED_CAST")
+    private fun rows(size: Int): List<Array<Any>> =
+        List(size) { i ->
+            val hash = i * 0x9E3779B1.toInt()
+            val k = if (hash % 7 == 0) null else ((hash ushr 20) % 50).toLong()
+            val s = if (hash % 11 == 0) null else "s" + ((hash ushr 12) % 30)
+            arrayOf<Any?>(k, s, i.toLong()) as Array<Any>
+        }
+
+    /**
+     * 按 (k, s) 排序，返回输出的行
+     * @param memoryLimit 内存中缓存的估算字节数上限，很小时每读入几行就写出一段
+     */
+    private fun sort(input: List<Array<Any>>, descending: BooleanArray, limit: Long = -1, memoryLimit: Long = ExecutionConfig.SORT_BUFFER_SIZE): List<List<Any?>> {
+        val keys = listOf(ExpressionCompiler.column(0, columns[0]), ExpressionCompiler.column(1, columns[1]))
+        val operator = SortOperator(ScanOperator(Relation(columns, input.toMutableList())), keys, descending, limit, memoryLimit)
+        return operator.toRelation().rows.map { it.toList() }
+    }
+
+    /**
+     * 稳定排序得到的期望结果：NULL 在升序时最前、降序时最后，键相同的行按输入顺序
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun expected(input: List<Array<Any>>, descending: BooleanArray, limit: Int = input.size): List<List<Any?>> {
+        val comparator = Comparator<List<Any?>> { left, right ->
+            for (index in 0..1) {
+                val result = compareValues(left[index] as Comparable<Any>?, right[index] as Comparable<Any>?)
+                if (result != 0) {
+                    return@Comparator if (descending[index]) -result else result
+                }
+            }
+            0
+        }
+        return input.map { it.toList() }.sortedWith(comparator).take(limit)
+    }
+
+    @Test
+    fun inMemorySortIsStableWithNulls() {
+        val input = rows(2000)
+        for (descending in listOf(booleanArrayOf(false, false), booleanArrayOf(true, false), booleanArrayOf(false, true))) {
+            assertEquals(expected(input, descending), sort(input, descending))
+        }
+    }
+
+    @Test
+    fun nullsFirstAscendingAndLastDescending() {
+        val input = rows(200)
+        val ascending = sort(input, booleanArrayOf(false, false)).map { it[0] }
+        val descending = sort(input, booleanArrayOf(true, false)).map { it[0] }
+        val nulls = input.count { (it[0] as Any?) == null }
+        assertEquals(List(nulls) { null }, ascending.take(nulls))
+        assertEquals(List(nulls) { null }, descending.takeLast(nulls))
+    }
+
+    @Test
+    fun externalMergeMatchesInMemorySort() {
+        val input = rows(5000)
+        for (descending in listOf(booleanArrayOf(false, false), booleanArrayOf(true, true))) {
+            // 每段只有几十行，归并上百段
+            assertEquals(expected(input, descending), sort(input, descending, memoryLimit = 4096))
+        }
+    }
+
+    @Test
+    fun spillUnderQueryMemoryBudget() {
+        val input = rows(5000)
+        session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = ExecutionConfig.MEMORY_RESERVATION_CHUNK.toString()
+        val descending = booleanArrayOf(false, true)
+        assertEquals(expected(input, descending), sort(input, descending))
+        assertEquals(0L, session.memory.usedBytes)
+    }
+
+    @Test
+    fun topNKeepsFirstRowsOfStableOrder() {
+        val input = rows(5000)
+        for (limit in listOf(0, 1, 37, 5000, 6000)) {
+            val descending = booleanArrayOf(true, false)
+            assertEquals(expected(input, descending, limit), sort(input, descending, limit.toLong()))
+        }
+    }
+
+    @Test
+    fun topNFallsBackToExternalSort() {
+        // 堆中的第一行就申请不到内存，改为外部排序，输出仍只有前 limit 行；
+        // 这个预算下每一行都单独写成一段，行数少一些，免得同时打开太多临时文件
+        val input = rows(500)
+        session.properties[ExecutionConfig.QUERY_MEMORY_LIMIT_VARIABLE] = "1"
+        val descending = booleanArrayOf(false, false)
+        assertEquals(expected(input, descending, 100), sort(input, descending, 100))
+        assertEquals(0L, session.memory.usedBytes)
+    }
+}